@@ -0,0 +1,305 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.os.Bundle;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.ContactCounts;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Copies of the results of recent contact filter queries, so that typing a
+ * filter again, e.g. after deleting a character, does not query the provider.
+ * A filter that extends a cached one can also be narrowed down locally by
+ * matching the names of the cached contacts.  Such a result is only a guess:
+ * the provider also matches nicknames, emails and phone numbers, so it must
+ * still be asked.  All methods are thread-safe.
+ */
+public class ContactFilterCache {
+
+    /** Number of filter results kept. */
+    private static final int MAX_FILTERS = 8;
+
+    /** Results with more rows are not copied. */
+    static final int MAX_ROWS = 1000;
+
+    /**
+     * The rows of a filter query, and its address book index if it had one.
+     */
+    private static class Result {
+        final String[] columns;
+        final ArrayList<Object[]> rows;
+        final String[] sections;
+        final int[] counts;
+
+        Result(String[] columns, ArrayList<Object[]> rows, String[] sections, int[] counts) {
+            this.columns = columns;
+            this.rows = rows;
+            this.sections = sections;
+            this.counts = counts;
+        }
+    }
+
+    /**
+     * A copy of a filter result, with the address book index in its extras.
+     */
+    private static class ResultCursor extends MatrixCursor {
+        private final Bundle mExtras;
+
+        ResultCursor(Result result) {
+            super(result.columns, result.rows.size());
+            for (Object[] row : result.rows) {
+                addRow(row);
+            }
+            if (result.sections != null) {
+                mExtras = new Bundle();
+                mExtras.putStringArray(ContactCounts.EXTRA_ADDRESS_BOOK_INDEX_TITLES,
+                        result.sections);
+                mExtras.putIntArray(ContactCounts.EXTRA_ADDRESS_BOOK_INDEX_COUNTS, result.counts);
+            } else {
+                mExtras = Bundle.EMPTY;
+            }
+        }
+
+        @Override
+        public Bundle getExtras() {
+            return mExtras;
+        }
+    }
+
+    private final LinkedHashMap<String, Result> mResults =
+            new LinkedHashMap<String, Result>(MAX_FILTERS, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Result> eldest) {
+            return size() > MAX_FILTERS;
+        }
+    };
+
+    private final ContentResolver mResolver;
+    private final int[] mNameColumns;
+
+    /**
+     * @param resolver the resolver that tells the cursors about changes
+     * @param nameColumns the columns of the names matched when narrowing
+     */
+    public ContactFilterCache(ContentResolver resolver, int... nameColumns) {
+        mResolver = resolver;
+        mNameColumns = nameColumns;
+    }
+
+    private Cursor newCursor(Result result) {
+        Cursor cursor = new ResultCursor(result);
+        // Like the provider's cursors, so that lists follow changes to the contacts
+        cursor.setNotificationUri(mResolver, ContactsContract.AUTHORITY_URI);
+        return cursor;
+    }
+
+    /**
+     * Returns a copy of the result of the filter, or null if it is not cached.
+     */
+    public synchronized Cursor get(String filter) {
+        Result result = mResults.get(filter);
+        return result != null ? newCursor(result) : null;
+    }
+
+    /**
+     * Returns the contacts of the longest cached filter that the filter
+     * extends whose names match the filter, or null if no cached filter can
+     * be narrowed.  Filters without letters are left to the provider, which
+     * matches them against phone numbers.
+     */
+    public synchronized Cursor narrow(String filter) {
+        String normalFilter = normalize(filter);
+        if (!hasLetter(normalFilter)) {
+            return null;
+        }
+
+        Result base = null;
+        int baseLength = 0;
+        for (Map.Entry<String, Result> entry : mResults.entrySet()) {
+            String normalKey = normalize(entry.getKey());
+            if (normalKey.length() > baseLength && normalFilter.startsWith(normalKey)) {
+                base = entry.getValue();
+                baseLength = normalKey.length();
+            }
+        }
+        if (base == null) {
+            return null;
+        }
+
+        ArrayList<Object[]> rows = new ArrayList<Object[]>();
+        int[] counts = base.counts != null ? new int[base.counts.length] : null;
+        int section = 0;
+        int sectionEnd = base.counts != null && base.counts.length != 0 ? base.counts[0] : 0;
+        for (int i = 0; i < base.rows.size(); i++) {
+            if (counts != null) {
+                while (i >= sectionEnd && section < counts.length - 1) {
+                    sectionEnd += base.counts[++section];
+                }
+            }
+            Object[] row = base.rows.get(i);
+            if (matches(row, normalFilter)) {
+                rows.add(row);
+                if (counts != null) {
+                    counts[section]++;
+                }
+            }
+        }
+
+        String[] sections = null;
+        if (counts != null) {
+            // Sections without contacts left are dropped
+            int kept = 0;
+            for (int count : counts) {
+                if (count != 0) {
+                    kept++;
+                }
+            }
+            sections = new String[kept];
+            int[] keptCounts = new int[kept];
+            kept = 0;
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] != 0) {
+                    sections[kept] = base.sections[i];
+                    keptCounts[kept++] = counts[i];
+                }
+            }
+            counts = keptCounts;
+        }
+        return newCursor(new Result(base.columns, rows, sections, counts));
+    }
+
+    /**
+     * Caches the result of a filter query.  Returns a copy of it to use in
+     * place of the cursor, which is closed, or the cursor itself if it is too
+     * large to be copied or null.
+     */
+    public Cursor put(String filter, Cursor cursor) {
+        if (cursor == null || cursor.getCount() > MAX_ROWS) {
+            return cursor;
+        }
+
+        Result result;
+        try {
+            String[] columns = cursor.getColumnNames();
+            ArrayList<Object[]> rows = new ArrayList<Object[]>(cursor.getCount());
+            cursor.moveToPosition(-1);
+            while (cursor.moveToNext()) {
+                Object[] row = new Object[columns.length];
+                for (int i = 0; i < columns.length; i++) {
+                    // Numbers are read back from their text like from the database
+                    row[i] = cursor.getString(i);
+                }
+                rows.add(row);
+            }
+            Bundle extras = cursor.getExtras();
+            result = new Result(columns, rows,
+                    extras.getStringArray(ContactCounts.EXTRA_ADDRESS_BOOK_INDEX_TITLES),
+                    extras.getIntArray(ContactCounts.EXTRA_ADDRESS_BOOK_INDEX_COUNTS));
+        } finally {
+            cursor.close();
+        }
+
+        synchronized (this) {
+            mResults.put(filter, result);
+        }
+        return newCursor(result);
+    }
+
+    public synchronized void clear() {
+        mResults.clear();
+    }
+
+    private boolean matches(Object[] row, String normalFilter) {
+        for (int column : mNameColumns) {
+            Object name = row[column];
+            if (name != null && matchesName(name.toString(), normalFilter)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns whether the name, from one of its words on, starts with the
+     * normalized filter, like the provider matches names.
+     */
+    static boolean matchesName(String name, String normalFilter) {
+        String lowerName = stripAccents(name.toLowerCase());
+        StringBuilder normalName = new StringBuilder(lowerName.length());
+        int[] wordStarts = new int[lowerName.length()];
+        int words = 0;
+        boolean inWord = false;
+        for (int i = 0; i < lowerName.length(); i++) {
+            char c = lowerName.charAt(i);
+            if (Character.isLetterOrDigit(c)) {
+                if (!inWord) {
+                    wordStarts[words++] = normalName.length();
+                }
+                normalName.append(c);
+                inWord = true;
+            } else {
+                inWord = false;
+            }
+        }
+
+        String normal = normalName.toString();
+        for (int i = 0; i < words; i++) {
+            if (normal.startsWith(normalFilter, wordStarts[i])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the letters and digits of the filter, lower case and without
+     * accents.
+     */
+    static String normalize(String filter) {
+        String lower = stripAccents(filter.toLowerCase());
+        StringBuilder normal = new StringBuilder(lower.length());
+        for (int i = 0; i < lower.length(); i++) {
+            char c = lower.charAt(i);
+            if (Character.isLetterOrDigit(c)) {
+                normal.append(c);
+            }
+        }
+        return normal.toString();
+    }
+
+    static String stripAccents(String s) {
+        return Normalizer.normalize(s, Normalizer.Form.NFD)
+                .replaceAll("\\p{InCombiningDiacriticalMarks}+", "");
+    }
+
+    private static boolean hasLetter(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (Character.isLetter(s.charAt(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
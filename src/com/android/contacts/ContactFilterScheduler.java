@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts;
+
+import android.database.Cursor;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the filter queries of a list one at a time on a background thread.
+ * Filters scheduled in quick succession, e.g. while the user types, are
+ * coalesced so that only the last one is queried.  A filter superseded by a
+ * later one is dropped: before it is queried if it has not started yet,
+ * between its queries if it needs several, and before its result is shown
+ * otherwise.  A running provider query cannot be interrupted, but nothing
+ * queues up behind it.
+ */
+public class ContactFilterScheduler {
+    private static final String TAG = "ContactFilterScheduler";
+
+    private static final int MESSAGE_FILTER = 1;
+
+    /**
+     * Runs and shows the filter queries.
+     */
+    public interface Client {
+        /**
+         * Queries the filter, called on the filter thread.  Returns null if
+         * the query was dropped since it was superseded.
+         */
+        Cursor runFilter(String filter, Query query);
+
+        /**
+         * Shows the result of the filter, called on the main thread.
+         */
+        void onFilterComplete(String filter, Cursor cursor);
+    }
+
+    /**
+     * One scheduled filter.
+     */
+    public final class Query {
+        final int generation;
+        final String filter;
+        final long scheduleTime;
+
+        Query(int generation, String filter) {
+            this.generation = generation;
+            this.filter = filter;
+            scheduleTime = SystemClock.uptimeMillis();
+        }
+
+        /**
+         * Returns whether a later filter has been scheduled, so that this one
+         * should not be queried any further.
+         */
+        public boolean isCancelled() {
+            return generation != mGeneration.get();
+        }
+    }
+
+    private final Client mClient;
+    private final Handler mMainHandler = new Handler();
+    private HandlerThread mThread;
+    private Handler mFilterHandler;
+
+    private final AtomicInteger mGeneration = new AtomicInteger();
+
+    /** Filters dropped before being queried, or before being shown. */
+    private final AtomicInteger mDropped = new AtomicInteger();
+
+    /** Time spent querying each filter. */
+    private final LatencyHistogram mQueryTime = new LatencyHistogram("query");
+
+    /** From a filter being scheduled to its result being shown. */
+    private final LatencyHistogram mFilterTime = new LatencyHistogram("filter");
+
+    public ContactFilterScheduler(Client client) {
+        mClient = client;
+    }
+
+    /**
+     * Queries the filter after the delay, unless another filter is scheduled
+     * in the meantime.  Supersedes all filters scheduled before.  Called on
+     * the main thread.
+     */
+    public void schedule(String filter, long delayMillis) {
+        if (mFilterHandler == null) {
+            mThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+            mThread.start();
+            mFilterHandler = new FilterHandler(mThread.getLooper());
+        }
+        Query query = new Query(mGeneration.incrementAndGet(), filter);
+        if (mFilterHandler.hasMessages(MESSAGE_FILTER)) {
+            mDropped.incrementAndGet();
+            mFilterHandler.removeMessages(MESSAGE_FILTER);
+        }
+        mFilterHandler.sendMessageDelayed(
+                mFilterHandler.obtainMessage(MESSAGE_FILTER, query), delayMillis);
+    }
+
+    /**
+     * Drops all scheduled filters.  Called on the main thread.
+     */
+    public void cancel() {
+        mGeneration.incrementAndGet();
+        if (mFilterHandler != null) {
+            mFilterHandler.removeMessages(MESSAGE_FILTER);
+        }
+    }
+
+    /**
+     * Drops all scheduled filters and stops the filter thread.  Logs the
+     * filter latencies if debug logging is enabled.
+     */
+    public void quit() {
+        cancel();
+        if (mThread != null) {
+            mThread.quit();
+            mThread = null;
+            mFilterHandler = null;
+        }
+        if (Log.isLoggable(TAG, Log.DEBUG) && mFilterTime.getCount() != 0) {
+            StringWriter out = new StringWriter();
+            dump(new PrintWriter(out));
+            Log.d(TAG, out.toString());
+        }
+    }
+
+    public void dump(PrintWriter pw) {
+        pw.print("Contact filters: dropped=");
+        pw.println(mDropped.get());
+        mQueryTime.dump(pw);
+        mFilterTime.dump(pw);
+        pw.flush();
+    }
+
+    private class FilterHandler extends Handler {
+        public FilterHandler(Looper looper) {
+            super(looper);
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            final Query query = (Query) msg.obj;
+            if (query.isCancelled()) {
+                mDropped.incrementAndGet();
+                return;
+            }
+
+            long start = SystemClock.uptimeMillis();
+            final Cursor cursor = mClient.runFilter(query.filter, query);
+            mQueryTime.add(SystemClock.uptimeMillis() - start);
+            if (query.isCancelled()) {
+                mDropped.incrementAndGet();
+                if (cursor != null) {
+                    cursor.close();
+                }
+                return;
+            }
+
+            mMainHandler.post(new Runnable() {
+                public void run() {
+                    if (query.isCancelled()) {
+                        mDropped.incrementAndGet();
+                        if (cursor != null) {
+                            cursor.close();
+                        }
+                        return;
+                    }
+                    mClient.onFilterComplete(query.filter, cursor);
+                    long millis = SystemClock.uptimeMillis() - query.scheduleTime;
+                    mFilterTime.add(millis);
+                    if (Log.isLoggable(TAG, Log.DEBUG)) {
+                        // The length only, the filter itself is personal
+                        int length = query.filter != null ? query.filter.length() : 0;
+                        Log.d(TAG, "Filter of " + length + " characters shown in " + millis
+                                + "ms");
+                    }
+                }
+            });
+        }
+    }
+}
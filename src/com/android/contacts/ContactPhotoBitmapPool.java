@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts;
+
+import android.graphics.Bitmap;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+
+/**
+ * Mutable bitmaps that are no longer shown anywhere, kept by size so that new
+ * thumbnails of the same size can be drawn into them instead of allocating.
+ * The pool is bounded in bytes; the oldest released bitmaps are recycled
+ * first.  All methods are thread-safe.
+ */
+public class ContactPhotoBitmapPool {
+
+    private final HashMap<Long, ArrayList<Bitmap>> mBuckets = new HashMap<Long, ArrayList<Bitmap>>();
+
+    /** All pooled bitmaps, least recently released first. */
+    private final LinkedList<Bitmap> mOrder = new LinkedList<Bitmap>();
+
+    private final int mMaxBytes;
+    private int mBytes;
+
+    private int mReuses;
+
+    public ContactPhotoBitmapPool(int maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    private static long key(int width, int height, Bitmap.Config config) {
+        return ((long) config.ordinal() << 40) | ((long) width << 20) | height;
+    }
+
+    /**
+     * Returns a pooled bitmap of exactly the given size and configuration, or
+     * null.  The caller owns the bitmap and must clear it before drawing.
+     */
+    public synchronized Bitmap acquire(int width, int height, Bitmap.Config config) {
+        ArrayList<Bitmap> bucket = mBuckets.get(key(width, height, config));
+        if (bucket == null || bucket.isEmpty()) {
+            return null;
+        }
+        Bitmap bitmap = bucket.remove(bucket.size() - 1);
+        mOrder.remove(bitmap);
+        mBytes -= sizeOf(bitmap);
+        mReuses++;
+        return bitmap;
+    }
+
+    /**
+     * Gives a bitmap to the pool.  The bitmap must not be displayed or cached
+     * anywhere anymore.
+     */
+    public synchronized void release(Bitmap bitmap) {
+        if (bitmap.isRecycled() || !bitmap.isMutable() || bitmap.getConfig() == null) {
+            return;
+        }
+        int size = sizeOf(bitmap);
+        if (size > mMaxBytes) {
+            bitmap.recycle();
+            return;
+        }
+        long key = key(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+        ArrayList<Bitmap> bucket = mBuckets.get(key);
+        if (bucket == null) {
+            bucket = new ArrayList<Bitmap>();
+            mBuckets.put(key, bucket);
+        }
+        bucket.add(bitmap);
+        mOrder.add(bitmap);
+        mBytes += size;
+
+        while (mBytes > mMaxBytes) {
+            Bitmap eldest = mOrder.removeFirst();
+            mBuckets.get(key(eldest.getWidth(), eldest.getHeight(), eldest.getConfig()))
+                    .remove(eldest);
+            mBytes -= sizeOf(eldest);
+            eldest.recycle();
+        }
+    }
+
+    public synchronized void clear() {
+        for (Bitmap bitmap : mOrder) {
+            bitmap.recycle();
+        }
+        mOrder.clear();
+        mBuckets.clear();
+        mBytes = 0;
+    }
+
+    /**
+     * Returns the memory held by pooled bitmaps, in bytes.
+     */
+    public synchronized int size() {
+        return mBytes;
+    }
+
+    /**
+     * Returns the number of bitmaps handed out for reuse.
+     */
+    public synchronized int getReuseCount() {
+        return mReuses;
+    }
+
+    private static int sizeOf(Bitmap bitmap) {
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+
+import java.lang.ref.SoftReference;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of decoded contact photos by photo ID.  Recently used photos are held
+ * strongly up to a budget in bytes of bitmap memory; photos evicted from there
+ * move to a bounded tier of soft references, from which they are promoted back
+ * if the GC has not cleared them yet.  All methods are thread-safe.
+ */
+public class ContactPhotoCache {
+
+    /**
+     * Told about photos that have left the cache for good, i.e. that can no
+     * longer be returned by {@link ContactPhotoCache#get}.
+     */
+    public interface EvictionListener {
+        /**
+         * Called with the cache locked, on the thread that caused the eviction.
+         */
+        void onPhotoEvicted(long photoId, Bitmap bitmap);
+    }
+
+    /** Bytes per megabyte, as used by {@link ActivityManager#getMemoryClass()}. */
+    private static final int MB = 1024 * 1024;
+
+    private final LinkedHashMap<Long, Bitmap> mStrong =
+            new LinkedHashMap<Long, Bitmap>(32, 0.75f, true);
+
+    private final LinkedHashMap<Long, SoftReference<Bitmap>> mSoft;
+
+    private final int mMaxBytes;
+    private int mBytes;
+
+    private int mEvictions;
+
+    private EvictionListener mEvictionListener;
+
+    /**
+     * @param maxBytes budget of decoded bitmap memory held strongly
+     * @param maxSoftEntries number of evicted photos kept as soft references
+     */
+    public ContactPhotoCache(int maxBytes, final int maxSoftEntries) {
+        mMaxBytes = maxBytes;
+        mSoft = new LinkedHashMap<Long, SoftReference<Bitmap>>(32, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, SoftReference<Bitmap>> eldest) {
+                if (size() > maxSoftEntries) {
+                    notifyEvicted(eldest.getKey(), eldest.getValue().get());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Creates a cache sized for this device: the strong tier gets
+     * config_photo_cache_memory_percent of the per-application heap.
+     */
+    public static ContactPhotoCache create(Context context) {
+        ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        int percent = context.getResources().getInteger(R.integer.config_photo_cache_memory_percent);
+        int softEntries = context.getResources().getInteger(R.integer.config_photo_cache_soft_entries);
+        return new ContactPhotoCache(am.getMemoryClass() * MB / 100 * percent, softEntries);
+    }
+
+    public synchronized void setEvictionListener(EvictionListener listener) {
+        mEvictionListener = listener;
+    }
+
+    private void notifyEvicted(long photoId, Bitmap bitmap) {
+        if (bitmap != null && mEvictionListener != null) {
+            mEvictionListener.onPhotoEvicted(photoId, bitmap);
+        }
+    }
+
+    /**
+     * Returns the photo, or null if it is not cached.
+     */
+    public synchronized Bitmap get(long photoId) {
+        Bitmap bitmap = mStrong.get(photoId);
+        if (bitmap == null) {
+            SoftReference<Bitmap> ref = mSoft.remove(photoId);
+            if (ref != null) {
+                bitmap = ref.get();
+                if (bitmap != null) {
+                    // Still alive, make it recently used again
+                    putStrong(photoId, bitmap);
+                }
+            }
+        }
+        return bitmap;
+    }
+
+    /**
+     * Returns the photo if it is cached, without moving it out of the soft
+     * tier.
+     */
+    public synchronized Bitmap peek(long photoId) {
+        Bitmap bitmap = mStrong.get(photoId);
+        if (bitmap == null) {
+            SoftReference<Bitmap> ref = mSoft.get(photoId);
+            if (ref != null) {
+                bitmap = ref.get();
+            }
+        }
+        return bitmap;
+    }
+
+    /**
+     * Returns whether the photo is cached, without counting a hit or a miss.
+     */
+    public synchronized boolean contains(long photoId) {
+        if (mStrong.containsKey(photoId)) {
+            return true;
+        }
+        SoftReference<Bitmap> ref = mSoft.get(photoId);
+        return ref != null && ref.get() != null;
+    }
+
+    public synchronized void put(long photoId, Bitmap bitmap) {
+        SoftReference<Bitmap> ref = mSoft.remove(photoId);
+        if (ref != null && ref.get() != bitmap) {
+            notifyEvicted(photoId, ref.get());
+        }
+        putStrong(photoId, bitmap);
+    }
+
+    private void putStrong(long photoId, Bitmap bitmap) {
+        Bitmap previous = mStrong.put(photoId, bitmap);
+        if (previous != null) {
+            mBytes -= sizeOf(previous);
+            if (previous != bitmap) {
+                notifyEvicted(photoId, previous);
+            }
+        }
+        mBytes += sizeOf(bitmap);
+        trim();
+    }
+
+    /**
+     * Moves the least recently used photos to the soft tier until the strong
+     * tier fits its budget.
+     */
+    private void trim() {
+        Iterator<Map.Entry<Long, Bitmap>> iterator = mStrong.entrySet().iterator();
+        while (mBytes > mMaxBytes && iterator.hasNext()) {
+            Map.Entry<Long, Bitmap> eldest = iterator.next();
+            iterator.remove();
+            mBytes -= sizeOf(eldest.getValue());
+            mSoft.put(eldest.getKey(), new SoftReference<Bitmap>(eldest.getValue()));
+            mEvictions++;
+        }
+    }
+
+    /**
+     * Moves all photos to the soft tier, so that the garbage collector may
+     * claim them, e.g. while no screen shows photos.
+     */
+    public synchronized void trimToSoft() {
+        for (Map.Entry<Long, Bitmap> entry : mStrong.entrySet()) {
+            mSoft.put(entry.getKey(), new SoftReference<Bitmap>(entry.getValue()));
+            mEvictions++;
+        }
+        mStrong.clear();
+        mBytes = 0;
+    }
+
+    public synchronized void remove(long photoId) {
+        Bitmap bitmap = mStrong.remove(photoId);
+        if (bitmap != null) {
+            mBytes -= sizeOf(bitmap);
+            notifyEvicted(photoId, bitmap);
+        }
+        SoftReference<Bitmap> ref = mSoft.remove(photoId);
+        if (ref != null) {
+            notifyEvicted(photoId, ref.get());
+        }
+    }
+
+    public synchronized void clear() {
+        mStrong.clear();
+        mSoft.clear();
+        mBytes = 0;
+    }
+
+    /**
+     * Returns the bitmap memory held strongly, in bytes.
+     */
+    public synchronized int size() {
+        return mBytes;
+    }
+
+    public int maxSize() {
+        return mMaxBytes;
+    }
+
+    /**
+     * Returns the number of photos moved from the strong to the soft tier.
+     */
+    public synchronized int getEvictionCount() {
+        return mEvictions;
+    }
+
+    private static int sizeOf(Bitmap bitmap) {
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+
+/**
+ * App-private files holding contact photo thumbnails, so that photos shown
+ * before do not have to be queried from the provider and decoded again after
+ * the process restarts.  A thumbnail is stored under the ID and the data
+ * version of its photo row, which changes whenever the photo is edited, and
+ * the size in pixels it was decoded for; see {@link #retain} for dropping
+ * thumbnails of changed or deleted rows.
+ *
+ * Files are written under a temporary name and renamed, so several loaders may
+ * share the directory.
+ */
+public class ContactPhotoDiskCache {
+    private static final String TAG = "ContactPhotoDiskCache";
+
+    private static final String SUFFIX = ".png";
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private final File mDirectory;
+    private final long mMaxBytes;
+
+    public ContactPhotoDiskCache(File directory, long maxBytes) {
+        mDirectory = directory;
+        mMaxBytes = maxBytes;
+    }
+
+    private File getFile(long photoId, int version, int size) {
+        return new File(mDirectory, photoId + "-" + version + "-" + size + SUFFIX);
+    }
+
+    /**
+     * Returns the thumbnail of the given version of a photo decoded for the
+     * given size, or null.
+     */
+    public Bitmap get(long photoId, int version, int size) {
+        File file = getFile(photoId, version, size);
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            return BitmapFactory.decodeFile(file.getPath());
+        } catch (OutOfMemoryError e) {
+            return null;
+        }
+    }
+
+    public boolean contains(long photoId, int version, int size) {
+        return getFile(photoId, version, size).exists();
+    }
+
+    public void remove(long photoId, int version, int size) {
+        getFile(photoId, version, size).delete();
+    }
+
+    public void put(long photoId, int version, int size, Bitmap thumbnail) {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            return;
+        }
+        File file = getFile(photoId, version, size);
+        File tmp = new File(file.getPath() + TMP_SUFFIX);
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(tmp);
+            if (thumbnail.compress(Bitmap.CompressFormat.PNG, 100, out)) {
+                out.close();
+                out = null;
+                if (tmp.renameTo(file)) {
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot write " + file, e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+        tmp.delete();
+    }
+
+    /**
+     * Deletes the thumbnails of photos that are not in {@code versions}, which
+     * maps the ID of every photo row to its current data version, and then the
+     * least recently written thumbnails beyond the size budget.
+     */
+    public void retain(Map<Long, Integer> versions) {
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        long total = 0;
+        int kept = 0;
+        for (int i = 0; i < files.length; i++) {
+            File file = files[i];
+            if (isCurrent(file.getName(), versions)) {
+                total += file.length();
+                files[kept++] = file;
+            } else {
+                file.delete();
+            }
+        }
+        if (total <= mMaxBytes) {
+            return;
+        }
+        files = Arrays.copyOf(files, kept);
+        Arrays.sort(files, new Comparator<File>() {
+            public int compare(File lhs, File rhs) {
+                long l = lhs.lastModified();
+                long r = rhs.lastModified();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        for (int i = 0; i < files.length && total > mMaxBytes; i++) {
+            total -= files[i].length();
+            files[i].delete();
+        }
+    }
+
+    private static boolean isCurrent(String name, Map<Long, Integer> versions) {
+        if (!name.endsWith(SUFFIX)) {
+            // Including temporary files left behind by a crash
+            return false;
+        }
+        int dash = name.indexOf('-');
+        int sizeDash = name.indexOf('-', dash + 1);
+        if (dash == -1 || sizeDash == -1) {
+            // Including thumbnails stored before their size was part of the name
+            return false;
+        }
+        try {
+            long photoId = Long.parseLong(name.substring(0, dash));
+            int version = Integer.parseInt(name.substring(dash + 1, sizeDash));
+            Integer.parseInt(name.substring(sizeDash + 1, name.length() - SUFFIX.length()));
+            Integer current = versions.get(photoId);
+            return current != null && current == version;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    public void clear() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+}
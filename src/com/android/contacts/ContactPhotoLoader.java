@@ -16,36 +16,35 @@
 
 package com.android.contacts;
 
-import com.google.android.collect.Lists;
-
-import android.content.ContentResolver;
 import android.content.Context;
-import android.database.Cursor;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.Message;
+import android.os.SystemClock;
 import android.os.Handler.Callback;
-import android.provider.ContactsContract.Data;
-import android.provider.ContactsContract.Contacts.Photo;
+import android.view.ViewGroup;
 import android.widget.ImageView;
 
-import java.lang.ref.SoftReference;
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.WeakHashMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
- * Asynchronously loads contact photos and maintains cache of photos.  The class is
- * mostly single-threaded.  The only two methods accessed by the loader thread are
- * {@link #cacheBitmap} and {@link #obtainPhotoIdsToLoad}. Those methods access concurrent
- * hash maps shared with the main thread.
+ * Asynchronously loads contact photos into the views of one screen.  Photos are
+ * loaded and cached by the process-wide {@link ContactPhotoService}, so a photo
+ * shown by one screen is found in the cache by all others.  The class is mostly
+ * single-threaded.  The only methods accessed by the service's threads are
+ * {@link #isPaused}, {@link #getRequestedPhotoIds}, {@link #isWaitingFor},
+ * {@link #getPrefetchPhotoIds}, {@link #removePrefetchPhotoIds} and
+ * {@link #notifyPhotosLoaded}.  Those methods access concurrent data structures
+ * shared with the main thread.
  */
 public class ContactPhotoLoader implements Callback {
 
-    private static final String LOADER_THREAD_NAME = "ContactPhotoLoader";
-
     /**
      * Type of message sent by the UI thread to itself to indicate that some photos
      * need to be loaded.
@@ -58,9 +57,7 @@ public class ContactPhotoLoader implements Callback {
      */
     private static final int MESSAGE_PHOTOS_LOADED = 2;
 
-    private static final String[] EMPTY_STRING_ARRAY = new String[0];
-
-    private final String[] COLUMNS = new String[] { Photo._ID, Photo.PHOTO };
+    private static final long[] EMPTY_LONG_ARRAY = new long[0];
 
     /**
      * The resource ID of the image to be used when the photo is unavailable or being
@@ -68,23 +65,14 @@ public class ContactPhotoLoader implements Callback {
      */
     private final int mDefaultResourceId;
 
-    /**
-     * Maintains the state of a particular photo.
-     */
-    private static class BitmapHolder {
-        private static final int NEEDED = 0;
-        private static final int LOADING = 1;
-        private static final int LOADED = 2;
-
-        int state;
-        SoftReference<Bitmap> bitmapRef;
-    }
+    private final ContactPhotoService mService;
 
     /**
-     * A soft cache for photos.
+     * The bitmap shown by each view, so that it is not put into the bitmap pool
+     * while visible.  Only used by the main thread.
      */
-    private final ConcurrentHashMap<Long, BitmapHolder> mBitmapCache =
-            new ConcurrentHashMap<Long, BitmapHolder>();
+    private final WeakHashMap<ImageView, Bitmap> mDisplayedPhotos =
+            new WeakHashMap<ImageView, Bitmap>();
 
     /**
      * A map from ImageView to the corresponding photo ID. Please note that this
@@ -94,15 +82,22 @@ public class ContactPhotoLoader implements Callback {
             new ConcurrentHashMap<ImageView, Long>();
 
     /**
-     * Handler for messages sent to the UI thread.
+     * When each view of {@link #mPendingRequests} asked for its photo, for the
+     * delivery latency.  Only used by the main thread.
      */
-    private final Handler mMainThreadHandler = new Handler(this);
+    private final HashMap<ImageView, Long> mRequestTimes = new HashMap<ImageView, Long>();
 
     /**
-     * Thread responsible for loading photos from the database. Created upon
-     * the first request.
+     * Photos to load ahead of the views that will show them, nearest first.
+     * The loader thread removes the ones it has taken.
      */
-    private LoaderThread mLoaderThread;
+    private final AtomicReference<long[]> mPrefetchIds = new AtomicReference<long[]>(
+            EMPTY_LONG_ARRAY);
+
+    /**
+     * Handler for messages sent to the UI thread.
+     */
+    private final Handler mMainThreadHandler = new Handler(this);
 
     /**
      * A gate to make sure we only send one instance of MESSAGE_PHOTOS_NEEDED at a time.
@@ -110,11 +105,10 @@ public class ContactPhotoLoader implements Callback {
     private boolean mLoadingRequested;
 
     /**
-     * Flag indicating if the image loading is paused.
+     * Flag indicating if the image loading is paused.  Prefetching continues
+     * while paused.
      */
-    private boolean mPaused;
-
-    private final Context mContext;
+    private volatile boolean mPaused;
 
     /**
      * Constructor.
@@ -125,7 +119,8 @@ public class ContactPhotoLoader implements Callback {
      */
     public ContactPhotoLoader(Context context, int defaultResourceId) {
         mDefaultResourceId = defaultResourceId;
-        mContext = context;
+        mService = ContactPhotoService.getInstance(context);
+        mService.register(this);
     }
 
     /**
@@ -137,13 +132,23 @@ public class ContactPhotoLoader implements Callback {
         if (photoId == 0) {
             // No photo is needed
             view.setImageResource(mDefaultResourceId);
-            mPendingRequests.remove(view);
+            cancelRequest(view);
         } else {
             boolean loaded = loadCachedPhoto(view, photoId);
+            ContactPhotoMetrics metrics = mService.getMetrics();
             if (loaded) {
+                if (mDisplayedPhotos.containsKey(view)) {
+                    metrics.cacheHits.incrementAndGet();
+                }
                 mPendingRequests.remove(view);
+                mRequestTimes.remove(view);
             } else {
-                mPendingRequests.put(view, photoId);
+                Long previous = mPendingRequests.put(view, photoId);
+                if (previous == null || previous != photoId) {
+                    // Rebinding a view that still waits for the photo is the same request
+                    metrics.cacheMisses.incrementAndGet();
+                    mRequestTimes.put(view, SystemClock.uptimeMillis());
+                }
                 if (!mPaused) {
                     // Send a request to start loading photos
                     requestLoading();
@@ -152,58 +157,123 @@ public class ContactPhotoLoader implements Callback {
         }
     }
 
+    /**
+     * Stops loading a photo into the view, so that the view can be given an
+     * image of its own.  Called when a recycled view is bound to something
+     * other than a contact photo.
+     */
+    public void cancelRequest(ImageView view) {
+        mDisplayedPhotos.remove(view);
+        mPendingRequests.remove(view);
+        mRequestTimes.remove(view);
+    }
+
     /**
      * Checks if the photo is present in cache.  If so, sets the photo on the view,
-     * otherwise sets the state of the photo to {@link BitmapHolder#NEEDED} and
-     * temporarily set the image to the default resource ID.
+     * otherwise asks the service for the photo and temporarily set the image to
+     * the default resource ID.
      */
     private boolean loadCachedPhoto(ImageView view, long photoId) {
-        BitmapHolder holder = mBitmapCache.get(photoId);
-        if (holder == null) {
-            holder = new BitmapHolder();
-            mBitmapCache.put(photoId, holder);
-        } else if (holder.state == BitmapHolder.LOADED) {
-            // Null bitmap reference means that database contains no bytes for the photo
-            if (holder.bitmapRef == null) {
-                view.setImageResource(mDefaultResourceId);
-                return true;
-            }
+        int targetSize = getTargetSize(view);
+        Bitmap bitmap = mService.getCachedPhoto(photoId, targetSize);
+        if (bitmap != null) {
+            view.setImageBitmap(bitmap);
+            mDisplayedPhotos.put(view, bitmap);
+            return true;
+        }
 
-            Bitmap bitmap = holder.bitmapRef.get();
-            if (bitmap != null) {
-                view.setImageBitmap(bitmap);
-                return true;
+        // The bitmap has not been loaded, was evicted or is missing - should
+        // display the placeholder image.
+        view.setImageResource(mDefaultResourceId);
+        mDisplayedPhotos.remove(view);
+        return !mService.requestPhoto(photoId, targetSize);
+    }
+
+    /**
+     * Returns the size in pixels the photo for the view should be decoded at:
+     * its laid out or its requested size, whichever is known.
+     */
+    private int getTargetSize(ImageView view) {
+        int size = Math.max(view.getWidth(), view.getHeight());
+        if (size <= 0) {
+            ViewGroup.LayoutParams params = view.getLayoutParams();
+            if (params != null) {
+                size = Math.max(params.width, params.height);
             }
+        }
+        return size > 0 ? size : mService.getThumbnailSize();
+    }
 
-            // Null bitmap means that the soft reference was released by the GC
-            // and we need to reload the photo.
-            holder.bitmapRef = null;
+    /**
+     * Replaces the photos to load ahead of the views that will show them,
+     * nearest first.  Prefetched photos are only loaded while no bound view
+     * is waiting for its photo, and also while loading is paused.  Photos
+     * that are left out by a later call are no longer prefetched.
+     *
+     * @param photoIds photo IDs, 0 for none
+     * @param count number of entries of {@code photoIds} to use
+     */
+    public void prefetchPhotos(long[] photoIds, int count) {
+        long[] ids = new long[count];
+        int needed = 0;
+        for (int i = 0; i < count; i++) {
+            long photoId = photoIds[i];
+            // Photos that are cached, being loaded or missing need no prefetch
+            if (photoId != 0 && mService.needsPrefetch(photoId)) {
+                ids[needed++] = photoId;
+            }
         }
+        mPrefetchIds.set(needed == count ? ids : Arrays.copyOf(ids, needed));
+        if (needed != 0) {
+            requestLoading();
+        }
+    }
 
-        // The bitmap has not been loaded - should display the placeholder image.
-        view.setImageResource(mDefaultResourceId);
-        holder.state = BitmapHolder.NEEDED;
-        return false;
+    /**
+     * Stops prefetching photos.
+     */
+    public void cancelPrefetch() {
+        mPrefetchIds.set(EMPTY_LONG_ARRAY);
     }
 
     /**
-     * Stops loading images, kills the image loader thread and clears all caches.
+     * Stops loading images for this screen.  The photos stay cached by the
+     * service for other screens.
      */
     public void stop() {
         pause();
-
-        if (mLoaderThread != null) {
-            mLoaderThread.quit();
-            mLoaderThread = null;
-        }
-
-        mPendingRequests.clear();
-        mBitmapCache.clear();
+        cancelPrefetch();
+        clear();
+        mService.unregister(this);
     }
 
     public void clear() {
         mPendingRequests.clear();
-        mBitmapCache.clear();
+        mRequestTimes.clear();
+        mDisplayedPhotos.clear();
+    }
+
+    /**
+     * Returns the number of photo requests that were served from the cache,
+     * i.e. the number of decodes avoided.  The cache is shared by all screens.
+     */
+    public int getCacheHitCount() {
+        return mService.getMetrics().cacheHits.get();
+    }
+
+    /**
+     * Returns the number of photo requests that were not in the cache.
+     */
+    public int getCacheMissCount() {
+        return mService.getMetrics().cacheMisses.get();
+    }
+
+    /**
+     * Returns the number of photos that were dropped from the strong tier of
+     * the cache to stay within its memory budget.
+     */
+    public int getCacheEvictionCount() {
+        return mService.getCache().getEvictionCount();
     }
 
     /**
@@ -243,21 +313,22 @@ public class ContactPhotoLoader implements Callback {
         switch (msg.what) {
             case MESSAGE_REQUEST_LOADING: {
                 mLoadingRequested = false;
-                if (!mPaused) {
-                    if (mLoaderThread == null) {
-                        mLoaderThread = new LoaderThread(mContext.getContentResolver());
-                        mLoaderThread.start();
-                    }
-
-                    mLoaderThread.requestLoading();
+                if (!mPaused || mPrefetchIds.get().length != 0) {
+                    // Again, in case the screen was stopped and is used anew
+                    mService.register(this);
+                    mService.requestLoading();
                 }
                 return true;
             }
 
             case MESSAGE_PHOTOS_LOADED: {
+                mService.releaseEvictedPhotos();
                 if (!mPaused) {
                     processLoadedImages();
                 }
+                if (mPrefetchIds.get().length != 0) {
+                    requestLoading();
+                }
                 return true;
             }
         }
@@ -276,6 +347,12 @@ public class ContactPhotoLoader implements Callback {
             boolean loaded = loadCachedPhoto(view, photoId);
             if (loaded) {
                 iterator.remove();
+                Long requestTime = mRequestTimes.remove(view);
+                if (requestTime != null && mDisplayedPhotos.containsKey(view)) {
+                    ContactPhotoMetrics metrics = mService.getMetrics();
+                    metrics.deliveries.incrementAndGet();
+                    metrics.deliveryTime.add(SystemClock.uptimeMillis() - requestTime);
+                }
             }
         }
 
@@ -285,135 +362,46 @@ public class ContactPhotoLoader implements Callback {
     }
 
     /**
-     * Stores the supplied bitmap in cache.
+     * Returns whether one of the views of this screen shows the bitmap.
+     * Called on the main thread.
      */
-    private void cacheBitmap(long id, byte[] bytes) {
-        if (mPaused) {
-            return;
-        }
-
-        BitmapHolder holder = new BitmapHolder();
-        holder.state = BitmapHolder.LOADED;
-        if (bytes != null) {
-            try {
-                Bitmap bitmap = BitmapFactory.decodeByteArray(bytes, 0, bytes.length, null);
-                holder.bitmapRef = new SoftReference<Bitmap>(bitmap);
-            } catch (OutOfMemoryError e) {
-                // Do nothing - the photo will appear to be missing
-            }
-        }
-        mBitmapCache.put(id, holder);
+    boolean isDisplaying(Bitmap bitmap) {
+        return mDisplayedPhotos.containsValue(bitmap);
     }
 
-    /**
-     * Populates an array of photo IDs that need to be loaded.
-     */
-    private void obtainPhotoIdsToLoad(ArrayList<Long> photoIds,
-            ArrayList<String> photoIdsAsStrings) {
-        photoIds.clear();
-        photoIdsAsStrings.clear();
-
-        /*
-         * Since the call is made from the loader thread, the map could be
-         * changing during the iteration. That's not really a problem:
-         * ConcurrentHashMap will allow those changes to happen without throwing
-         * exceptions. Since we may miss some requests in the situation of
-         * concurrent change, we will need to check the map again once loading
-         * is complete.
-         */
-        Iterator<Long> iterator = mPendingRequests.values().iterator();
-        while (iterator.hasNext()) {
-            Long id = iterator.next();
-            BitmapHolder holder = mBitmapCache.get(id);
-            if (holder != null && holder.state == BitmapHolder.NEEDED) {
-                // Assuming atomic behavior
-                holder.state = BitmapHolder.LOADING;
-                photoIds.add(id);
-                photoIdsAsStrings.add(id.toString());
-            }
-        }
+    boolean isPaused() {
+        return mPaused;
     }
 
     /**
-     * The thread that performs loading of photos from the database.
+     * Returns the photo IDs the views of this screen are waiting for.  May
+     * change while being iterated.
      */
-    private class LoaderThread extends HandlerThread implements Callback {
-        private final ContentResolver mResolver;
-        private final StringBuilder mStringBuilder = new StringBuilder();
-        private final ArrayList<Long> mPhotoIds = Lists.newArrayList();
-        private final ArrayList<String> mPhotoIdsAsStrings = Lists.newArrayList();
-        private Handler mLoaderThreadHandler;
-
-        public LoaderThread(ContentResolver resolver) {
-            super(LOADER_THREAD_NAME);
-            mResolver = resolver;
-        }
-
-        /**
-         * Sends a message to this thread to load requested photos.
-         */
-        public void requestLoading() {
-            if (mLoaderThreadHandler == null) {
-                mLoaderThreadHandler = new Handler(getLooper(), this);
-            }
-            mLoaderThreadHandler.sendEmptyMessage(0);
-        }
-
-        /**
-         * Receives the above message, loads photos and then sends a message
-         * to the main thread to process them.
-         */
-        public boolean handleMessage(Message msg) {
-            loadPhotosFromDatabase();
-            mMainThreadHandler.sendEmptyMessage(MESSAGE_PHOTOS_LOADED);
-            return true;
-        }
+    Collection<Long> getRequestedPhotoIds() {
+        return mPendingRequests.values();
+    }
 
-        private void loadPhotosFromDatabase() {
-            obtainPhotoIdsToLoad(mPhotoIds, mPhotoIdsAsStrings);
+    boolean isWaitingFor(long photoId) {
+        return mPendingRequests.containsValue(photoId);
+    }
 
-            int count = mPhotoIds.size();
-            if (count == 0) {
-                return;
-            }
+    long[] getPrefetchPhotoIds() {
+        return mPrefetchIds.get();
+    }
 
-            mStringBuilder.setLength(0);
-            mStringBuilder.append(Photo._ID + " IN(");
-            for (int i = 0; i < count; i++) {
-                if (i != 0) {
-                    mStringBuilder.append(',');
-                }
-                mStringBuilder.append('?');
-            }
-            mStringBuilder.append(')');
-
-            Cursor cursor = null;
-            try {
-                cursor = mResolver.query(Data.CONTENT_URI,
-                        COLUMNS,
-                        mStringBuilder.toString(),
-                        mPhotoIdsAsStrings.toArray(EMPTY_STRING_ARRAY),
-                        null);
-
-                if (cursor != null) {
-                    while (cursor.moveToNext()) {
-                        Long id = cursor.getLong(0);
-                        byte[] bytes = cursor.getBlob(1);
-                        cacheBitmap(id, bytes);
-                        mPhotoIds.remove(id);
-                    }
-                }
-            } finally {
-                if (cursor != null) {
-                    cursor.close();
-                }
-            }
+    /**
+     * Removes the first {@code count} photos from the prefetch list, unless
+     * it has been replaced since {@code ids} were obtained.
+     */
+    void removePrefetchPhotoIds(long[] ids, int count) {
+        mPrefetchIds.compareAndSet(ids,
+                count == ids.length ? EMPTY_LONG_ARRAY : Arrays.copyOfRange(ids, count, ids.length));
+    }
 
-            // Remaining photos were not found in the database - mark the cache accordingly.
-            count = mPhotoIds.size();
-            for (int i = 0; i < count; i++) {
-                cacheBitmap(mPhotoIds.get(i), null);
-            }
-        }
+    /**
+     * Tells the main thread that some photos have been loaded.
+     */
+    void notifyPhotosLoaded() {
+        mMainThreadHandler.sendEmptyMessage(MESSAGE_PHOTOS_LOADED);
     }
 }
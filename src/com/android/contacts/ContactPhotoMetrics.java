@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Counters and latency histograms of the contact photo pipeline, cheap enough
+ * to be always on.  Updated from the loader, decoding and main threads; all
+ * methods are thread-safe.
+ */
+public class ContactPhotoMetrics {
+
+    /**
+     * Photos asked for by views that were cached, and those that had to be
+     * loaded.  Counted once per request, however often the view is checked
+     * while its photo loads.
+     */
+    final AtomicInteger cacheHits = new AtomicInteger();
+    final AtomicInteger cacheMisses = new AtomicInteger();
+
+    /** Photos read from thumbnails on disk instead of the database. */
+    final AtomicInteger diskHits = new AtomicInteger();
+
+    /** Database queries, and the photos asked for by them. */
+    final AtomicInteger queries = new AtomicInteger();
+    final AtomicInteger queriedPhotos = new AtomicInteger();
+
+    /** Photos decoded from database bytes, and those that could not be. */
+    final AtomicInteger decodes = new AtomicInteger();
+    final AtomicInteger decodeFailures = new AtomicInteger();
+
+    /** Photos dropped before loading since no view wanted them anymore. */
+    final AtomicInteger staleRequests = new AtomicInteger();
+
+    /** Photos set on views once loaded. */
+    final AtomicInteger deliveries = new AtomicInteger();
+
+    final LatencyHistogram queryTime = new LatencyHistogram("query");
+    final LatencyHistogram decodeTime = new LatencyHistogram("decode");
+    final LatencyHistogram diskReadTime = new LatencyHistogram("disk read");
+
+    /** From a view asking for a photo that is not cached to showing it. */
+    final LatencyHistogram deliveryTime = new LatencyHistogram("delivery");
+
+    public void reset() {
+        cacheHits.set(0);
+        cacheMisses.set(0);
+        diskHits.set(0);
+        queries.set(0);
+        queriedPhotos.set(0);
+        decodes.set(0);
+        decodeFailures.set(0);
+        staleRequests.set(0);
+        deliveries.set(0);
+        queryTime.reset();
+        decodeTime.reset();
+        diskReadTime.reset();
+        deliveryTime.reset();
+    }
+
+    /**
+     * Prints the counters and histograms, after the cache statistics.
+     */
+    public void dump(PrintWriter pw, ContactPhotoCache cache) {
+        int hits = cacheHits.get();
+        int misses = cacheMisses.get();
+        pw.println("Contact photos:");
+        pw.print("  cache: ");
+        pw.print(cache.size() / 1024);
+        pw.print("/");
+        pw.print(cache.maxSize() / 1024);
+        pw.print("KB hits=");
+        pw.print(hits);
+        pw.print(" misses=");
+        pw.print(misses);
+        if (hits + misses != 0) {
+            pw.print(" (");
+            pw.print(hits * 100L / (hits + misses));
+            pw.print("% hit)");
+        }
+        pw.print(" evictions=");
+        pw.println(cache.getEvictionCount());
+        pw.print("  disk hits=");
+        pw.print(diskHits.get());
+        pw.print(" queries=");
+        pw.print(queries.get());
+        pw.print(" (");
+        pw.print(queriedPhotos.get());
+        pw.println(" photos)");
+        pw.print("  decodes=");
+        pw.print(decodes.get());
+        pw.print(" failed=");
+        pw.print(decodeFailures.get());
+        pw.print(" stale=");
+        pw.print(staleRequests.get());
+        pw.print(" delivered=");
+        pw.println(deliveries.get());
+        queryTime.dump(pw);
+        decodeTime.dump(pw);
+        diskReadTime.dump(pw);
+        deliveryTime.dump(pw);
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts;
+
+import android.os.SystemClock;
+import android.widget.AbsListView;
+import android.widget.ListView;
+
+/**
+ * Follows the scrolling of a list and asks a {@link ContactPhotoLoader} to
+ * prefetch the photos of the rows about to come into view.  The faster the
+ * list moves, the further ahead it looks; rows behind the direction of
+ * movement are dropped from the prefetch.  To be called from the list's
+ * {@link AbsListView.OnScrollListener}.
+ */
+public class ContactPhotoPrefetcher {
+
+    /**
+     * Gives the photo IDs of list rows.
+     */
+    public interface PhotoIdProvider {
+        /**
+         * Returns the photo ID of the row at the adapter position, or 0 if it
+         * has none.
+         */
+        long getPhotoId(int position);
+    }
+
+    /** How far ahead to look, in terms of the current scroll speed. */
+    private static final int LOOKAHEAD_MS = 750;
+
+    /** Upper bound of rows to prefetch, however fast the list moves. */
+    static final int MAX_PREFETCH_ROWS = 48;
+
+    /** Weight of the newest sample in the smoothed velocity, in percent. */
+    private static final int VELOCITY_WEIGHT = 50;
+
+    private final ContactPhotoLoader mLoader;
+    private final PhotoIdProvider mProvider;
+
+    private final long[] mPhotoIds = new long[MAX_PREFETCH_ROWS];
+
+    private int mLastFirstVisible = -1;
+    private long mLastTime;
+
+    /** Smoothed scroll velocity in rows per second, negative when moving up. */
+    private int mVelocity;
+
+    public ContactPhotoPrefetcher(ContactPhotoLoader loader, PhotoIdProvider provider) {
+        mLoader = loader;
+        mProvider = provider;
+    }
+
+    public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+            int totalItemCount) {
+        if (firstVisibleItem == mLastFirstVisible || visibleItemCount == 0) {
+            return;
+        }
+        long now = SystemClock.uptimeMillis();
+        if (mLastFirstVisible != -1 && now > mLastTime) {
+            int sample = (int) ((firstVisibleItem - mLastFirstVisible) * 1000L
+                    / (now - mLastTime));
+            mVelocity = (sample * VELOCITY_WEIGHT + mVelocity * (100 - VELOCITY_WEIGHT)) / 100;
+        }
+        mLastFirstVisible = firstVisibleItem;
+        mLastTime = now;
+
+        // List positions count header views, adapter positions do not
+        int headers = view instanceof ListView ? ((ListView) view).getHeaderViewsCount() : 0;
+        int count = totalItemCount - headers;
+        int firstRow = Math.max(0, firstVisibleItem - headers);
+        int lastRow = Math.min(firstVisibleItem + visibleItemCount - headers, count);
+        prefetch(firstRow, lastRow, count);
+    }
+
+    public void onScrollStateChanged(AbsListView view, int scrollState) {
+        if (scrollState == AbsListView.OnScrollListener.SCROLL_STATE_IDLE) {
+            // The next scroll starts from rest
+            mLastFirstVisible = -1;
+            mVelocity = 0;
+        }
+    }
+
+    /**
+     * Forgets the scrolling so far and cancels the prefetching, e.g. when the
+     * list no longer shows photos.
+     */
+    public void reset() {
+        mLastFirstVisible = -1;
+        mVelocity = 0;
+        mLoader.cancelPrefetch();
+    }
+
+    /**
+     * Returns the rows to prefetch for the given velocity, as the start
+     * position and the end position (exclusive) in adapter positions.  Rows
+     * nearest to the visible ones come first in the direction of movement.
+     */
+    static int[] getPrefetchRange(int firstRow, int lastRow, int count, int velocity) {
+        int rows = Math.min(MAX_PREFETCH_ROWS,
+                (lastRow - firstRow) + Math.abs(velocity) * LOOKAHEAD_MS / 1000);
+        if (velocity < 0) {
+            return new int[] { Math.max(0, firstRow - rows), Math.max(0, firstRow) };
+        }
+        return new int[] { Math.min(count, lastRow), Math.min(count, lastRow + rows) };
+    }
+
+    private void prefetch(int firstRow, int lastRow, int count) {
+        int[] range = getPrefetchRange(firstRow, lastRow, count, mVelocity);
+        int photos = 0;
+        if (mVelocity < 0) {
+            for (int position = range[1] - 1; position >= range[0]; position--) {
+                photos = addPhotoId(position, photos);
+            }
+        } else {
+            for (int position = range[0]; position < range[1]; position++) {
+                photos = addPhotoId(position, photos);
+            }
+        }
+        mLoader.prefetchPhotos(mPhotoIds, photos);
+    }
+
+    private int addPhotoId(int position, int photos) {
+        long photoId = mProvider.getPhotoId(position);
+        if (photoId != 0) {
+            mPhotoIds[photos++] = photoId;
+        }
+        return photos;
+    }
+}
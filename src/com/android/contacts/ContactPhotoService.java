@@ -0,0 +1,940 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts;
+
+import com.google.android.collect.Lists;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Process;
+import android.os.SystemClock;
+import android.os.Handler.Callback;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.Data;
+import android.provider.ContactsContract.Contacts.Photo;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Loads contact photos for every screen of the process, so that a photo is
+ * decoded once and then found in a single {@link ContactPhotoCache} by all of
+ * them.  Screens use it through a {@link ContactPhotoLoader}, which keeps
+ * track of their views.  A loader thread queries the photos that registered
+ * loaders wait for in chunks, and a pool of threads decodes them; both run
+ * while any loader is registered.
+ *
+ * Registration, {@link #requestLoading} and {@link #releaseEvictedPhotos} are
+ * for the main thread.  The loader and decoding threads only use the
+ * concurrent hash maps, the thread-safe caches and the methods loaders offer
+ * for them.
+ */
+public class ContactPhotoService {
+
+    private static final String LOADER_THREAD_NAME = "ContactPhotoLoader";
+
+    private static final String DECODER_THREAD_NAME = "ContactPhotoDecoder";
+
+    private static final String VERSIONS_THREAD_NAME = "ContactPhotoVersions";
+
+    private static final String THUMBNAIL_DIRECTORY = "photo_thumbnails";
+
+    /**
+     * Number of photos queried at a time.  Each chunk is shown as soon as its
+     * photos are decoded.
+     */
+    private static final int QUERY_CHUNK_SIZE = 8;
+
+    /**
+     * Upper bound of threads decoding photos, whatever the number of cores.
+     */
+    private static final int MAX_DECODER_THREADS = 4;
+
+    /**
+     * Number of prefetched photos loaded at a time, so that photos of views
+     * bound in the meantime do not wait long.
+     */
+    private static final int PREFETCH_BATCH_SIZE = 4;
+
+    /**
+     * Delay before the photo versions are reloaded after a change, so that a
+     * burst of changes, e.g. a sync, causes a single reload.
+     */
+    private static final long VERSIONS_RELOAD_DELAY_MS = 2000;
+
+    private static final String[] EMPTY_STRING_ARRAY = new String[0];
+
+    private static final String[] COLUMNS = new String[] {
+            Photo._ID, Photo.PHOTO, Data.DATA_VERSION };
+
+    private static final String[] VERSION_COLUMNS = new String[] { Data._ID, Data.DATA_VERSION };
+    private static final String VERSION_SELECTION = Data.MIMETYPE + "=?";
+    private static final String[] VERSION_SELECTION_ARGS =
+            new String[] { ContactsContract.CommonDataKinds.Photo.CONTENT_ITEM_TYPE };
+
+    /**
+     * Maintains the state of a particular photo that is not in the cache.
+     */
+    private static class BitmapHolder {
+        private static final int NEEDED = 0;
+        private static final int LOADING = 1;
+        /** Loaded, but the database contains no bytes for the photo. */
+        private static final int MISSING = 2;
+
+        int state;
+
+        /** Largest size in pixels of the views waiting for the photo. */
+        volatile int targetSize;
+
+        /** Loaded ahead of any view asking for it. */
+        boolean prefetch;
+    }
+
+    private static ContactPhotoService sInstance;
+
+    public static synchronized ContactPhotoService getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ContactPhotoService(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private final Context mContext;
+
+    /**
+     * Photos being loaded and photos known to be missing.  Entries of loaded
+     * photos are removed once the bitmap is in {@link #mCache}.
+     */
+    private final ConcurrentHashMap<Long, BitmapHolder> mPhotoStates =
+            new ConcurrentHashMap<Long, BitmapHolder>();
+
+    /**
+     * Decoded photos, each at the largest size it has been loaded for.
+     */
+    private final ContactPhotoCache mCache;
+
+    /**
+     * Photos whose cached bitmap is the whole photo, because it is smaller
+     * than the size it was decoded for.  A larger view gets the same bitmap.
+     */
+    private final Set<Long> mFullSizePhotos =
+            Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+
+    /**
+     * Thumbnails of photos decoded before, kept across process restarts.
+     */
+    private final ContactPhotoDiskCache mDiskCache;
+
+    /**
+     * Size photos are scaled down to, in pixels, if the view they are loaded
+     * for has not been laid out yet.
+     */
+    private final int mThumbnailSize;
+
+    /**
+     * Bitmaps that left {@link #mCache}, to be given to {@link #mBitmapPool} by
+     * the main thread if no view is showing them.
+     */
+    private final ConcurrentLinkedQueue<Bitmap> mEvictedPhotos =
+            new ConcurrentLinkedQueue<Bitmap>();
+
+    /**
+     * Bitmaps no longer used anywhere, to draw new thumbnails into.
+     */
+    private final ContactPhotoBitmapPool mBitmapPool;
+
+    /**
+     * Scratch space for decoding, one per decoding thread.
+     */
+    private final ThreadLocal<byte[]> mDecodeBuffer = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[16 * 1024];
+        }
+    };
+
+    private final Paint mScalePaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    private final CopyOnWriteArrayList<ContactPhotoLoader> mLoaders =
+            new CopyOnWriteArrayList<ContactPhotoLoader>();
+
+    private final ContactPhotoMetrics mMetrics = new ContactPhotoMetrics();
+
+    /**
+     * Size of the view a photo was last requested for, used for prefetched
+     * photos.
+     */
+    private volatile int mLastTargetSize;
+
+    /**
+     * Thread responsible for loading photos from the database. Created upon
+     * the first request.  Only used by the main thread.
+     */
+    private LoaderThread mLoaderThread;
+
+    private ContactPhotoService(Context context) {
+        this(context, ContactPhotoCache.create(context),
+                new ContactPhotoDiskCache(new File(context.getCacheDir(), THUMBNAIL_DIRECTORY),
+                        context.getResources().getInteger(R.integer.config_photo_disk_cache_kb)
+                                * 1024L),
+                context.getResources().getDimensionPixelSize(R.dimen.contact_photo_thumbnail_size),
+                new ContactPhotoBitmapPool(
+                        context.getResources().getInteger(R.integer.config_photo_pool_kb) * 1024));
+    }
+
+    /**
+     * Creates a service of its own, for tests.
+     */
+    ContactPhotoService(Context context, ContactPhotoCache cache,
+            ContactPhotoDiskCache diskCache, int thumbnailSize, ContactPhotoBitmapPool pool) {
+        mContext = context;
+        mCache = cache;
+        mDiskCache = diskCache;
+        mThumbnailSize = thumbnailSize;
+        mBitmapPool = pool;
+        mCache.setEvictionListener(new ContactPhotoCache.EvictionListener() {
+            public void onPhotoEvicted(long photoId, Bitmap bitmap) {
+                mEvictedPhotos.add(bitmap);
+            }
+        });
+    }
+
+    void register(ContactPhotoLoader loader) {
+        mLoaders.addIfAbsent(loader);
+    }
+
+    /**
+     * Removes a loader.  Once no loader is left, the loader thread is stopped
+     * and the cached photos become softly reachable, so that they are kept for
+     * the next screen only as long as memory allows.
+     */
+    void unregister(ContactPhotoLoader loader) {
+        mLoaders.remove(loader);
+        if (!mLoaders.isEmpty()) {
+            return;
+        }
+        if (mLoaderThread != null) {
+            mLoaderThread.stopLoading();
+            mLoaderThread.quit();
+            mLoaderThread = null;
+        }
+        mPhotoStates.clear();
+        mCache.trimToSoft();
+        mEvictedPhotos.clear();
+        mBitmapPool.clear();
+    }
+
+    /**
+     * Returns the photo if it is cached at a size fit for a view of the
+     * given size.
+     */
+    Bitmap getCachedPhoto(long photoId, int targetSize) {
+        Bitmap bitmap = mCache.get(photoId);
+        if (bitmap == null || (getSize(bitmap) < targetSize
+                && !mFullSizePhotos.contains(photoId))) {
+            return null;
+        }
+        return bitmap;
+    }
+
+    private static int getSize(Bitmap bitmap) {
+        return Math.max(bitmap.getWidth(), bitmap.getHeight());
+    }
+
+    /**
+     * Marks a photo that is not cached as needed by a view of the given size.
+     * A photo being loaded stays in flight, only its size is raised.  Returns
+     * false if the photo is known to be missing, in which case there is
+     * nothing to load.
+     */
+    boolean requestPhoto(long photoId, int targetSize) {
+        BitmapHolder holder = mPhotoStates.get(photoId);
+        if (holder == null) {
+            holder = new BitmapHolder();
+            mPhotoStates.put(photoId, holder);
+        } else if (holder.state == BitmapHolder.MISSING) {
+            return false;
+        }
+        holder.targetSize = Math.max(holder.targetSize, targetSize);
+        if (holder.state != BitmapHolder.LOADING) {
+            holder.state = BitmapHolder.NEEDED;
+        }
+        mLastTargetSize = targetSize;
+        return true;
+    }
+
+    /**
+     * Returns whether a photo is neither cached, nor being loaded, nor known
+     * to be missing.
+     */
+    boolean needsPrefetch(long photoId) {
+        return !mCache.contains(photoId) && !mPhotoStates.containsKey(photoId);
+    }
+
+    int getThumbnailSize() {
+        return mThumbnailSize;
+    }
+
+    /**
+     * Sends a message to the loader thread to load requested photos.
+     */
+    void requestLoading() {
+        if (mLoaderThread == null) {
+            mLoaderThread = new LoaderThread(mContext.getContentResolver());
+            mLoaderThread.start();
+        }
+        mLoaderThread.requestLoading();
+    }
+
+    /**
+     * Gives the photos evicted from the cache that no view of any loader is
+     * showing to the bitmap pool.
+     */
+    void releaseEvictedPhotos() {
+        Bitmap bitmap;
+        while ((bitmap = mEvictedPhotos.poll()) != null) {
+            if (!isDisplayed(bitmap)) {
+                mBitmapPool.release(bitmap);
+            }
+        }
+    }
+
+    private boolean isDisplayed(Bitmap bitmap) {
+        for (ContactPhotoLoader loader : mLoaders) {
+            if (loader.isDisplaying(bitmap)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public ContactPhotoCache getCache() {
+        return mCache;
+    }
+
+    public ContactPhotoMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Prints the state of the pipeline and its metrics.
+     */
+    public void dump(PrintWriter pw) {
+        mMetrics.dump(pw, mCache);
+        pw.print("  loaders=");
+        pw.print(mLoaders.size());
+        pw.print(" loading=");
+        pw.print(mPhotoStates.size());
+        LoaderThread loaderThread = mLoaderThread;
+        pw.print(" decodes pending=");
+        pw.println(loaderThread != null ? loaderThread.mDecodesPending.get() : 0);
+        pw.print("  pool=");
+        pw.print(mBitmapPool.size() / 1024);
+        pw.print("KB reused=");
+        pw.println(mBitmapPool.getReuseCount());
+    }
+
+    /**
+     * Decodes a photo no larger than it is needed for a view of the given size:
+     * whole powers of two are skipped while decoding, and the rest is scaled
+     * down into a bitmap from the pool if there is one.  Returns null if the
+     * photo cannot be decoded.
+     */
+    private Bitmap decodeThumbnail(byte[] bytes, int targetSize) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inTempStorage = mDecodeBuffer.get();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+        int sampleSize = 1;
+        while (Math.max(options.outWidth, options.outHeight) / (sampleSize * 2) >= targetSize) {
+            sampleSize *= 2;
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+
+        try {
+            Bitmap bitmap = BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+            if (bitmap == null) {
+                return null;
+            }
+            int width = bitmap.getWidth();
+            int height = bitmap.getHeight();
+            int size = Math.max(width, height);
+            if (size <= targetSize) {
+                return bitmap;
+            }
+            width = Math.max(1, width * targetSize / size);
+            height = Math.max(1, height * targetSize / size);
+            Bitmap thumbnail = mBitmapPool.acquire(width, height, Bitmap.Config.ARGB_8888);
+            if (thumbnail != null) {
+                thumbnail.eraseColor(0);
+            } else {
+                thumbnail = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            }
+            new Canvas(thumbnail).drawBitmap(bitmap, null, new Rect(0, 0, width, height),
+                    mScalePaint);
+            bitmap.recycle();
+            return thumbnail;
+        } catch (OutOfMemoryError e) {
+            // Do nothing - the photo will appear to be missing
+            return null;
+        }
+    }
+
+    /**
+     * Stores the supplied bitmap, decoded for the given size, in cache unless
+     * a larger one is cached already.  A null bitmap marks the photo as
+     * missing.
+     */
+    private void cacheBitmap(long id, Bitmap bitmap, int targetSize) {
+        if (bitmap != null) {
+            Bitmap cached = mCache.peek(id);
+            if (cached == null || getSize(cached) < getSize(bitmap)) {
+                if (getSize(bitmap) < targetSize) {
+                    mFullSizePhotos.add(id);
+                } else {
+                    mFullSizePhotos.remove(id);
+                }
+                mCache.put(id, bitmap);
+            } else {
+                // A larger bitmap was cached in the meantime
+                mEvictedPhotos.add(bitmap);
+            }
+            mPhotoStates.remove(id);
+        } else {
+            BitmapHolder holder = new BitmapHolder();
+            holder.state = BitmapHolder.MISSING;
+            mPhotoStates.put(id, holder);
+        }
+    }
+
+    /**
+     * Populates an array of photo IDs that need to be loaded: those of the
+     * views waiting for them, or if there are none, some to prefetch.
+     *
+     * @param prefetch whether prefetching photos is allowed
+     */
+    private void obtainPhotoIdsToLoad(ArrayList<Long> photoIds,
+            ArrayList<String> photoIdsAsStrings, boolean prefetch) {
+        photoIds.clear();
+        photoIdsAsStrings.clear();
+
+        for (ContactPhotoLoader loader : mLoaders) {
+            if (!loader.isPaused()) {
+                obtainRequestedPhotoIds(loader, photoIds, photoIdsAsStrings);
+            }
+        }
+        if (!prefetch) {
+            return;
+        }
+        for (ContactPhotoLoader loader : mLoaders) {
+            if (!photoIds.isEmpty()) {
+                break;
+            }
+            obtainPrefetchPhotoIds(loader, photoIds, photoIdsAsStrings);
+        }
+    }
+
+    private void obtainRequestedPhotoIds(ContactPhotoLoader loader, ArrayList<Long> photoIds,
+            ArrayList<String> photoIdsAsStrings) {
+        /*
+         * Since the call is made from the loader thread, the map could be
+         * changing during the iteration. That's not really a problem:
+         * ConcurrentHashMap will allow those changes to happen without throwing
+         * exceptions. Since we may miss some requests in the situation of
+         * concurrent change, we will need to check the map again once loading
+         * is complete.
+         */
+        Iterator<Long> iterator = loader.getRequestedPhotoIds().iterator();
+        while (iterator.hasNext()) {
+            Long id = iterator.next();
+            if (startLoading(id)) {
+                photoIds.add(id);
+                photoIdsAsStrings.add(id.toString());
+            }
+        }
+    }
+
+    /**
+     * Marks a requested photo as being loaded.  Returns false if it is not
+     * needed, e.g. because it is in flight already.
+     */
+    boolean startLoading(long photoId) {
+        BitmapHolder holder = mPhotoStates.get(photoId);
+        if (holder != null && holder.state == BitmapHolder.NEEDED) {
+            // Assuming atomic behavior
+            holder.state = BitmapHolder.LOADING;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Takes the next few photos off the prefetch list of a loader.  Photos
+     * that have been requested or cached since they were added are skipped.
+     */
+    private void obtainPrefetchPhotoIds(ContactPhotoLoader loader, ArrayList<Long> photoIds,
+            ArrayList<String> photoIdsAsStrings) {
+        long[] ids = loader.getPrefetchPhotoIds();
+        int taken = 0;
+        while (taken < ids.length && photoIds.size() < PREFETCH_BATCH_SIZE) {
+            Long id = ids[taken++];
+            if (mCache.contains(id)) {
+                continue;
+            }
+            BitmapHolder holder = new BitmapHolder();
+            holder.state = BitmapHolder.LOADING;
+            holder.targetSize = mLastTargetSize;
+            holder.prefetch = true;
+            if (mPhotoStates.putIfAbsent(id, holder) == null) {
+                photoIds.add(id);
+                photoIdsAsStrings.add(id.toString());
+            }
+        }
+        loader.removePrefetchPhotoIds(ids, taken);
+    }
+
+    /**
+     * Returns whether a photo being loaded is still needed, i.e. it is being
+     * prefetched or a view is still waiting for it.  Views may have been
+     * recycled for other photos since the loading started.  A photo that is
+     * not needed anymore goes back to {@link BitmapHolder#NEEDED}, to be
+     * loaded again should a view ask for it.
+     */
+    private boolean isStillWanted(long photoId) {
+        BitmapHolder holder = mPhotoStates.get(photoId);
+        if (holder == null || holder.state == BitmapHolder.MISSING) {
+            return false;
+        }
+        if (holder.prefetch) {
+            return true;
+        }
+        for (ContactPhotoLoader loader : mLoaders) {
+            if (loader.isWaitingFor(photoId)) {
+                return true;
+            }
+        }
+        holder.state = BitmapHolder.NEEDED;
+        return false;
+    }
+
+    private void notifyPhotosLoaded() {
+        for (ContactPhotoLoader loader : mLoaders) {
+            loader.notifyPhotosLoaded();
+        }
+    }
+
+    private static final ThreadFactory sDecoderThreadFactory = new ThreadFactory() {
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        public Thread newThread(final Runnable runnable) {
+            return new Thread(new Runnable() {
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, DECODER_THREAD_NAME + " #" + mCount.incrementAndGet());
+        }
+    };
+
+    /**
+     * The thread that performs loading of photos from the database.  It
+     * queries photos in chunks and has them decoded by a pool of threads, one
+     * per core.
+     */
+    private class LoaderThread extends HandlerThread implements Callback {
+        private final ContentResolver mResolver;
+        private final StringBuilder mStringBuilder = new StringBuilder();
+        private final ArrayList<Long> mPhotoIds = Lists.newArrayList();
+        private final ArrayList<String> mPhotoIdsAsStrings = Lists.newArrayList();
+        private final ArrayList<Long> mQueryIds = Lists.newArrayList();
+        private final ArrayList<String> mQueryArgs = Lists.newArrayList();
+        private Handler mLoaderThreadHandler;
+        private volatile boolean mStopped;
+
+        private final ThreadPoolExecutor mDecoder;
+
+        /**
+         * Photos handed to {@link #mDecoder} and not decoded yet.
+         */
+        private final AtomicInteger mDecodesPending = new AtomicInteger();
+
+        /**
+         * Data version of every photo row, which identifies the thumbnails on
+         * disk.  Replaced as a whole by {@link #loadPhotoVersions}, which runs
+         * in the background after the provider reports a change.  Until then
+         * the versions of the photos being loaded are checked chunk by chunk.
+         */
+        private volatile ConcurrentHashMap<Long, Integer> mPhotoVersions =
+                new ConcurrentHashMap<Long, Integer>();
+        private volatile boolean mPhotoVersionsStale = true;
+
+        /** Changes reported by the provider, to tell if a reload missed some. */
+        private final AtomicInteger mChanges = new AtomicInteger();
+
+        /**
+         * Reloads the photo versions and trims the disk cache at the lowest
+         * priority, away from the loading of photos.
+         */
+        private final HandlerThread mVersionsThread =
+                new HandlerThread(VERSIONS_THREAD_NAME, Process.THREAD_PRIORITY_LOWEST);
+        private final Handler mVersionsHandler;
+
+        /**
+         * The provider only reports changes for the whole authority, so every
+         * change of a contact is taken as a possible change of a photo.
+         */
+        private final ContentObserver mObserver = new ContentObserver(null) {
+            @Override
+            public void onChange(boolean selfChange) {
+                mChanges.incrementAndGet();
+                mPhotoVersionsStale = true;
+                mVersionsHandler.removeMessages(0);
+                mVersionsHandler.sendEmptyMessageDelayed(0, VERSIONS_RELOAD_DELAY_MS);
+            }
+        };
+
+        public LoaderThread(ContentResolver resolver) {
+            super(LOADER_THREAD_NAME);
+            mResolver = resolver;
+            mVersionsThread.start();
+            mVersionsHandler = new Handler(mVersionsThread.getLooper(), new Callback() {
+                public boolean handleMessage(Message msg) {
+                    loadPhotoVersions();
+                    return true;
+                }
+            });
+            mVersionsHandler.sendEmptyMessage(0);
+            mResolver.registerContentObserver(ContactsContract.AUTHORITY_URI, true, mObserver);
+
+            int threads = Math.max(1, Math.min(MAX_DECODER_THREADS,
+                    Runtime.getRuntime().availableProcessors()));
+            mDecoder = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), sDecoderThreadFactory);
+            mDecoder.allowCoreThreadTimeOut(true);
+        }
+
+        /**
+         * Makes photos that are still being loaded be dropped.
+         */
+        public void stopLoading() {
+            mStopped = true;
+            mResolver.unregisterContentObserver(mObserver);
+            mVersionsThread.quit();
+            mDecoder.shutdownNow();
+        }
+
+        /**
+         * Sends a message to this thread to load requested photos.
+         */
+        public void requestLoading() {
+            if (mLoaderThreadHandler == null) {
+                mLoaderThreadHandler = new Handler(getLooper(), this);
+            }
+            mLoaderThreadHandler.sendEmptyMessage(0);
+        }
+
+        /**
+         * Receives the above message and loads photos.  The loaders are told
+         * to process them as each chunk is decoded.
+         */
+        public boolean handleMessage(Message msg) {
+            loadPhotosFromDatabase();
+            return true;
+        }
+
+        /**
+         * Reloads the data versions of all photo rows and drops the thumbnails
+         * of photos that have since been changed or deleted.  Runs on the
+         * versions thread.
+         */
+        private void loadPhotoVersions() {
+            int changes = mChanges.get();
+            Cursor cursor = mResolver.query(Data.CONTENT_URI, VERSION_COLUMNS, VERSION_SELECTION,
+                    VERSION_SELECTION_ARGS, null);
+            if (cursor == null) {
+                return;
+            }
+            ConcurrentHashMap<Long, Integer> versions = new ConcurrentHashMap<Long, Integer>();
+            try {
+                while (cursor.moveToNext()) {
+                    versions.put(cursor.getLong(0), cursor.getInt(1));
+                }
+            } finally {
+                cursor.close();
+            }
+            mPhotoVersions = versions;
+            // A change reported during the query has scheduled another reload
+            mPhotoVersionsStale = changes != mChanges.get();
+            if (!mStopped) {
+                mDiskCache.retain(versions);
+            }
+        }
+
+        /**
+         * Reads the current data versions of the photos of a chunk, for use
+         * while the versions of all photos are being reloaded.  Photos whose
+         * row is gone are forgotten, so that they are not read from disk.
+         */
+        private void loadChunkVersions(int start, int end) {
+            mQueryArgs.clear();
+            for (int i = start; i < end; i++) {
+                mQueryArgs.add(mPhotoIdsAsStrings.get(i));
+            }
+            Cursor cursor = mResolver.query(Data.CONTENT_URI, VERSION_COLUMNS,
+                    buildIdSelection(mQueryArgs.size()), mQueryArgs.toArray(EMPTY_STRING_ARRAY),
+                    null);
+            if (cursor == null) {
+                return;
+            }
+            ConcurrentHashMap<Long, Integer> versions = mPhotoVersions;
+            for (int i = start; i < end; i++) {
+                versions.remove(mPhotoIds.get(i));
+            }
+            try {
+                while (cursor.moveToNext()) {
+                    versions.put(cursor.getLong(0), cursor.getInt(1));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        /**
+         * Returns a selection of the photo rows with the given number of IDs
+         * as arguments.
+         */
+        private String buildIdSelection(int count) {
+            mStringBuilder.setLength(0);
+            mStringBuilder.append(Photo._ID + " IN(");
+            for (int i = 0; i < count; i++) {
+                if (i != 0) {
+                    mStringBuilder.append(',');
+                }
+                mStringBuilder.append('?');
+            }
+            mStringBuilder.append(')');
+            return mStringBuilder.toString();
+        }
+
+        private void deliver(long id, Bitmap bitmap, int targetSize) {
+            if (!mStopped) {
+                cacheBitmap(id, bitmap, targetSize);
+            }
+        }
+
+        private int getRequestedSize(long photoId) {
+            BitmapHolder holder = mPhotoStates.get(photoId);
+            return holder != null && holder.targetSize > 0 ? holder.targetSize : mThumbnailSize;
+        }
+
+        private void loadPhotosFromDatabase() {
+            // Prefetching waits for the decoding of photos of views to finish
+            obtainPhotoIdsToLoad(mPhotoIds, mPhotoIdsAsStrings, mDecodesPending.get() == 0);
+
+            int count = mPhotoIds.size();
+            if (count == 0) {
+                if (mDecodesPending.get() == 0) {
+                    notifyPhotosLoaded();
+                }
+                return;
+            }
+
+            for (int start = 0; start < count && !mStopped; start += QUERY_CHUNK_SIZE) {
+                loadChunk(start, Math.min(count, start + QUERY_CHUNK_SIZE));
+            }
+        }
+
+        private void loadChunk(int start, int end) {
+            if (mPhotoVersionsStale) {
+                loadChunkVersions(start, end);
+            }
+            ConcurrentHashMap<Long, Integer> versions = mPhotoVersions;
+            Chunk chunk = new Chunk();
+            mQueryIds.clear();
+            mQueryArgs.clear();
+            for (int i = start; i < end; i++) {
+                Long id = mPhotoIds.get(i);
+                if (!isStillWanted(id)) {
+                    mMetrics.staleRequests.incrementAndGet();
+                    continue;
+                }
+                // Thumbnails on disk save the query and the full-size decode
+                Integer version = versions.get(id);
+                int size = getRequestedSize(id);
+                if (version != null && mDiskCache.contains(id, version, size)) {
+                    mMetrics.diskHits.incrementAndGet();
+                    chunk.decode(id, null, version, size);
+                } else {
+                    mQueryIds.add(id);
+                    mQueryArgs.add(mPhotoIdsAsStrings.get(i));
+                }
+            }
+
+            int count = mQueryIds.size();
+            if (count != 0) {
+                mMetrics.queries.incrementAndGet();
+                mMetrics.queriedPhotos.addAndGet(count);
+                long queryStart = SystemClock.uptimeMillis();
+                Cursor cursor = null;
+                try {
+                    cursor = mResolver.query(Data.CONTENT_URI,
+                            COLUMNS,
+                            buildIdSelection(count),
+                            mQueryArgs.toArray(EMPTY_STRING_ARRAY),
+                            null);
+
+                    if (cursor != null) {
+                        while (cursor.moveToNext()) {
+                            Long id = cursor.getLong(0);
+                            byte[] bytes = cursor.getBlob(1);
+                            int version = cursor.getInt(2);
+                            if (bytes != null) {
+                                versions.put(id, version);
+                                chunk.decode(id, bytes, version, getRequestedSize(id));
+                            } else {
+                                deliver(id, null, 0);
+                            }
+                            mQueryIds.remove(id);
+                        }
+                    }
+                } finally {
+                    if (cursor != null) {
+                        cursor.close();
+                    }
+                }
+                mMetrics.queryTime.add(SystemClock.uptimeMillis() - queryStart);
+
+                // Remaining photos were not found in the database - mark the cache accordingly.
+                count = mQueryIds.size();
+                for (int i = 0; i < count; i++) {
+                    deliver(mQueryIds.get(i), null, 0);
+                }
+            }
+            chunk.close();
+        }
+
+        /**
+         * Runs on a decoding thread.  Photos whose views have been recycled in
+         * the meantime are dropped without decoding.
+         *
+         * @param bytes the photo, or null to read the thumbnail from disk
+         * @param size the size in pixels to decode the photo for
+         */
+        private void decodePhoto(long id, byte[] bytes, int version, int size) {
+            if (mStopped) {
+                return;
+            }
+            if (!isStillWanted(id)) {
+                mMetrics.staleRequests.incrementAndGet();
+                return;
+            }
+            long start = SystemClock.uptimeMillis();
+            Bitmap bitmap;
+            if (bytes == null) {
+                bitmap = mDiskCache.get(id, version, size);
+                mMetrics.diskReadTime.add(SystemClock.uptimeMillis() - start);
+                if (bitmap == null) {
+                    // Unreadable, so it is loaded from the database next time
+                    mDiskCache.remove(id, version, size);
+                    BitmapHolder holder = mPhotoStates.get(id);
+                    if (holder != null) {
+                        holder.state = BitmapHolder.NEEDED;
+                    }
+                    return;
+                }
+            } else {
+                bitmap = decodeThumbnail(bytes, size);
+                mMetrics.decodeTime.add(SystemClock.uptimeMillis() - start);
+                mMetrics.decodes.incrementAndGet();
+                if (bitmap != null) {
+                    mDiskCache.put(id, version, size, bitmap);
+                } else {
+                    mMetrics.decodeFailures.incrementAndGet();
+                }
+            }
+            deliver(id, bitmap, size);
+        }
+
+        /**
+         * The photos of one query.  The loaders are told about them once all
+         * of them are decoded.
+         */
+        private final class Chunk {
+            /** Decodes not finished yet, plus one until the chunk is closed. */
+            private final AtomicInteger mPending = new AtomicInteger(1);
+
+            public void decode(final long id, final byte[] bytes, final int version,
+                    final int size) {
+                mPending.incrementAndGet();
+                mDecodesPending.incrementAndGet();
+                try {
+                    mDecoder.execute(new Runnable() {
+                        public void run() {
+                            try {
+                                decodePhoto(id, bytes, version, size);
+                            } finally {
+                                mDecodesPending.decrementAndGet();
+                                finish();
+                            }
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    // Stopped
+                    mDecodesPending.decrementAndGet();
+                    finish();
+                }
+            }
+
+            public void close() {
+                finish();
+            }
+
+            private void finish() {
+                if (mPending.decrementAndGet() == 0 && !mStopped) {
+                    notifyPhotosLoaded();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,324 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * In-memory inverted index over the searchable text of raw contacts: names,
+ * phonetic names, nicknames, organizations, emails and notes.  Every word of
+ * every value is a term; a query matches a contact if each of its words is a
+ * prefix of one of the terms of the contact's raw contacts.  Matches are
+ * ranked by the fields they are found in, names first.  All methods are
+ * thread-safe.
+ */
+public class ContactSearchIndex {
+
+    static final int FIELD_NAME = 0;
+    static final int FIELD_NICKNAME = 1;
+    static final int FIELD_PHONETIC_NAME = 2;
+    static final int FIELD_ORGANIZATION = 3;
+    static final int FIELD_EMAIL = 4;
+    static final int FIELD_NOTE = 5;
+
+    /** Score of a word found in each field; doubled if it is the whole term. */
+    private static final int[] FIELD_WEIGHTS = new int[] { 16, 12, 8, 6, 4, 1 };
+
+    /** Terms of a value above this length, e.g. URLs pasted in notes, are cut. */
+    private static final int MAX_TERM_LENGTH = 32;
+
+    /**
+     * A searchable value of a raw contact.  {@code detail} is indexed with
+     * {@code text}, e.g. the title of an organization.
+     */
+    public static class Value {
+        final int field;
+        final String text;
+        final String detail;
+
+        public Value(int field, String text, String detail) {
+            this.field = field;
+            this.text = text;
+            this.detail = detail;
+        }
+    }
+
+    /**
+     * The indexed values of a raw contact.
+     */
+    private static class Document {
+        final long contactId;
+        final int version;
+        final String name;
+        final String sortName;
+        final Value[] values;
+        final String[] terms;
+
+        Document(long contactId, int version, String name, Value[] values, String[] terms) {
+            this.contactId = contactId;
+            this.version = version;
+            this.name = name;
+            this.sortName = name != null ? ContactFilterCache.normalize(name) : "";
+            this.values = values;
+            this.terms = terms;
+        }
+    }
+
+    /**
+     * A contact matching a query, with the value that matched it best.
+     */
+    public static class Hit {
+        public final long contactId;
+        final int score;
+        /** The display name of the raw contact, or null if it has none. */
+        public final String name;
+        final String sortName;
+        public final Value value;
+
+        Hit(long contactId, int score, String name, String sortName, Value value) {
+            this.contactId = contactId;
+            this.score = score;
+            this.name = name;
+            this.sortName = sortName;
+            this.value = value;
+        }
+    }
+
+    /**
+     * The best match of a contact for the words of a query.
+     */
+    private static class Match {
+        /** Sum of the scores of the words. */
+        int score = -1;
+        /** Score of the best matching word, and the value it was found in. */
+        int bestScore;
+        long rawContactId;
+        int value;
+    }
+
+    private static final Comparator<Hit> RANK_ORDER = new Comparator<Hit>() {
+        public int compare(Hit a, Hit b) {
+            if (a.score != b.score) {
+                return a.score > b.score ? -1 : 1;
+            }
+            int result = a.sortName.compareTo(b.sortName);
+            if (result != 0) {
+                return result;
+            }
+            return a.contactId < b.contactId ? -1 : (a.contactId == b.contactId ? 0 : 1);
+        }
+    };
+
+    /** Indexed raw contacts by ID. */
+    private final HashMap<Long, Document> mDocuments = new HashMap<Long, Document>();
+
+    /**
+     * Raw contacts by term.  Each posting holds the best weight of the term
+     * in the raw contact above the index of the value it was found in.
+     */
+    private final TreeMap<String, HashMap<Long, Integer>> mTerms =
+            new TreeMap<String, HashMap<Long, Integer>>();
+
+    /**
+     * Indexes the values of a raw contact, replacing the ones indexed before.
+     *
+     * @param version the version of the raw contact the values were read at
+     */
+    public synchronized void put(long rawContactId, long contactId, int version,
+            Value... values) {
+        remove(rawContactId);
+
+        HashMap<String, Integer> postings = new HashMap<String, Integer>();
+        String name = null;
+        for (int i = 0; i < values.length; i++) {
+            Value value = values[i];
+            if (value.field == FIELD_NAME && name == null) {
+                name = value.text;
+            }
+            int posting = (FIELD_WEIGHTS[value.field] << 16) | i;
+            addPostings(postings, value.text, posting);
+            addPostings(postings, value.detail, posting);
+        }
+
+        String[] terms = postings.keySet().toArray(new String[postings.size()]);
+        for (String term : terms) {
+            HashMap<Long, Integer> rawContacts = mTerms.get(term);
+            if (rawContacts == null) {
+                rawContacts = new HashMap<Long, Integer>(4);
+                mTerms.put(term, rawContacts);
+            }
+            rawContacts.put(rawContactId, postings.get(term));
+        }
+        mDocuments.put(rawContactId, new Document(contactId, version, name, values, terms));
+    }
+
+    private static void addPostings(HashMap<String, Integer> postings, String text,
+            int posting) {
+        if (text == null) {
+            return;
+        }
+        for (String term : tokenize(text)) {
+            Integer previous = postings.get(term);
+            if (previous == null || (previous >>> 16) < (posting >>> 16)) {
+                postings.put(term, posting);
+            }
+        }
+    }
+
+    /**
+     * Removes a raw contact from the index.
+     */
+    public synchronized void remove(long rawContactId) {
+        Document document = mDocuments.remove(rawContactId);
+        if (document == null) {
+            return;
+        }
+        for (String term : document.terms) {
+            HashMap<Long, Integer> rawContacts = mTerms.get(term);
+            rawContacts.remove(rawContactId);
+            if (rawContacts.isEmpty()) {
+                mTerms.remove(term);
+            }
+        }
+    }
+
+    /**
+     * Returns whether the raw contact is indexed at the given version and
+     * aggregated into the given contact.
+     */
+    public synchronized boolean isCurrent(long rawContactId, long contactId, int version) {
+        Document document = mDocuments.get(rawContactId);
+        return document != null && document.contactId == contactId
+                && document.version == version;
+    }
+
+    /**
+     * Returns the IDs of all indexed raw contacts.
+     */
+    public synchronized Set<Long> getRawContactIds() {
+        return new HashSet<Long>(mDocuments.keySet());
+    }
+
+    public synchronized int size() {
+        return mDocuments.size();
+    }
+
+    public synchronized void clear() {
+        mDocuments.clear();
+        mTerms.clear();
+    }
+
+    /**
+     * Returns the contacts matching every word of the query, best first.
+     *
+     * @param limit the maximum number of contacts returned
+     */
+    public synchronized ArrayList<Hit> search(String query, int limit) {
+        ArrayList<String> words = tokenize(query);
+        if (words.isEmpty()) {
+            return new ArrayList<Hit>(0);
+        }
+
+        // Contacts matching all words so far
+        HashMap<Long, Match> matches = null;
+        for (String word : words) {
+            HashMap<Long, Match> wordMatches = new HashMap<Long, Match>();
+            SortedMap<String, HashMap<Long, Integer>> terms =
+                    mTerms.subMap(word, word + Character.MAX_VALUE);
+            for (Map.Entry<String, HashMap<Long, Integer>> term : terms.entrySet()) {
+                boolean whole = term.getKey().length() == word.length();
+                for (Map.Entry<Long, Integer> posting : term.getValue().entrySet()) {
+                    long rawContactId = posting.getKey();
+                    long contactId = mDocuments.get(rawContactId).contactId;
+                    if (matches != null && !matches.containsKey(contactId)) {
+                        continue;
+                    }
+                    int score = (posting.getValue() >>> 16) * (whole ? 2 : 1);
+                    Match match = wordMatches.get(contactId);
+                    if (match == null) {
+                        match = new Match();
+                        wordMatches.put(contactId, match);
+                    }
+                    if (score > match.score) {
+                        match.score = score;
+                        match.rawContactId = rawContactId;
+                        match.value = posting.getValue() & 0xffff;
+                    }
+                }
+            }
+
+            for (Map.Entry<Long, Match> entry : wordMatches.entrySet()) {
+                Match match = entry.getValue();
+                Match previous = matches != null ? matches.get(entry.getKey()) : null;
+                if (previous != null && previous.bestScore >= match.score) {
+                    match.bestScore = previous.bestScore;
+                    match.rawContactId = previous.rawContactId;
+                    match.value = previous.value;
+                } else {
+                    match.bestScore = match.score;
+                }
+                if (previous != null) {
+                    match.score += previous.score;
+                }
+            }
+            matches = wordMatches;
+            if (matches.isEmpty()) {
+                break;
+            }
+        }
+
+        ArrayList<Hit> hits = new ArrayList<Hit>(matches.size());
+        for (Map.Entry<Long, Match> entry : matches.entrySet()) {
+            Match match = entry.getValue();
+            Document document = mDocuments.get(match.rawContactId);
+            hits.add(new Hit(entry.getKey(), match.score, document.name, document.sortName,
+                    document.values[match.value]));
+        }
+        Collections.sort(hits, RANK_ORDER);
+        if (hits.size() > limit) {
+            hits.subList(limit, hits.size()).clear();
+        }
+        return hits;
+    }
+
+    /**
+     * Splits text into its words, lower case and without accents.
+     */
+    static ArrayList<String> tokenize(String text) {
+        String lower = ContactFilterCache.stripAccents(text.toLowerCase());
+        ArrayList<String> words = new ArrayList<String>();
+        int start = -1;
+        for (int i = 0; i <= lower.length(); i++) {
+            boolean inWord = i < lower.length() && Character.isLetterOrDigit(lower.charAt(i));
+            if (inWord && start == -1) {
+                start = i;
+            } else if (!inWord && start != -1) {
+                words.add(lower.substring(start, Math.min(i, start + MAX_TERM_LENGTH)));
+                start = -1;
+            }
+        }
+        return words;
+    }
+}
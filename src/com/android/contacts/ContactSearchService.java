@@ -0,0 +1,337 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts;
+
+import com.android.contacts.ContactSearchIndex.Value;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Process;
+import android.os.SystemClock;
+import android.provider.ContactsContract.Contacts;
+import android.provider.ContactsContract.RawContacts;
+import android.provider.ContactsContract.RawContactsEntity;
+import android.provider.ContactsContract.CommonDataKinds.Email;
+import android.provider.ContactsContract.CommonDataKinds.Nickname;
+import android.provider.ContactsContract.CommonDataKinds.Note;
+import android.provider.ContactsContract.CommonDataKinds.Organization;
+import android.provider.ContactsContract.CommonDataKinds.StructuredName;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps a {@link ContactSearchIndex} of all contacts up to date for the
+ * process.  The index is loaded in the background the first time the service
+ * is used, and then refreshed from the provider's change notifications: only
+ * the raw contacts whose version or contact changed are read again.
+ */
+public class ContactSearchService {
+    private static final String TAG = "ContactSearchService";
+
+    private static final int MESSAGE_REFRESH = 1;
+
+    /** Coalesces the notifications of a burst of changes, e.g. a sync. */
+    private static final long REFRESH_DELAY_MS = 2000;
+
+    /** Number of changed raw contacts read by one query. */
+    private static final int REFRESH_BATCH_SIZE = 100;
+
+    private static final String[] RAW_CONTACTS_PROJECTION = new String[] {
+        RawContacts._ID,
+        RawContacts.CONTACT_ID,
+        RawContacts.VERSION,
+    };
+
+    private static final String[] CONTACTS_PROJECTION = new String[] {
+        Contacts._ID,
+    };
+
+    private static final String[] ENTITY_PROJECTION = new String[] {
+        RawContactsEntity._ID,              // 0
+        RawContactsEntity.MIMETYPE,         // 1
+        RawContactsEntity.DATA1,            // 2: name, nickname, company, email or note
+        RawContactsEntity.DATA4,            // 3: title
+        RawContactsEntity.DATA7,            // 4: phonetic given name
+        RawContactsEntity.DATA8,            // 5: phonetic middle name
+        RawContactsEntity.DATA9,            // 6: phonetic family name
+    };
+
+    private static final String ENTITY_SELECTION = RawContactsEntity.DELETED + "=0 AND "
+            + RawContactsEntity.MIMETYPE + " IN ('"
+            + StructuredName.CONTENT_ITEM_TYPE + "','"
+            + Nickname.CONTENT_ITEM_TYPE + "','"
+            + Organization.CONTENT_ITEM_TYPE + "','"
+            + Email.CONTENT_ITEM_TYPE + "','"
+            + Note.CONTENT_ITEM_TYPE + "')";
+
+    private static ContactSearchService sInstance;
+
+    public static synchronized ContactSearchService getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ContactSearchService(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private final ContentResolver mResolver;
+    private final ContactSearchIndex mIndex = new ContactSearchIndex();
+    private final Handler mRefreshHandler;
+    private volatile boolean mLoaded;
+
+    /** IDs of the contacts in visible groups, replaced by every refresh. */
+    private volatile Set<Long> mVisibleContactIds = Collections.emptySet();
+
+    private ContactSearchService(Context context) {
+        mResolver = context.getContentResolver();
+
+        HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mRefreshHandler = new Handler(thread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                if (msg.what == MESSAGE_REFRESH) {
+                    refresh();
+                }
+            }
+        };
+        mResolver.registerContentObserver(RawContactsEntity.CONTENT_URI, true,
+                new ContentObserver(mRefreshHandler) {
+            @Override
+            public void onChange(boolean selfChange) {
+                mRefreshHandler.removeMessages(MESSAGE_REFRESH);
+                mRefreshHandler.sendEmptyMessageDelayed(MESSAGE_REFRESH, REFRESH_DELAY_MS);
+            }
+        });
+        mRefreshHandler.sendEmptyMessage(MESSAGE_REFRESH);
+    }
+
+    /**
+     * Returns the contacts matching every word of the query, best first, or
+     * null if the index is still being loaded.
+     */
+    public List<ContactSearchIndex.Hit> search(String query, int limit) {
+        if (!mLoaded) {
+            return null;
+        }
+        long start = SystemClock.uptimeMillis();
+        List<ContactSearchIndex.Hit> hits = mIndex.search(query, limit);
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            // The length only, the query itself is personal
+            Log.d(TAG, "Searched " + query.length() + " characters in "
+                    + (SystemClock.uptimeMillis() - start) + "ms, " + hits.size() + " contacts");
+        }
+        return hits;
+    }
+
+    /**
+     * Like {@link #search}, but only returns the contacts in visible groups,
+     * as of the last refresh.  The index knows nothing else about a contact,
+     * so the hits can only stand for a list showing all visible contacts.
+     */
+    public List<ContactSearchIndex.Hit> searchVisible(String query, int limit) {
+        List<ContactSearchIndex.Hit> hits = search(query, Integer.MAX_VALUE);
+        if (hits == null) {
+            return null;
+        }
+        Set<Long> visibleContactIds = mVisibleContactIds;
+        ArrayList<ContactSearchIndex.Hit> visibleHits = new ArrayList<ContactSearchIndex.Hit>();
+        for (ContactSearchIndex.Hit hit : hits) {
+            if (visibleHits.size() == limit) {
+                break;
+            }
+            if (visibleContactIds.contains(hit.contactId)) {
+                visibleHits.add(hit);
+            }
+        }
+        return visibleHits;
+    }
+
+    /**
+     * The contact and version a raw contact was read at.
+     */
+    private static class RawContact {
+        final long contactId;
+        final int version;
+        final ArrayList<Value> values = new ArrayList<Value>();
+
+        RawContact(long contactId, int version) {
+            this.contactId = contactId;
+            this.version = version;
+        }
+    }
+
+    /**
+     * Brings the index up to date with the provider.  Runs on the refresh
+     * thread, which is the only thread modifying the index.
+     */
+    private void refresh() {
+        long start = SystemClock.uptimeMillis();
+        Cursor cursor = mResolver.query(RawContacts.CONTENT_URI, RAW_CONTACTS_PROJECTION,
+                RawContacts.DELETED + "=0", null, null);
+        if (cursor == null) {
+            return;
+        }
+
+        Set<Long> removed = mIndex.getRawContactIds();
+        HashMap<Long, RawContact> changed = new HashMap<Long, RawContact>();
+        try {
+            while (cursor.moveToNext()) {
+                long rawContactId = cursor.getLong(0);
+                long contactId = cursor.getLong(1);
+                int version = cursor.getInt(2);
+                removed.remove(rawContactId);
+                if (!mIndex.isCurrent(rawContactId, contactId, version)) {
+                    changed.put(rawContactId, new RawContact(contactId, version));
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+
+        for (long rawContactId : removed) {
+            mIndex.remove(rawContactId);
+        }
+        if (!changed.isEmpty()) {
+            if (mIndex.size() == 0) {
+                // Everything is new, so it is read in one pass
+                readValues(null, changed);
+            } else {
+                ArrayList<Long> ids = new ArrayList<Long>(changed.keySet());
+                for (int i = 0; i < ids.size(); i += REFRESH_BATCH_SIZE) {
+                    readValues(ids.subList(i, Math.min(i + REFRESH_BATCH_SIZE, ids.size())),
+                            changed);
+                }
+            }
+            // Raw contacts without searchable values are indexed too, so that
+            // they are not read again on every refresh
+            for (Map.Entry<Long, RawContact> entry : changed.entrySet()) {
+                RawContact rawContact = entry.getValue();
+                mIndex.put(entry.getKey(), rawContact.contactId, rawContact.version,
+                        rawContact.values.toArray(new Value[rawContact.values.size()]));
+            }
+        }
+        mVisibleContactIds = queryVisibleContactIds();
+        mLoaded = true;
+
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "Indexed " + changed.size() + " raw contacts, removed " + removed.size()
+                    + " in " + (SystemClock.uptimeMillis() - start) + "ms");
+        }
+    }
+
+    /**
+     * Returns the IDs of the contacts in visible groups.  Group visibility
+     * does not change the version of raw contacts, so they are read on every
+     * refresh.
+     */
+    private Set<Long> queryVisibleContactIds() {
+        HashSet<Long> contactIds = new HashSet<Long>();
+        Cursor cursor = mResolver.query(Contacts.CONTENT_URI, CONTACTS_PROJECTION,
+                Contacts.IN_VISIBLE_GROUP + "=1", null, null);
+        if (cursor == null) {
+            return contactIds;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                contactIds.add(cursor.getLong(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return contactIds;
+    }
+
+    /**
+     * Reads the searchable values of the given raw contacts, or of all raw
+     * contacts if null, into the raw contacts they belong to.  A raw contact
+     * changed in between is indexed at the version it was listed at, so the
+     * next refresh reads it again.
+     */
+    private void readValues(List<Long> rawContactIds, HashMap<Long, RawContact> rawContacts) {
+        String selection = ENTITY_SELECTION;
+        if (rawContactIds != null) {
+            selection += " AND " + RawContactsEntity._ID + " IN ("
+                    + TextUtils.join(",", rawContactIds) + ")";
+        }
+        Cursor cursor = mResolver.query(RawContactsEntity.CONTENT_URI, ENTITY_PROJECTION,
+                selection, null, null);
+        if (cursor == null) {
+            return;
+        }
+
+        try {
+            while (cursor.moveToNext()) {
+                RawContact rawContact = rawContacts.get(cursor.getLong(0));
+                if (rawContact != null) {
+                    addValues(cursor, rawContact.values);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static void addValues(Cursor cursor, ArrayList<Value> values) {
+        String mimeType = cursor.getString(1);
+        if (StructuredName.CONTENT_ITEM_TYPE.equals(mimeType)) {
+            values.add(new Value(ContactSearchIndex.FIELD_NAME, cursor.getString(2), null));
+            String phoneticName = joinWords(cursor.getString(4), cursor.getString(5),
+                    cursor.getString(6));
+            if (phoneticName != null) {
+                values.add(new Value(ContactSearchIndex.FIELD_PHONETIC_NAME, phoneticName, null));
+            }
+        } else if (Nickname.CONTENT_ITEM_TYPE.equals(mimeType)) {
+            values.add(new Value(ContactSearchIndex.FIELD_NICKNAME, cursor.getString(2), null));
+        } else if (Organization.CONTENT_ITEM_TYPE.equals(mimeType)) {
+            values.add(new Value(ContactSearchIndex.FIELD_ORGANIZATION, cursor.getString(2),
+                    cursor.getString(3)));
+        } else if (Email.CONTENT_ITEM_TYPE.equals(mimeType)) {
+            values.add(new Value(ContactSearchIndex.FIELD_EMAIL, cursor.getString(2), null));
+        } else if (Note.CONTENT_ITEM_TYPE.equals(mimeType)) {
+            values.add(new Value(ContactSearchIndex.FIELD_NOTE, cursor.getString(2), null));
+        }
+    }
+
+    /**
+     * Returns the non-empty words separated by spaces, or null if all are empty.
+     */
+    private static String joinWords(String... words) {
+        StringBuilder sb = new StringBuilder();
+        for (String word : words) {
+            if (!TextUtils.isEmpty(word)) {
+                if (sb.length() != 0) {
+                    sb.append(' ');
+                }
+                sb.append(word);
+            }
+        }
+        return sb.length() != 0 ? sb.toString() : null;
+    }
+}
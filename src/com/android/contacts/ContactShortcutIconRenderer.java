@@ -0,0 +1,355 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.Context;
+import android.content.res.Resources;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.Typeface;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.net.Uri;
+import android.provider.ContactsContract.Contacts;
+import android.provider.ContactsContract.Data;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.CommonDataKinds.Photo;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Renders the launcher icons of contact shortcuts: the framed photo of a
+ * contact, or the photo of a direct dial or message shortcut with the type of
+ * the number drawn over it.  Rendered icons are kept in a small cache shared
+ * by the process, keyed by contact, shortcut action and photo version, so that
+ * creating a shortcut again only costs the queries that find the photo
+ * version.  Rendering blocks on the provider; call it off the main thread.
+ */
+public class ContactShortcutIconRenderer {
+
+    private static final boolean ENABLE_ACTION_ICON_OVERLAYS = true;
+
+    /** Number of rendered icons kept. */
+    private static final int MAX_CACHED_ICONS = 16;
+
+    private static final int[] FALLBACK_PHOTOS = {
+        R.drawable.ic_contact_picture,
+        R.drawable.ic_contact_picture_2,
+        R.drawable.ic_contact_picture_3
+    };
+
+    private static final String[] CONTACT_COLUMNS = new String[] {
+            Contacts.LOOKUP_KEY, Contacts.PHOTO_ID };
+
+    private static final String[] DATA_COLUMNS = new String[] {
+            Data.LOOKUP_KEY, Data.PHOTO_ID };
+
+    private static final String[] PHOTO_VERSION_COLUMNS = new String[] { Data.DATA_VERSION };
+
+    private static final String[] PHOTO_COLUMNS = new String[] { Photo.PHOTO };
+
+    private static final LinkedHashMap<String, Bitmap> sIcons =
+            new LinkedHashMap<String, Bitmap>(MAX_CACHED_ICONS, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Bitmap> eldest) {
+            return size() > MAX_CACHED_ICONS;
+        }
+    };
+
+    private final Context mContext;
+    private final ContentResolver mResolver;
+    private final int mIconSize;
+
+    public ContactShortcutIconRenderer(Context context) {
+        mContext = context;
+        mResolver = context.getContentResolver();
+        mIconSize = context.getResources().getDimensionPixelSize(android.R.dimen.app_icon_size);
+    }
+
+    /**
+     * Returns the icon of a shortcut to view a contact.
+     *
+     * @param selectedUri In most cases, this should be a lookup {@link Uri}
+     */
+    public Bitmap getContactIcon(Uri selectedUri) {
+        return getIcon(selectedUri, 0, 0);
+    }
+
+    /**
+     * Returns the icon of a direct dial or message shortcut, or null if there
+     * is no photo and no action icon to draw.
+     *
+     * @param selectedUri The person the phone number belongs to
+     * @param type The type of the phone number
+     * @param actionResId The ID for the action resource
+     */
+    public Bitmap getPhoneNumberIcon(Uri selectedUri, int type, int actionResId) {
+        return getIcon(selectedUri, type, actionResId);
+    }
+
+    private Bitmap getIcon(Uri selectedUri, int type, int actionResId) {
+        long photoId = 0;
+        String lookupKey = null;
+
+        Cursor cursor = mResolver.query(selectedUri,
+                Contacts.CONTENT_ITEM_TYPE.equals(mResolver.getType(selectedUri))
+                        ? CONTACT_COLUMNS : DATA_COLUMNS, null, null, null);
+        if (cursor != null) {
+            try {
+                if (cursor.moveToFirst()) {
+                    lookupKey = cursor.getString(0);
+                    photoId = cursor.getLong(1);
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        int version = photoId != 0 ? queryPhotoVersion(photoId) : 0;
+        String key = (lookupKey != null ? lookupKey : selectedUri.toString()) + '/'
+                + actionResId + '/' + type + '/' + photoId + '/' + version;
+        synchronized (sIcons) {
+            Bitmap icon = sIcons.get(key);
+            if (icon != null) {
+                return icon;
+            }
+        }
+
+        Bitmap icon = actionResId == 0
+                ? scaleToAppIconSize(framePhoto(loadContactPhoto(photoId)))
+                : generatePhoneNumberIcon(loadContactPhoto(photoId), type, actionResId);
+        if (icon != null) {
+            synchronized (sIcons) {
+                sIcons.put(key, icon);
+            }
+        }
+        return icon;
+    }
+
+    private int queryPhotoVersion(long photoId) {
+        Cursor cursor = mResolver.query(ContentUris.withAppendedId(Data.CONTENT_URI, photoId),
+                PHOTO_VERSION_COLUMNS, null, null, null);
+        if (cursor == null) {
+            return 0;
+        }
+        try {
+            return cursor.moveToFirst() ? cursor.getInt(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Loads the photo, subsampled to no less than the size it is drawn at, or
+     * one of the placeholder pictures if there is none.
+     */
+    private Bitmap loadContactPhoto(long photoId) {
+        Bitmap bm = null;
+        if (photoId != 0) {
+            Cursor cursor = mResolver.query(ContentUris.withAppendedId(Data.CONTENT_URI, photoId),
+                    PHOTO_COLUMNS, null, null, null);
+            try {
+                if (cursor != null && cursor.moveToFirst() && !cursor.isNull(0)) {
+                    byte[] data = cursor.getBlob(0);
+                    BitmapFactory.Options options = new BitmapFactory.Options();
+                    options.inJustDecodeBounds = true;
+                    BitmapFactory.decodeByteArray(data, 0, data.length, options);
+
+                    final Resources r = mContext.getResources();
+                    int size = Math.max(mIconSize, Math.max(
+                            r.getDimensionPixelSize(R.dimen.contact_shortcut_frame_width),
+                            r.getDimensionPixelSize(R.dimen.contact_shortcut_frame_height)));
+                    int sampleSize = 1;
+                    while (Math.min(options.outWidth, options.outHeight)
+                            / (sampleSize * 2) >= size) {
+                        sampleSize *= 2;
+                    }
+                    options.inJustDecodeBounds = false;
+                    options.inSampleSize = sampleSize;
+                    bm = BitmapFactory.decodeByteArray(data, 0, data.length, options);
+                }
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+        }
+
+        if (bm == null) {
+            bm = BitmapFactory.decodeResource(mContext.getResources(),
+                    FALLBACK_PHOTOS[new Random().nextInt(FALLBACK_PHOTOS.length)]);
+        }
+
+        return bm;
+    }
+
+    private Bitmap framePhoto(Bitmap photo) {
+        final Resources r = mContext.getResources();
+        final Drawable frame = r.getDrawable(com.android.internal.R.drawable.quickcontact_badge);
+
+        final int width = r.getDimensionPixelSize(R.dimen.contact_shortcut_frame_width);
+        final int height = r.getDimensionPixelSize(R.dimen.contact_shortcut_frame_height);
+
+        frame.setBounds(0, 0, width, height);
+
+        final Rect padding = new Rect();
+        frame.getPadding(padding);
+
+        final Rect source = new Rect(0, 0, photo.getWidth(), photo.getHeight());
+        final Rect destination = new Rect(padding.left, padding.top,
+                width - padding.right, height - padding.bottom);
+
+        final int d = Math.max(width, height);
+        final Bitmap b = Bitmap.createBitmap(d, d, Bitmap.Config.ARGB_8888);
+        final Canvas c = new Canvas(b);
+
+        c.translate((d - width) / 2.0f, (d - height) / 2.0f);
+        frame.draw(c);
+        c.drawBitmap(photo, source, destination, new Paint(Paint.FILTER_BITMAP_FLAG));
+
+        return b;
+    }
+
+    /**
+     * Generates a phone number shortcut icon. Adds an overlay describing the type of the phone
+     * number, and if there is a photo also adds the call action icon.
+     *
+     * @param photo The photo of the person the phone number belongs to, or null
+     * @param type The type of the phone number
+     * @param actionResId The ID for the action resource
+     * @return The bitmap for the icon
+     */
+    private Bitmap generatePhoneNumberIcon(Bitmap photo, int type, int actionResId) {
+        final Resources r = mContext.getResources();
+        boolean drawPhoneOverlay = true;
+        final float scaleDensity = r.getDisplayMetrics().scaledDensity;
+
+        if (photo == null) {
+            // If there isn't a photo use the generic phone action icon instead
+            Bitmap phoneIcon = getPhoneActionIcon(r, actionResId);
+            if (phoneIcon != null) {
+                photo = phoneIcon;
+                drawPhoneOverlay = false;
+            } else {
+                return null;
+            }
+        }
+
+        // Setup the drawing classes
+        Bitmap icon = createShortcutBitmap();
+        Canvas canvas = new Canvas(icon);
+
+        // Copy in the photo
+        Paint photoPaint = new Paint();
+        photoPaint.setDither(true);
+        photoPaint.setFilterBitmap(true);
+        Rect src = new Rect(0,0, photo.getWidth(),photo.getHeight());
+        Rect dst = new Rect(0,0, mIconSize, mIconSize);
+        canvas.drawBitmap(photo, src, dst, photoPaint);
+
+        // Create an overlay for the phone number type
+        String overlay = null;
+        switch (type) {
+            case Phone.TYPE_HOME:
+                overlay = r.getString(R.string.type_short_home);
+                break;
+
+            case Phone.TYPE_MOBILE:
+                overlay = r.getString(R.string.type_short_mobile);
+                break;
+
+            case Phone.TYPE_WORK:
+                overlay = r.getString(R.string.type_short_work);
+                break;
+
+            case Phone.TYPE_PAGER:
+                overlay = r.getString(R.string.type_short_pager);
+                break;
+
+            case Phone.TYPE_OTHER:
+                overlay = r.getString(R.string.type_short_other);
+                break;
+        }
+        if (overlay != null) {
+            Paint textPaint = new Paint(Paint.ANTI_ALIAS_FLAG | Paint.DEV_KERN_TEXT_FLAG);
+            textPaint.setTextSize(20.0f * scaleDensity);
+            textPaint.setTypeface(Typeface.DEFAULT_BOLD);
+            textPaint.setColor(r.getColor(R.color.textColorIconOverlay));
+            textPaint.setShadowLayer(3f, 1, 1, r.getColor(R.color.textColorIconOverlayShadow));
+            canvas.drawText(overlay, 2 * scaleDensity, 16 * scaleDensity, textPaint);
+        }
+
+        // Draw the phone action icon as an overlay
+        if (ENABLE_ACTION_ICON_OVERLAYS && drawPhoneOverlay) {
+            Bitmap phoneIcon = getPhoneActionIcon(r, actionResId);
+            if (phoneIcon != null) {
+                src.set(0, 0, phoneIcon.getWidth(), phoneIcon.getHeight());
+                int iconWidth = icon.getWidth();
+                dst.set(iconWidth - ((int) (20 * scaleDensity)), -1,
+                        iconWidth, ((int) (19 * scaleDensity)));
+                canvas.drawBitmap(phoneIcon, src, dst, photoPaint);
+            }
+        }
+
+        return icon;
+    }
+
+    private Bitmap scaleToAppIconSize(Bitmap photo) {
+        // Setup the drawing classes
+        Bitmap icon = createShortcutBitmap();
+        Canvas canvas = new Canvas(icon);
+
+        // Copy in the photo
+        Paint photoPaint = new Paint();
+        photoPaint.setDither(true);
+        photoPaint.setFilterBitmap(true);
+        Rect src = new Rect(0,0, photo.getWidth(),photo.getHeight());
+        Rect dst = new Rect(0,0, mIconSize, mIconSize);
+        canvas.drawBitmap(photo, src, dst, photoPaint);
+
+        return icon;
+    }
+
+    private Bitmap createShortcutBitmap() {
+        return Bitmap.createBitmap(mIconSize, mIconSize, Bitmap.Config.ARGB_8888);
+    }
+
+    /**
+     * Returns the icon for the phone call action.
+     *
+     * @param r The resources to load the icon from
+     * @param resId The resource ID to load
+     * @return the icon for the phone call action
+     */
+    private Bitmap getPhoneActionIcon(Resources r, int resId) {
+        Drawable phoneIcon = r.getDrawable(resId);
+        if (phoneIcon instanceof BitmapDrawable) {
+            BitmapDrawable bd = (BitmapDrawable) phoneIcon;
+            return bd.getBitmap();
+        } else {
+            return null;
+        }
+    }
+}
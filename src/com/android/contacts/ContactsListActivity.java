@@ -24,6 +24,7 @@ import com.android.contacts.ui.ContactsPreferencesActivity;
 import com.android.contacts.ui.ContactsPreferencesActivity.Prefs;
 import com.android.contacts.util.AccountSelectionUtil;
 import com.android.contacts.util.Constants;
+import com.android.contacts.util.WeakAsyncTask;
 import com.android.contacts.PhoneDisambigDialog;
 
 import android.accounts.Account;
@@ -50,21 +51,15 @@ import android.database.ContentObserver;
 import android.database.Cursor;
 import android.database.MatrixCursor;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.graphics.Canvas;
 import android.graphics.Color;
-import android.graphics.Paint;
-import android.graphics.Rect;
-import android.graphics.Typeface;
-import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.net.Uri.Builder;
 import android.os.Bundle;
-import android.os.Message;
 import android.os.Handler;
 import android.os.Parcelable;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.provider.ContactsContract;
 import android.provider.Settings;
@@ -81,9 +76,9 @@ import android.provider.ContactsContract.RawContacts;
 import android.provider.ContactsContract.SearchSnippetColumns;
 import android.provider.ContactsContract.CommonDataKinds.Email;
 import android.provider.ContactsContract.CommonDataKinds.Nickname;
+import android.provider.ContactsContract.CommonDataKinds.Note;
 import android.provider.ContactsContract.CommonDataKinds.Organization;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
-import android.provider.ContactsContract.CommonDataKinds.Photo;
 import android.provider.ContactsContract.CommonDataKinds.StructuredPostal;
 import android.provider.ContactsContract.Contacts.AggregationSuggestions;
 import android.provider.ContactsContract.Intents.Insert;
@@ -116,7 +111,6 @@ import android.widget.ArrayAdapter;
 import android.widget.AlphabetIndexer;
 import android.widget.Button;
 import android.widget.ResourceCursorAdapter;
-import android.widget.Filter;
 import android.widget.ImageView;
 import android.widget.ListView;
 import android.widget.QuickContactBadge;
@@ -125,16 +119,14 @@ import android.widget.TextView;
 import android.widget.Toast;
 import android.widget.AbsListView.OnScrollListener;
 
-import java.lang.ref.SoftReference;
+import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
-import java.util.Random;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 //Wysie
 import android.content.SharedPreferences;
@@ -150,7 +142,7 @@ import android.preference.PreferenceManager;
 @SuppressWarnings("deprecation")
 public class ContactsListActivity extends ListActivity implements View.OnCreateContextMenuListener,
         View.OnClickListener, View.OnKeyListener, TextWatcher, TextView.OnEditorActionListener,
-        OnFocusChangeListener, OnTouchListener {
+        OnFocusChangeListener, OnTouchListener, ContactFilterScheduler.Client {
 
     public static class JoinContactActivity extends ContactsListActivity {
 
@@ -162,8 +154,6 @@ public class ContactsListActivity extends ListActivity implements View.OnCreateC
 
     private static final String TAG = "ContactsListActivity";
 
-    private static final boolean ENABLE_ACTION_ICON_OVERLAYS = true;
-
     private static final String LIST_STATE_KEY = "liststate";
     private static final String SHORTCUT_ACTION_KEY = "shortcutAction";
 
@@ -306,6 +296,29 @@ public class ContactsListActivity extends ListActivity implements View.OnCreateC
     /** Maximum number of suggestions shown for joining aggregates */
     static final int MAX_SUGGESTIONS = 4;
 
+    /**
+     * Number of contacts queried first when the list is loaded, so that the
+     * first screen is shown before the whole list has been read and counted.
+     */
+    private static final int FIRST_PAGE_SIZE = 50;
+
+    /** From a list being queried to its first page being shown. */
+    private static final LatencyHistogram sFirstPageTime = new LatencyHistogram("first page");
+
+    /**
+     * Time taken by the complete query following a first page, i.e. what
+     * the first paint would take without paging.
+     */
+    private static final LatencyHistogram sFullListTime = new LatencyHistogram("full list");
+
+    /**
+     * Time a typed filter waits for more keystrokes before it is queried.
+     */
+    private static final long FILTER_DELAY_MS = 150;
+
+    /** Maximum number of contacts ranked by the search index. */
+    private static final int MAX_SEARCH_HITS = 100;
+
     static final String[] CONTACTS_SUMMARY_PROJECTION = new String[] {
         Contacts._ID,                       // 0
         Contacts.DISPLAY_NAME_PRIMARY,      // 1
@@ -432,6 +445,16 @@ public class ContactsListActivity extends ListActivity implements View.OnCreateC
     int mMode = MODE_DEFAULT;
 
     private QueryHandler mQueryHandler;
+    private long mQueryStartTime;
+
+    /** Results of recent filters, dropped when the contacts change. */
+    private ContactFilterCache mFilterCache;
+
+    /** Runs the filter queries, dropping the ones typed over. */
+    private ContactFilterScheduler mFilterScheduler;
+
+    /** Ranks the contacts matching a search, or null if not in search mode. */
+    private ContactSearchService mSearchService;
     private boolean mJustCreated;
     private boolean mSyncEnabled;
     Uri mSelectedContactUri;
@@ -454,6 +477,9 @@ public class ContactsListActivity extends ListActivity implements View.OnCreateC
 
     private String mShortcutAction;
 
+    /** Renders the icon of the shortcut being returned, if any. */
+    private ShortcutIconTask mShortcutIconTask;
+
     /**
      * Internal query type when in mode {@link #MODE_QUERY_PICK_TO_VIEW}.
      */
@@ -497,7 +523,6 @@ public class ContactsListActivity extends ListActivity implements View.OnCreateC
     final String[] sLookupProjection = new String[] {
             Contacts.LOOKUP_KEY
     };
-    private static ExecutorService sImageFetchThreadPool;
 
     //Wysie
     private boolean mContacts = false;
@@ -561,8 +586,6 @@ public class ContactsListActivity extends ListActivity implements View.OnCreateC
         }
     }
 
-    // The size of a home screen shortcut icon.
-    private int mIconSize;
     private ContactsPreferences mContactsPrefs;
     private int mDisplayOrder;
     private int mSortOrder;
@@ -594,7 +617,6 @@ public class ContactsListActivity extends ListActivity implements View.OnCreateC
         //Wysie
         ePrefs = PreferenceManager.getDefaultSharedPreferences(getBaseContext());
 
-        mIconSize = getResources().getDimensionPixelSize(android.R.dimen.app_icon_size);
         mContactsPrefs = new ContactsPreferences(this);
         mPhotoLoader = new ContactPhotoLoader(this, R.drawable.ic_contact_list_picture);
 
@@ -870,6 +892,14 @@ public class ContactsListActivity extends ListActivity implements View.OnCreateC
         }
 
         mQueryHandler = new QueryHandler(this);
+        mFilterCache = new ContactFilterCache(getContentResolver(),
+                SUMMARY_DISPLAY_NAME_PRIMARY_COLUMN_INDEX,
+                SUMMARY_DISPLAY_NAME_ALTERNATIVE_COLUMN_INDEX,
+                SUMMARY_PHONETIC_NAME_COLUMN_INDEX);
+        mFilterScheduler = new ContactFilterScheduler(this);
+        if (mSearchMode) {
+            mSearchService = ContactSearchService.getInstance(this);
+        }
         mJustCreated = true;
 
         mSyncEnabled = true;
@@ -1057,6 +1087,16 @@ public class ContactsListActivity extends ListActivity implements View.OnCreateC
     protected void onDestroy() {
         super.onDestroy();
         mPhotoLoader.stop();
+        mFilterScheduler.quit();
+        if (Log.isLoggable(TAG, Log.DEBUG) && sFirstPageTime.getCount() != 0) {
+            StringWriter out = new StringWriter();
+            PrintWriter pw = new PrintWriter(out);
+            pw.println("Contact list loads:");
+            sFirstPageTime.dump(pw);
+            sFullListTime.dump(pw);
+            pw.flush();
+            Log.d(TAG, out.toString());
+        }
     }
 
     @Override
@@ -1255,6 +1295,7 @@ public class ContactsListActivity extends ListActivity implements View.OnCreateC
         super.onStop();
 
         mContactsPrefs.unregisterChangeListener();
+        mFilterScheduler.cancel();
         mAdapter.setSuggestionsCursor(null);
         mAdapter.changeCursor(null);
 
@@ -1379,8 +1420,63 @@ public class ContactsListActivity extends ListActivity implements View.OnCreateC
         // Set the proper empty string
         setEmptyText();
 
-        Filter filter = mAdapter.getFilter();
-        filter.filter(getTextFilter());
+        // Results of recent filters and of the search index are shown right
+        // away, only provider queries are coalesced while typing
+        String filter = getTextFilter();
+        if (!TextUtils.isEmpty(filter) && isContactFilterMode()) {
+            Cursor cursor = mFilterCache.get(filter);
+            if (cursor != null) {
+                mFilterScheduler.cancel();
+                mAdapter.changeCursor(cursor);
+                return;
+            }
+            if (mSearchService != null && isSearchIndexListMode()) {
+                List<ContactSearchIndex.Hit> hits =
+                        mSearchService.searchVisible(filter, MAX_SEARCH_HITS);
+                if (hits != null) {
+                    // Ranked by the index alone, then completed by the provider
+                    mAdapter.changeCursor(newSearchIndexCursor(hits));
+                    mFilterScheduler.schedule(filter, FILTER_DELAY_MS);
+                    return;
+                }
+            }
+            cursor = mFilterCache.narrow(filter);
+            if (cursor != null) {
+                // Only a guess, replaced by what the provider finds
+                mAdapter.changeCursor(cursor);
+                mFilterScheduler.schedule(filter, FILTER_DELAY_MS);
+                return;
+            }
+        }
+        mFilterScheduler.schedule(filter, TextUtils.isEmpty(filter) ? 0 : FILTER_DELAY_MS);
+    }
+
+    /**
+     * Returns whether the list is filtered by {@link #queryContactFilter}, so
+     * that recent filters are kept in {@link #mFilterCache}.
+     */
+    private boolean isContactFilterMode() {
+        switch (mMode) {
+            case MODE_DEFAULT:
+            case MODE_CUSTOM:
+            case MODE_PICK_CONTACT:
+            case MODE_PICK_OR_CREATE_CONTACT:
+            case MODE_INSERT_OR_EDIT_CONTACT:
+            case MODE_STARRED:
+            case MODE_FREQUENT:
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns whether the list shows all visible contacts, so that the hits of
+     * the search index can stand for it until the provider has filtered it.
+     * Other modes also select contacts by what the index does not know, e.g.
+     * whether they are starred or have a phone number.
+     */
+    private boolean isSearchIndexListMode() {
+        return mMode == MODE_DEFAULT && !mDisplayOnlyPhones;
     }
 
     /**
@@ -1962,6 +2058,8 @@ public class ContactsListActivity extends ListActivity implements View.OnCreateC
 
         if (mShortcutAction != null) {
             Intent shortcutIntent;
+            int iconType;
+            int iconActionResId;
             if (Intent.ACTION_VIEW.equals(mShortcutAction)) {
                 // This is a simple shortcut to view a contact.
                 shortcutIntent = new Intent(ContactsContract.QuickContact.ACTION_QUICK_CONTACT);
@@ -1974,14 +2072,8 @@ public class ContactsListActivity extends ListActivity implements View.OnCreateC
                 shortcutIntent.putExtra(ContactsContract.QuickContact.EXTRA_EXCLUDE_MIMES,
                         (String[]) null);
 
-                final Bitmap icon = framePhoto(loadContactPhoto(selectedUri, null));
-                if (icon != null) {
-                    intent.putExtra(Intent.EXTRA_SHORTCUT_ICON, scaleToAppIconSize(icon));
-                } else {
-                    intent.putExtra(Intent.EXTRA_SHORTCUT_ICON_RESOURCE,
-                            Intent.ShortcutIconResource.fromContext(this,
-                                    R.drawable.ic_launcher_shortcut_contact));
-                }
+                iconType = 0;
+                iconActionResId = 0;
             } else {
                 // This is a direct dial or sms shortcut.
                 String number = c.getString(PHONE_NUMBER_COLUMN_INDEX);
@@ -2000,13 +2092,19 @@ public class ContactsListActivity extends ListActivity implements View.OnCreateC
                 Uri phoneUri = Uri.fromParts(scheme, number, null);
                 shortcutIntent = new Intent(mShortcutAction, phoneUri);
 
-                intent.putExtra(Intent.EXTRA_SHORTCUT_ICON,
-                        generatePhoneNumberIcon(selectedUri, type, resid));
+                iconType = type;
+                iconActionResId = resid;
             }
             shortcutIntent.setFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP);
             intent.putExtra(Intent.EXTRA_SHORTCUT_INTENT, shortcutIntent);
             intent.putExtra(Intent.EXTRA_SHORTCUT_NAME, name);
-            setResult(RESULT_OK, intent);
+
+            // The result is set once the icon is rendered in the background
+            if (mShortcutIconTask == null) {
+                mShortcutIconTask = new ShortcutIconTask(this, intent, iconType, iconActionResId);
+                mShortcutIconTask.execute(selectedUri);
+            }
+            return;
         } else {
             intent.putExtra(Intent.EXTRA_SHORTCUT_NAME, name);
             intent.addFlags(uriPerms);
@@ -2015,152 +2113,49 @@ public class ContactsListActivity extends ListActivity implements View.OnCreateC
         finish();
     }
 
-    private Bitmap framePhoto(Bitmap photo) {
-        final Resources r = getResources();
-        final Drawable frame = r.getDrawable(com.android.internal.R.drawable.quickcontact_badge);
-
-        final int width = r.getDimensionPixelSize(R.dimen.contact_shortcut_frame_width);
-        final int height = r.getDimensionPixelSize(R.dimen.contact_shortcut_frame_height);
-
-        frame.setBounds(0, 0, width, height);
-
-        final Rect padding = new Rect();
-        frame.getPadding(padding);
-
-        final Rect source = new Rect(0, 0, photo.getWidth(), photo.getHeight());
-        final Rect destination = new Rect(padding.left, padding.top,
-                width - padding.right, height - padding.bottom);
-
-        final int d = Math.max(width, height);
-        final Bitmap b = Bitmap.createBitmap(d, d, Bitmap.Config.ARGB_8888);
-        final Canvas c = new Canvas(b);
-
-        c.translate((d - width) / 2.0f, (d - height) / 2.0f);
-        frame.draw(c);
-        c.drawBitmap(photo, source, destination, new Paint(Paint.FILTER_BITMAP_FLAG));
-
-        return b;
-    }
-
     /**
-     * Generates a phone number shortcut icon. Adds an overlay describing the type of the phone
-     * number, and if there is a photo also adds the call action icon.
-     *
-     * @param lookupUri The person the phone number belongs to
-     * @param type The type of the phone number
-     * @param actionResId The ID for the action resource
-     * @return The bitmap for the icon
+     * Renders the icon of a shortcut, then returns the shortcut as the result.
      */
-    private Bitmap generatePhoneNumberIcon(Uri lookupUri, int type, int actionResId) {
-        final Resources r = getResources();
-        boolean drawPhoneOverlay = true;
-        final float scaleDensity = getResources().getDisplayMetrics().scaledDensity;
-
-        Bitmap photo = loadContactPhoto(lookupUri, null);
-        if (photo == null) {
-            // If there isn't a photo use the generic phone action icon instead
-            Bitmap phoneIcon = getPhoneActionIcon(r, actionResId);
-            if (phoneIcon != null) {
-                photo = phoneIcon;
-                drawPhoneOverlay = false;
-            } else {
-                return null;
-            }
-        }
+    private static class ShortcutIconTask extends
+            WeakAsyncTask<Uri, Void, Bitmap, ContactsListActivity> {
+        private final ContactShortcutIconRenderer mRenderer;
+        private final Intent mResult;
+        private final int mType;
+        private final int mActionResId;
 
-        // Setup the drawing classes
-        Bitmap icon = createShortcutBitmap();
-        Canvas canvas = new Canvas(icon);
-
-        // Copy in the photo
-        Paint photoPaint = new Paint();
-        photoPaint.setDither(true);
-        photoPaint.setFilterBitmap(true);
-        Rect src = new Rect(0,0, photo.getWidth(),photo.getHeight());
-        Rect dst = new Rect(0,0, mIconSize, mIconSize);
-        canvas.drawBitmap(photo, src, dst, photoPaint);
-
-        // Create an overlay for the phone number type
-        String overlay = null;
-        switch (type) {
-            case Phone.TYPE_HOME:
-                overlay = getString(R.string.type_short_home);
-                break;
-
-            case Phone.TYPE_MOBILE:
-                overlay = getString(R.string.type_short_mobile);
-                break;
-
-            case Phone.TYPE_WORK:
-                overlay = getString(R.string.type_short_work);
-                break;
-
-            case Phone.TYPE_PAGER:
-                overlay = getString(R.string.type_short_pager);
-                break;
-
-            case Phone.TYPE_OTHER:
-                overlay = getString(R.string.type_short_other);
-                break;
-        }
-        if (overlay != null) {
-            Paint textPaint = new Paint(Paint.ANTI_ALIAS_FLAG | Paint.DEV_KERN_TEXT_FLAG);
-            textPaint.setTextSize(20.0f * scaleDensity);
-            textPaint.setTypeface(Typeface.DEFAULT_BOLD);
-            textPaint.setColor(r.getColor(R.color.textColorIconOverlay));
-            textPaint.setShadowLayer(3f, 1, 1, r.getColor(R.color.textColorIconOverlayShadow));
-            canvas.drawText(overlay, 2 * scaleDensity, 16 * scaleDensity, textPaint);
+        /**
+         * @param actionResId the action icon of a direct dial or message
+         *            shortcut, 0 for a shortcut to view the contact
+         */
+        public ShortcutIconTask(ContactsListActivity target, Intent result, int type,
+                int actionResId) {
+            super(target);
+            mRenderer = new ContactShortcutIconRenderer(target.getApplicationContext());
+            mResult = result;
+            mType = type;
+            mActionResId = actionResId;
         }
 
-        // Draw the phone action icon as an overlay
-        if (ENABLE_ACTION_ICON_OVERLAYS && drawPhoneOverlay) {
-            Bitmap phoneIcon = getPhoneActionIcon(r, actionResId);
-            if (phoneIcon != null) {
-                src.set(0, 0, phoneIcon.getWidth(), phoneIcon.getHeight());
-                int iconWidth = icon.getWidth();
-                dst.set(iconWidth - ((int) (20 * scaleDensity)), -1,
-                        iconWidth, ((int) (19 * scaleDensity)));
-                canvas.drawBitmap(phoneIcon, src, dst, photoPaint);
+        @Override
+        protected Bitmap doInBackground(ContactsListActivity target, Uri... params) {
+            if (mActionResId == 0) {
+                return mRenderer.getContactIcon(params[0]);
             }
+            return mRenderer.getPhoneNumberIcon(params[0], mType, mActionResId);
         }
 
-        return icon;
-    }
-
-    private Bitmap scaleToAppIconSize(Bitmap photo) {
-        // Setup the drawing classes
-        Bitmap icon = createShortcutBitmap();
-        Canvas canvas = new Canvas(icon);
-
-        // Copy in the photo
-        Paint photoPaint = new Paint();
-        photoPaint.setDither(true);
-        photoPaint.setFilterBitmap(true);
-        Rect src = new Rect(0,0, photo.getWidth(),photo.getHeight());
-        Rect dst = new Rect(0,0, mIconSize, mIconSize);
-        canvas.drawBitmap(photo, src, dst, photoPaint);
-
-        return icon;
-    }
-
-    private Bitmap createShortcutBitmap() {
-        return Bitmap.createBitmap(mIconSize, mIconSize, Bitmap.Config.ARGB_8888);
-    }
-
-    /**
-     * Returns the icon for the phone call action.
-     *
-     * @param r The resources to load the icon from
-     * @param resId The resource ID to load
-     * @return the icon for the phone call action
-     */
-    private Bitmap getPhoneActionIcon(Resources r, int resId) {
-        Drawable phoneIcon = r.getDrawable(resId);
-        if (phoneIcon instanceof BitmapDrawable) {
-            BitmapDrawable bd = (BitmapDrawable) phoneIcon;
-            return bd.getBitmap();
-        } else {
-            return null;
+        @Override
+        protected void onPostExecute(ContactsListActivity target, Bitmap icon) {
+            if (icon == null && mActionResId == 0) {
+                mResult.putExtra(Intent.EXTRA_SHORTCUT_ICON_RESOURCE,
+                        Intent.ShortcutIconResource.fromContext(target,
+                                R.drawable.ic_launcher_shortcut_contact));
+            } else {
+                mResult.putExtra(Intent.EXTRA_SHORTCUT_ICON, icon);
+            }
+            target.mShortcutIconTask = null;
+            target.setResult(RESULT_OK, mResult);
+            target.finish();
         }
     }
 
@@ -2257,11 +2252,22 @@ public class ContactsListActivity extends ListActivity implements View.OnCreateC
                 // Build and return soft, lookup reference
                 final long contactId = cursor.getLong(SUMMARY_ID_COLUMN_INDEX);
                 final String lookupKey = cursor.getString(SUMMARY_LOOKUP_KEY_COLUMN_INDEX);
-                return Contacts.getLookupUri(contactId, lookupKey);
+                return getContactLookupUri(contactId, lookupKey);
             }
         }
     }
 
+    /**
+     * Returns the lookup URI of the contact, or its plain URI if the lookup
+     * key is not known yet, as for rows listed from the search index.
+     */
+    private static Uri getContactLookupUri(long contactId, String lookupKey) {
+        if (lookupKey == null) {
+            return ContentUris.withAppendedId(Contacts.CONTENT_URI, contactId);
+        }
+        return Contacts.getLookupUri(contactId, lookupKey);
+    }
+
     /**
      * Build the {@link Uri} for the given {@link ListView} position, which can
      * be used as result when in {@link #MODE_MASK_PICKER} mode.
@@ -2348,54 +2354,6 @@ public class ContactsListActivity extends ListActivity implements View.OnCreateC
         return CONTACTS_SUMMARY_PROJECTION;
     }
 
-    private Bitmap loadContactPhoto(Uri selectedUri, BitmapFactory.Options options) {
-        Uri contactUri = null;
-        if (Contacts.CONTENT_ITEM_TYPE.equals(getContentResolver().getType(selectedUri))) {
-            // TODO we should have a "photo" directory under the lookup URI itself
-            contactUri = Contacts.lookupContact(getContentResolver(), selectedUri);
-        } else {
-
-            Cursor cursor = getContentResolver().query(selectedUri,
-                    new String[] { Data.CONTACT_ID }, null, null, null);
-            try {
-                if (cursor != null && cursor.moveToFirst()) {
-                    final long contactId = cursor.getLong(0);
-                    contactUri = ContentUris.withAppendedId(Contacts.CONTENT_URI, contactId);
-                }
-            } finally {
-                if (cursor != null) cursor.close();
-            }
-        }
-
-        Cursor cursor = null;
-        Bitmap bm = null;
-
-        try {
-            Uri photoUri = Uri.withAppendedPath(contactUri, Contacts.Photo.CONTENT_DIRECTORY);
-            cursor = getContentResolver().query(photoUri, new String[] {Photo.PHOTO},
-                    null, null, null);
-            if (cursor != null && cursor.moveToFirst()) {
-                bm = ContactsUtils.loadContactPhoto(cursor, 0, options);
-            }
-        } finally {
-            if (cursor != null) {
-                cursor.close();
-            }
-        }
-
-        if (bm == null) {
-            final int[] fallbacks = {
-                R.drawable.ic_contact_picture,
-                R.drawable.ic_contact_picture_2,
-                R.drawable.ic_contact_picture_3
-            };
-            bm = BitmapFactory.decodeResource(getResources(),
-                    fallbacks[new Random().nextInt(fallbacks.length)]);
-        }
-
-        return bm;
-    }
-
     /**
      * Return the selection arguments for a default query based on the
      * {@link #mDisplayOnlyPhones} flag.
@@ -2468,6 +2426,8 @@ public class ContactsListActivity extends ListActivity implements View.OnCreateC
 
         // Cancel any pending queries
         mQueryHandler.cancelOperation(QUERY_TOKEN);
+        mFilterScheduler.cancel();
+        mFilterCache.clear();
         mQueryHandler.setLoadingJoinSuggestions(false);
 
         mSortOrder = mContactsPrefs.getSortOrder();
@@ -2500,6 +2460,7 @@ public class ContactsListActivity extends ListActivity implements View.OnCreateC
         }
 
         // Kick off the new query
+        mQueryStartTime = SystemClock.uptimeMillis();
         switch (mMode) {
             case MODE_GROUP:
             case MODE_DEFAULT:
@@ -2507,8 +2468,21 @@ public class ContactsListActivity extends ListActivity implements View.OnCreateC
             case MODE_PICK_CONTACT:
             case MODE_PICK_OR_CREATE_CONTACT:
             case MODE_INSERT_OR_EDIT_CONTACT:
-                mQueryHandler.startQuery(QUERY_TOKEN, null, uri, projection, getContactSelection(),
-                        null, getSortOrder(projection));
+                if (mJustCreated && mAdapter.getCursor() == null) {
+                    // Nothing is shown yet: query the first page, then the whole list.
+                    // Only done on the first load: when the activity is restarted the
+                    // list still holds its scroll position, which a first page would
+                    // clamp.
+                    PagedQuery query = new PagedQuery(uri, projection, getContactSelection(),
+                            getSortOrder(projection));
+                    mQueryHandler.startQuery(QUERY_TOKEN, query, uri.buildUpon()
+                            .appendQueryParameter("limit", String.valueOf(FIRST_PAGE_SIZE))
+                            .build(), projection, query.selection, null, query.sortOrder);
+                } else {
+                    // Requeries keep showing the old list until the new one is loaded
+                    mQueryHandler.startQuery(QUERY_TOKEN, null, uri, projection,
+                            getContactSelection(), null, getSortOrder(projection));
+                }
                 break;
 
             case MODE_LEGACY_PICK_PERSON:
@@ -2581,13 +2555,32 @@ public class ContactsListActivity extends ListActivity implements View.OnCreateC
         }
     }
 
+    /**
+     * Filter callback, called on the filter thread.
+     */
+    public Cursor runFilter(String filter, ContactFilterScheduler.Query query) {
+        return doFilter(filter, query);
+    }
+
+    /**
+     * Filter callback, called on the main thread with the result of the
+     * latest filter.
+     */
+    public void onFilterComplete(String filter, Cursor cursor) {
+        if (cursor != mAdapter.getCursor()) {
+            mAdapter.changeCursor(cursor);
+        }
+    }
+
     /**
      * Called from a background thread to do the filter and return the resulting cursor.
      *
      * @param filter the text that was entered to filter on
-     * @return a cursor with the results of the filter
+     * @param query the scheduled filter, checked between queries, or null
+     * @return a cursor with the results of the filter, or null if the filter
+     *         was superseded
      */
-    Cursor doFilter(String filter) {
+    Cursor doFilter(String filter, ContactFilterScheduler.Query query) {
         String[] projection = getProjectionForQuery();
         if (mSearchMode && TextUtils.isEmpty(getTextFilter())) {
             return new MatrixCursor(projection);
@@ -2600,8 +2593,8 @@ public class ContactsListActivity extends ListActivity implements View.OnCreateC
             case MODE_PICK_CONTACT:
             case MODE_PICK_OR_CREATE_CONTACT:
             case MODE_INSERT_OR_EDIT_CONTACT: {
-                return resolver.query(getContactFilterUri(filter), projection,
-                        getContactSelection(), null, getSortOrder(projection));
+                return queryContactFilter(filter, projection, getContactSelection(),
+                        getSortOrder(projection));
             }
 
             case MODE_LEGACY_PICK_PERSON:
@@ -2611,14 +2604,14 @@ public class ContactsListActivity extends ListActivity implements View.OnCreateC
             }
 
             case MODE_STARRED: {
-                return resolver.query(getContactFilterUri(filter), projection,
-                        Contacts.STARRED + "=1", null,
+                return queryContactFilter(filter, projection,
+                        Contacts.STARRED + "=1",
                         getSortOrder(projection));
             }
 
             case MODE_FREQUENT: {
-                return resolver.query(getContactFilterUri(filter), projection,
-                        Contacts.TIMES_CONTACTED + " > 0", null,
+                return queryContactFilter(filter, projection,
+                        Contacts.TIMES_CONTACTED + " > 0",
                         Contacts.TIMES_CONTACTED + " DESC, "
                         + getSortOrder(projection));
             }
@@ -2653,6 +2646,13 @@ public class ContactsListActivity extends ListActivity implements View.OnCreateC
                 // We are on a background thread. Run queries one after the other synchronously
                 Cursor cursor = resolver.query(getJoinSuggestionsUri(filter), projection, null,
                         null, null);
+                if (query != null && query.isCancelled()) {
+                    // Typed over, the second query is not worth running
+                    if (cursor != null) {
+                        cursor.close();
+                    }
+                    return null;
+                }
                 mAdapter.setSuggestionsCursor(cursor);
                 mJoinModeShowAllContacts = false;
                 return resolver.query(getContactFilterUri(filter), projection,
@@ -2663,6 +2663,165 @@ public class ContactsListActivity extends ListActivity implements View.OnCreateC
         throw new UnsupportedOperationException("filtering not allowed in mode " + mMode);
     }
 
+    /**
+     * Filters the contacts through the provider, ranked by the search index in
+     * search mode, and caches the result.  Recent filters are served from the
+     * cache by {@link #onSearchTextChanged()} before they get here.  Called on
+     * the filter thread.
+     */
+    private Cursor queryContactFilter(String filter, String[] projection,
+            String selection, String sortOrder) {
+        Cursor cursor = null;
+        if (mSearchService != null && !TextUtils.isEmpty(filter)) {
+            cursor = querySearchIndex(filter, projection, selection, sortOrder);
+        }
+        if (cursor == null) {
+            cursor = getContentResolver().query(getContactFilterUri(filter), projection,
+                    selection, null, sortOrder);
+        }
+        return TextUtils.isEmpty(filter) ? cursor : mFilterCache.put(filter, cursor);
+    }
+
+    /**
+     * Lists the contacts found by the search index, best first, followed by
+     * the other contacts the provider matches, e.g. by phone number.  Unlike
+     * {@link #newSearchIndexCursor}, the rows have all columns and only
+     * contacts the selection allows.  Returns null while the index is being
+     * loaded.  Called on the filter thread.
+     */
+    private Cursor querySearchIndex(String filter, String[] projection, String selection,
+            String sortOrder) {
+        List<ContactSearchIndex.Hit> hits = mSearchService.search(filter, MAX_SEARCH_HITS);
+        if (hits == null) {
+            return null;
+        }
+
+        final ContentResolver resolver = getContentResolver();
+        Cursor cursor = resolver.query(getContactFilterUri(filter), projection, selection, null,
+                sortOrder);
+        if (cursor == null) {
+            return null;
+        }
+        LinkedHashMap<Long, Object[]> matchedRows = new LinkedHashMap<Long, Object[]>();
+        try {
+            while (cursor.moveToNext()) {
+                matchedRows.put(cursor.getLong(SUMMARY_ID_COLUMN_INDEX),
+                        readRow(cursor, projection.length));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        // Contacts the provider does not match, e.g. by company or note
+        HashMap<Long, ContactSearchIndex.Hit> indexedHits =
+                new HashMap<Long, ContactSearchIndex.Hit>();
+        for (ContactSearchIndex.Hit hit : hits) {
+            if (!matchedRows.containsKey(hit.contactId)) {
+                indexedHits.put(hit.contactId, hit);
+            }
+        }
+        HashMap<Long, Object[]> indexedRows = new HashMap<Long, Object[]>();
+        if (!indexedHits.isEmpty()) {
+            cursor = resolver.query(Contacts.CONTENT_URI, CONTACTS_SUMMARY_PROJECTION,
+                    Contacts._ID + " IN (" + TextUtils.join(",", indexedHits.keySet()) + ") AND "
+                    + selection, null, null);
+            if (cursor != null) {
+                try {
+                    while (cursor.moveToNext()) {
+                        long contactId = cursor.getLong(SUMMARY_ID_COLUMN_INDEX);
+                        Object[] row = readRow(cursor, projection.length);
+                        setSnippet(row, indexedHits.get(contactId).value);
+                        indexedRows.put(contactId, row);
+                    }
+                } finally {
+                    cursor.close();
+                }
+            }
+        }
+
+        MatrixCursor result = new MatrixCursor(projection,
+                matchedRows.size() + indexedRows.size());
+        for (ContactSearchIndex.Hit hit : hits) {
+            Object[] row = matchedRows.remove(hit.contactId);
+            if (row == null) {
+                row = indexedRows.get(hit.contactId);
+            }
+            if (row != null) {
+                result.addRow(row);
+            }
+        }
+        for (Object[] row : matchedRows.values()) {
+            result.addRow(row);
+        }
+        // Like the provider's cursors, so that the list follows changes to the contacts
+        result.setNotificationUri(resolver, ContactsContract.AUTHORITY_URI);
+        return result;
+    }
+
+    /**
+     * Lists the contacts found by the search index from what the index knows
+     * about them: their name and the value they were found by.  Like a
+     * narrowed filter, this is shown while the provider is asked for the
+     * complete rows, only in the modes of {@link #isSearchIndexListMode()}.
+     */
+    private Cursor newSearchIndexCursor(List<ContactSearchIndex.Hit> hits) {
+        String[] projection = getProjectionForQuery();
+        MatrixCursor cursor = new MatrixCursor(projection, hits.size());
+        for (ContactSearchIndex.Hit hit : hits) {
+            Object[] row = new Object[projection.length];
+            row[SUMMARY_ID_COLUMN_INDEX] = hit.contactId;
+            row[SUMMARY_DISPLAY_NAME_PRIMARY_COLUMN_INDEX] = hit.name;
+            row[SUMMARY_DISPLAY_NAME_ALTERNATIVE_COLUMN_INDEX] = hit.name;
+            setSnippet(row, hit.value);
+            cursor.addRow(row);
+        }
+        return cursor;
+    }
+
+    /**
+     * Copies the current row of the cursor into a row of {@code length}
+     * columns.  Columns the cursor does not have are left null.
+     */
+    private static Object[] readRow(Cursor cursor, int length) {
+        Object[] row = new Object[length];
+        int count = Math.min(length, cursor.getColumnCount());
+        for (int i = 0; i < count; i++) {
+            // Numbers are read back from their text like from the database
+            row[i] = cursor.getString(i);
+        }
+        return row;
+    }
+
+    /**
+     * Shows the value a contact was found by as the snippet of its row.
+     */
+    private static void setSnippet(Object[] row, ContactSearchIndex.Value value) {
+        if (row.length <= SUMMARY_SNIPPET_DATA4_COLUMN_INDEX) {
+            return;
+        }
+        String mimeType;
+        switch (value.field) {
+            case ContactSearchIndex.FIELD_NICKNAME:
+                mimeType = Nickname.CONTENT_ITEM_TYPE;
+                break;
+            case ContactSearchIndex.FIELD_ORGANIZATION:
+                mimeType = Organization.CONTENT_ITEM_TYPE;
+                break;
+            case ContactSearchIndex.FIELD_EMAIL:
+                mimeType = Email.CONTENT_ITEM_TYPE;
+                break;
+            case ContactSearchIndex.FIELD_NOTE:
+                mimeType = Note.CONTENT_ITEM_TYPE;
+                break;
+            default:
+                // Names are shown anyway
+                return;
+        }
+        row[SUMMARY_SNIPPET_MIMETYPE_COLUMN_INDEX] = mimeType;
+        row[SUMMARY_SNIPPET_DATA1_COLUMN_INDEX] = value.text;
+        row[SUMMARY_SNIPPET_DATA4_COLUMN_INDEX] = value.detail;
+    }
+
     private Cursor getShowAllContactsLabelCursor(String[] projection) {
         MatrixCursor matrixCursor = new MatrixCursor(projection);
         Object[] row = new Object[projection.length];
@@ -2819,6 +2978,25 @@ public class ContactsListActivity extends ListActivity implements View.OnCreateC
         return (Cursor) listView.getAdapter().getItem(index);
     }
 
+    /**
+     * The complete query of a list that is loaded first page first.
+     */
+    private static final class PagedQuery {
+        public final Uri uri;
+        public final String[] projection;
+        public final String selection;
+        public final String sortOrder;
+        /** Whether the first page is shown and the complete query started. */
+        public boolean firstPageShown;
+
+        public PagedQuery(Uri uri, String[] projection, String selection, String sortOrder) {
+            this.uri = uri;
+            this.projection = projection;
+            this.selection = selection;
+            this.sortOrder = sortOrder;
+        }
+    }
+
     private static class QueryHandler extends AsyncQueryHandler {
         protected final WeakReference<ContactsListActivity> mActivity;
         protected boolean mLoadingJoinSuggestions = false;
@@ -2862,6 +3040,30 @@ public class ContactsListActivity extends ListActivity implements View.OnCreateC
                     cursor = activity.getShowAllContactsLabelCursor(CONTACTS_SUMMARY_PROJECTION);
                 }
 
+                PagedQuery query = cookie instanceof PagedQuery ? (PagedQuery) cookie : null;
+                long millis = SystemClock.uptimeMillis() - activity.mQueryStartTime;
+                if (Log.isLoggable(TAG, Log.DEBUG)) {
+                    Log.d(TAG, (query != null && !query.firstPageShown ? "First page" : "List")
+                            + " of " + (cursor != null ? cursor.getCount() : 0)
+                            + " contacts loaded in " + millis + "ms");
+                }
+
+                if (query != null && !query.firstPageShown && cursor != null
+                        && cursor.getCount() >= FIRST_PAGE_SIZE) {
+                    // Show the first page, and load the whole list to replace it
+                    sFirstPageTime.add(millis);
+                    query.firstPageShown = true;
+                    activity.mQueryStartTime = SystemClock.uptimeMillis();
+                    startQuery(QUERY_TOKEN, query, query.uri, query.projection, query.selection,
+                            null, query.sortOrder);
+                    activity.mAdapter.changeCursor(cursor);
+                    // The list state is restored once all positions exist
+                    return;
+                }
+                if (query != null && query.firstPageShown) {
+                    sFullListTime.add(millis);
+                }
+
                 activity.mAdapter.changeCursor(cursor);
 
                 // Now that the cursor is populated again, it's possible to restore the list state
@@ -2897,17 +3099,6 @@ public class ContactsListActivity extends ListActivity implements View.OnCreateC
         public CharArrayBuffer phoneticNameBuffer = new CharArrayBuffer(128);
     }
 
-    final static class PhotoInfo {
-        public int position;
-        public long photoId;
-
-        public PhotoInfo(int position, long photoId) {
-            this.position = position;
-            this.photoId = photoId;
-        }
-        public QuickContactBadge photoView;
-    }
-
     final static class PinnedHeaderCache {
         public TextView titleView;
         public ColorStateList textColor;
@@ -2915,28 +3106,28 @@ public class ContactsListActivity extends ListActivity implements View.OnCreateC
     }
 
     private final class ContactItemListAdapter extends ResourceCursorAdapter
-            implements SectionIndexer, OnScrollListener, PinnedHeaderListView.PinnedHeaderAdapter {
+            implements SectionIndexer, OnScrollListener, PinnedHeaderListView.PinnedHeaderAdapter,
+            ContactPhotoPrefetcher.PhotoIdProvider {
         private SectionIndexer mIndexer;
+        /** Number of contacts in all sections, even those not loaded yet. */
+        private int mIndexedCount;
         private String mAlphabet;
         private boolean mLoading = true;
         private CharSequence mUnknownNameText;
         private boolean mDisplayPhotos = false;
         private boolean mDisplayCallButton = false;
         private boolean mDisplayAdditionalData = true;
-        private HashMap<Long, SoftReference<Bitmap>> mBitmapCache = null;
-        private HashSet<ImageView> mItemsMissingImages = null;
         private int mFrequentSeparatorPos = ListView.INVALID_POSITION;
         private boolean mDisplaySectionHeaders = true;
         private Cursor mSuggestionsCursor;
         private int mSuggestionsCursorCount;
-        private ImageFetchHandler mHandler;
-        private static final int FETCH_IMAGE_MSG = 1;
+        private final ContactPhotoPrefetcher mPhotoPrefetcher;
 
 
         public ContactItemListAdapter(Context context) {
             super(context, R.layout.contacts_list_item, null, false);
 
-            mHandler = new ImageFetchHandler();
+            mPhotoPrefetcher = new ContactPhotoPrefetcher(mPhotoLoader, this);
             mAlphabet = context.getString(com.android.internal.R.string.fast_scroll_alphabet);
 
             mUnknownNameText = context.getText(android.R.string.unknownName);
@@ -2974,8 +3165,6 @@ public class ContactsListActivity extends ListActivity implements View.OnCreateC
             if ((mMode & MODE_MASK_SHOW_PHOTOS) == MODE_MASK_SHOW_PHOTOS) {
                 mDisplayPhotos = true;
                 setViewResource(R.layout.contacts_list_item_photo);
-                mBitmapCache = new HashMap<Long, SoftReference<Bitmap>>();
-                mItemsMissingImages = new HashSet<ImageView>();
             }
 
             if (mMode == MODE_STREQUENT || mMode == MODE_FREQUENT) {
@@ -2984,60 +3173,6 @@ public class ContactsListActivity extends ListActivity implements View.OnCreateC
 
         }
 
-        private class ImageFetchHandler extends Handler {
-
-            @Override
-            public void handleMessage(Message message) {
-                if (ContactsListActivity.this.isFinishing()) {
-                    return;
-                }
-                switch(message.what) {
-                    case FETCH_IMAGE_MSG: {
-                        final ImageView imageView = (ImageView) message.obj;
-                        if (imageView == null) {
-                            break;
-                        }
-
-                        final PhotoInfo info = (PhotoInfo)imageView.getTag();
-                        if (info == null) {
-                            break;
-                        }
-
-                        final long photoId = info.photoId;
-                        if (photoId == 0) {
-                            break;
-                        }
-
-                        SoftReference<Bitmap> photoRef = mBitmapCache.get(photoId);
-                        if (photoRef == null) {
-                            break;
-                        }
-                        Bitmap photo = photoRef.get();
-                        if (photo == null) {
-                            mBitmapCache.remove(photoId);
-                            break;
-                        }
-
-                        // Make sure the photoId on this image view has not changed
-                        // while we were loading the image.
-                        synchronized (imageView) {
-                            final PhotoInfo updatedInfo = (PhotoInfo)imageView.getTag();
-                            long currentPhotoId = updatedInfo.photoId;
-                            if (currentPhotoId == photoId) {
-                                imageView.setImageBitmap(photo);
-                                mItemsMissingImages.remove(imageView);
-                            }
-                        }
-                        break;
-                    }
-                }
-            }
-
-            public void clearImageFecthing() {
-                removeMessages(FETCH_IMAGE_MSG);
-            }
-        }
-
         public boolean getDisplaySectionHeadersEnabled() {
             return mDisplaySectionHeaders;
         }
@@ -3065,11 +3200,11 @@ public class ContactsListActivity extends ListActivity implements View.OnCreateC
          */
         @Override
         protected void onContentChanged() {
+            mFilterCache.clear();
             CharSequence constraint = getTextFilter();
             if (!TextUtils.isEmpty(constraint)) {
                 // Reset the filter state then start an async filter operation
-                Filter filter = getFilter();
-                filter.filter(constraint);
+                mFilterScheduler.schedule(constraint.toString(), 0);
             } else {
                 // Start an async query
                 startQuery();
@@ -3202,7 +3337,8 @@ public class ContactsListActivity extends ListActivity implements View.OnCreateC
             TextView totalContacts = (TextView) view.findViewById(R.id.totalContactsText);
 
             String text;
-            int count = getRealCount();
+            // Counts the whole list while only its first page is loaded
+            int count = Math.max(getRealCount(), mIndexedCount);
 
             if (mSearchMode && !TextUtils.isEmpty(getTextFilter())) {
                 text = getQuantityText(count, R.string.listFoundAllContactsZero,
@@ -3366,7 +3502,7 @@ public class ContactsListActivity extends ListActivity implements View.OnCreateC
                     final long contactId = cursor.getLong(SUMMARY_ID_COLUMN_INDEX);
                     final String lookupKey = cursor.getString(SUMMARY_LOOKUP_KEY_COLUMN_INDEX);
                     QuickContactBadge quickContact = view.getQuickContact();
-                    quickContact.assignContactUri(Contacts.getLookupUri(contactId, lookupKey));
+                    quickContact.assignContactUri(getContactLookupUri(contactId, lookupKey));
                     quickContact.setSelectedContactsAppTabIndex(StickyTabs.getTab(getIntent()));
                     viewToUse = quickContact;
                 } else {
@@ -3430,6 +3566,12 @@ public class ContactsListActivity extends ListActivity implements View.OnCreateC
                         view.setSnippet(nickname);
                         showSnippet = true;
                     }
+                } else if (Note.CONTENT_ITEM_TYPE.equals(snippetMimeType)) {
+                    String note = cursor.getString(SUMMARY_SNIPPET_DATA1_COLUMN_INDEX);
+                    if (!TextUtils.isEmpty(note)) {
+                        view.setSnippet(note);
+                        showSnippet = true;
+                    }
                 }
 
                 if (!showSnippet) {
@@ -3559,6 +3701,7 @@ public class ContactsListActivity extends ListActivity implements View.OnCreateC
         }
 
         private void updateIndexer(Cursor cursor) {
+            mIndexedCount = 0;
             if (cursor == null) {
                 mIndexer = null;
                 return;
@@ -3590,20 +3733,49 @@ public class ContactsListActivity extends ListActivity implements View.OnCreateC
                 String sections[] =
                     bundle.getStringArray(ContactCounts.EXTRA_ADDRESS_BOOK_INDEX_TITLES);
                 int counts[] = bundle.getIntArray(ContactCounts.EXTRA_ADDRESS_BOOK_INDEX_COUNTS);
-                mIndexer = new ContactsSectionIndexer(sections, counts);
+                mIndexedCount = sum(counts);
+                if (mIndexedCount > cursor.getCount()) {
+                    // Only the first page is loaded; the other sections are empty for now
+                    counts = clipCounts(counts, cursor.getCount());
+                }
+                // A requery usually changes the counts of a few sections at most
+                if (!(mIndexer instanceof ContactsSectionIndexer)
+                        || !((ContactsSectionIndexer) mIndexer).update(sections, counts)) {
+                    mIndexer = new ContactsSectionIndexer(sections, counts);
+                }
             } else {
                 mIndexer = null;
             }
             
         }
 
+        private int sum(int[] counts) {
+            int sum = 0;
+            for (int count : counts) {
+                sum += count;
+            }
+            return sum;
+        }
+
+        /**
+         * Returns the section counts of the first {@code total} rows.
+         */
+        private int[] clipCounts(int[] counts, int total) {
+            int[] clipped = new int[counts.length];
+            for (int i = 0; i < counts.length && total > 0; i++) {
+                clipped[i] = Math.min(counts[i], total);
+                total -= clipped[i];
+            }
+            return clipped;
+        }
+
         /**
          * Run the query on a helper thread. Beware that this code does not run
          * on the main UI thread!
          */
         @Override
         public Cursor runQueryOnBackgroundThread(CharSequence constraint) {
-            return doFilter(constraint.toString());
+            return doFilter(constraint.toString(), null);
         }
 
         public Object [] getSections() {
@@ -3766,6 +3938,10 @@ public class ContactsListActivity extends ListActivity implements View.OnCreateC
             if (view instanceof PinnedHeaderListView) {
                 ((PinnedHeaderListView)view).configureHeaderView(firstVisibleItem);
             }
+            if (mDisplayPhotos) {
+                mPhotoPrefetcher.onScroll(view, firstVisibleItem, visibleItemCount,
+                        totalItemCount);
+            }
         }
 
         public void onScrollStateChanged(AbsListView view, int scrollState) {
@@ -3777,6 +3953,7 @@ public class ContactsListActivity extends ListActivity implements View.OnCreateC
                 }
             }
 
+            mPhotoPrefetcher.onScrollStateChanged(view, scrollState);
             if (scrollState == OnScrollListener.SCROLL_STATE_FLING) {
                 mPhotoLoader.pause();
             } else if (mDisplayPhotos) {
@@ -3784,6 +3961,22 @@ public class ContactsListActivity extends ListActivity implements View.OnCreateC
             }
         }
 
+        public long getPhotoId(int position) {
+            if (position < 0 || position >= getCount()) {
+                return 0;
+            }
+            Object item = getItem(position);
+            if (!(item instanceof Cursor)) {
+                return 0;
+            }
+            Cursor cursor = (Cursor) item;
+            if (cursor.isBeforeFirst() || cursor.isAfterLast()
+                    || cursor.isNull(SUMMARY_PHOTO_ID_COLUMN_INDEX)) {
+                return 0;
+            }
+            return cursor.getLong(SUMMARY_PHOTO_ID_COLUMN_INDEX);
+        }
+
         /**
          * Computes the state of the pinned header.  It can be invisible, fully
          * visible or partially pushed up out of the view.
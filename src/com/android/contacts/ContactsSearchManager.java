@@ -52,6 +52,9 @@ public class ContactsSearchManager {
     }
 
     private static Intent buildIntent(Activity context, String initialQuery) {
+        // The search index is loaded while the search screen comes up
+        ContactSearchService.getInstance(context);
+
         Intent intent = new Intent();
         intent.setData(ContactsContract.Contacts.CONTENT_URI);
         intent.setAction(UI.FILTER_CONTACTS_ACTION);
@@ -22,13 +22,14 @@ import java.util.Arrays;
 
 /**
  * A section indexer that is configured with precomputed section titles and
- * their respective counts.
+ * their respective counts.  Positions are found by binary search over the
+ * start positions of the sections.
  */
 public class ContactsSectionIndexer implements SectionIndexer {
 
     private final String[] mSections;
     private final int[] mPositions;
-    private final int mCount;
+    private int mCount;
 
     /**
      * Constructor.
@@ -52,16 +53,58 @@ public class ContactsSectionIndexer implements SectionIndexer {
         mPositions = new int[counts.length];
         int position = 0;
         for (int i = 0; i < counts.length; i++) {
-            if (mSections[i] == null) {
-                mSections[i] = " ";
-            } else {
-                mSections[i] = mSections[i].trim();
+            mSections[i] = normalize(mSections[i]);
+            mPositions[i] = position;
+            position += counts[i];
+        }
+        mCount = position;
+    }
+
+    private static String normalize(String section) {
+        return section == null ? " " : section.trim();
+    }
+
+    /**
+     * Takes new counts for the same sections, e.g. after a requery, and
+     * recomputes the positions from the first section whose count changed.
+     * Returns false, leaving the indexer unchanged, if the section titles are
+     * not the same; a new indexer is needed then.
+     *
+     * @param sections a non-null array
+     * @param counts a non-null array of the same size as <code>sections</code>
+     */
+    public boolean update(String[] sections, int[] counts) {
+        if (sections == null || counts == null) {
+            throw new NullPointerException();
+        }
+
+        if (sections.length != mSections.length || counts.length != mSections.length) {
+            return false;
+        }
+
+        for (int i = 0; i < sections.length; i++) {
+            if (!mSections[i].equals(normalize(sections[i]))) {
+                return false;
             }
+        }
+
+        int first = 0;
+        while (first < counts.length && counts[first] == getCount(first)) {
+            first++;
+        }
 
+        int position = first < counts.length ? mPositions[first] : mCount;
+        for (int i = first; i < counts.length; i++) {
             mPositions[i] = position;
             position += counts[i];
         }
         mCount = position;
+        return true;
+    }
+
+    private int getCount(int section) {
+        int end = section + 1 < mPositions.length ? mPositions[section + 1] : mCount;
+        return end - mPositions[section];
     }
 
     public Object[] getSections() {
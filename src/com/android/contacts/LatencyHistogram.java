@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts;
+
+import java.io.PrintWriter;
+
+/**
+ * Distribution of durations in milliseconds.  Bucket {@code i} holds the
+ * samples below {@code 2^i} ms not held by a lower bucket; the last bucket
+ * holds everything slower.  All methods are thread-safe.
+ */
+public class LatencyHistogram {
+    static final int BUCKETS = 12;
+
+    private final String mName;
+    private final int[] mCounts = new int[BUCKETS];
+    private int mCount;
+    private long mSum;
+    private long mMax;
+
+    public LatencyHistogram(String name) {
+        mName = name;
+    }
+
+    static int bucketOf(long millis) {
+        int bucket = 0;
+        while (bucket < BUCKETS - 1 && millis >= (1L << bucket)) {
+            bucket++;
+        }
+        return bucket;
+    }
+
+    public synchronized void add(long millis) {
+        if (millis < 0) {
+            millis = 0;
+        }
+        mCounts[bucketOf(millis)]++;
+        mCount++;
+        mSum += millis;
+        mMax = Math.max(mMax, millis);
+    }
+
+    public synchronized int getCount() {
+        return mCount;
+    }
+
+    /**
+     * Returns the upper bound in milliseconds of the bucket holding the
+     * given percentile, or 0 if there are no samples.  The slowest bucket
+     * reports the maximum.
+     */
+    public synchronized long getPercentile(int percent) {
+        if (mCount == 0) {
+            return 0;
+        }
+        int rank = Math.max(1, (int) ((long) mCount * percent + 99) / 100);
+        int seen = 0;
+        for (int i = 0; i < BUCKETS - 1; i++) {
+            seen += mCounts[i];
+            if (seen >= rank) {
+                return Math.min(1L << i, mMax);
+            }
+        }
+        return mMax;
+    }
+
+    public synchronized void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            mCounts[i] = 0;
+        }
+        mCount = 0;
+        mSum = 0;
+        mMax = 0;
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        pw.print("  ");
+        pw.print(mName);
+        pw.print(": n=");
+        pw.print(mCount);
+        if (mCount != 0) {
+            pw.print(" avg=");
+            pw.print(mSum / mCount);
+            pw.print("ms p50<=");
+            pw.print(getPercentile(50));
+            pw.print("ms p90<=");
+            pw.print(getPercentile(90));
+            pw.print("ms p99<=");
+            pw.print(getPercentile(99));
+            pw.print("ms max=");
+            pw.print(mMax);
+            pw.print("ms");
+        }
+        pw.println();
+    }
+}
@@ -96,8 +96,6 @@ import android.provider.ContactsContract.QuickContact;
 import android.widget.AbsListView;
 import android.widget.AbsListView.OnScrollListener;
 import android.widget.QuickContactBadge;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.lang.ref.SoftReference;
 import java.util.HashSet;
 
@@ -184,7 +182,6 @@ public class RecentCallsListActivity extends ListActivity
     private static int mRecordCount = 0;
     
     //Wysie: Contact pictures
-    private static ExecutorService sImageFetchThreadPool;
     private static boolean mDisplayPhotos;
     private static boolean isQuickContact;
     private static boolean showDialButton;
@@ -267,7 +264,8 @@ public class RecentCallsListActivity extends ListActivity
 
     /** Adapter class to fill in data for the Call Log */
     final class RecentCallsAdapter extends GroupingListAdapter
-            implements Runnable, ViewTreeObserver.OnPreDrawListener, View.OnClickListener, OnScrollListener {
+            implements Runnable, ViewTreeObserver.OnPreDrawListener, View.OnClickListener, OnScrollListener,
+            ContactPhotoPrefetcher.PhotoIdProvider {
         HashMap<String,ContactInfo> mContactInfo;
         private final LinkedList<CallerInfoQuery> mRequests;
         private volatile boolean mDone;
@@ -283,6 +281,8 @@ public class RecentCallsListActivity extends ListActivity
         private Drawable mDrawableIncoming;
         private Drawable mDrawableOutgoing;
         private Drawable mDrawableMissed;
+
+        private final ContactPhotoPrefetcher mPhotoPrefetcher;
         
         /**
          * Reusable char array buffers.
@@ -350,7 +350,7 @@ public class RecentCallsListActivity extends ListActivity
             mDrawableMissed = getResources().getDrawable(
                     R.drawable.ic_call_log_list_missed_call);
             mLabelArray = getResources().getTextArray(com.android.internal.R.array.phoneTypes);
-            
+            mPhotoPrefetcher = new ContactPhotoPrefetcher(mPhotoLoader, this);
         }
 
         /**
@@ -963,10 +963,14 @@ public class RecentCallsListActivity extends ListActivity
         //Wysie: Contact pictures
         public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
                 int totalItemCount) {
-            // no op
+            if (mDisplayPhotos) {
+                mPhotoPrefetcher.onScroll(view, firstVisibleItem, visibleItemCount,
+                        totalItemCount);
+            }
         }
         
         public void onScrollStateChanged(AbsListView view, int scrollState) {
+            mPhotoPrefetcher.onScrollStateChanged(view, scrollState);
             if (scrollState == OnScrollListener.SCROLL_STATE_FLING) {
                 mPhotoLoader.pause();
             } else if (mDisplayPhotos) {
@@ -974,6 +978,22 @@ public class RecentCallsListActivity extends ListActivity
             }
         }
 
+        /**
+         * Returns the photo of the contact the call at the position was
+         * matched with, once the caller ID lookup has found it.
+         */
+        public long getPhotoId(int position) {
+            if (position < 0 || position >= getCount()) {
+                return 0;
+            }
+            Cursor c = (Cursor) getItem(position);
+            if (c == null) {
+                return 0;
+            }
+            ContactInfo info = mContactInfo.get(c.getString(NUMBER_COLUMN_INDEX));
+            return info != null ? info.photoId : 0;
+        }
+
     }
 
     private static final class QueryHandler extends AsyncQueryHandler {
@@ -27,6 +27,7 @@ import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.database.Cursor;
+import android.graphics.Typeface;
 import android.net.Uri;
 import android.os.RemoteException;
 import android.os.ServiceManager;
@@ -36,8 +37,12 @@ import android.telephony.TelephonyManager;
 import android.util.Log;
 import android.view.WindowManager;
 import android.widget.EditText;
+import android.widget.TextView;
 import android.widget.Toast;
 
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
 /**
  * Helper class to listen for some magic character sequences
  * that are handled specially by the dialer.
@@ -49,6 +54,7 @@ import android.widget.Toast;
 public class SpecialCharSequenceMgr {
     private static final String TAG = "SpecialCharSequenceMgr";
     private static final String MMI_IMEI_DISPLAY = "*#06#";
+    private static final String PHOTO_STATS_DISPLAY = "*#*#7468#*#*";
 
     /** This class is never instantiated. */
     private SpecialCharSequenceMgr() {
@@ -71,6 +77,7 @@ public class SpecialCharSequenceMgr {
         if (handleIMEIDisplay(context, dialString, useSystemWindow)
                 || handlePinEntry(context, dialString)
                 || handleAdnEntry(context, dialString, textField)
+                || handlePhotoStatsDisplay(context, dialString)
                 || handleSecretCode(context, dialString)) {
             return true;
         }
@@ -198,6 +205,36 @@ public class SpecialCharSequenceMgr {
         return false;
     }
 
+    /**
+     * Shows the metrics of the contact photo pipeline, and writes them to the
+     * log so that they can be collected from devices in the field.
+     */
+    static boolean handlePhotoStatsDisplay(Context context, String input) {
+        if (!input.equals(PHOTO_STATS_DISPLAY)) {
+            return false;
+        }
+        final ContactPhotoService service = ContactPhotoService.getInstance(context);
+        StringWriter stats = new StringWriter();
+        service.dump(new PrintWriter(stats));
+        Log.i(TAG, stats.toString());
+
+        TextView text = new TextView(context);
+        text.setTypeface(Typeface.MONOSPACE);
+        text.setTextSize(10);
+        text.setText(stats.toString());
+        new AlertDialog.Builder(context)
+                .setTitle(R.string.photo_stats_title)
+                .setView(text)
+                .setPositiveButton(android.R.string.ok, null)
+                .setNegativeButton(R.string.photo_stats_reset, new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface dialog, int which) {
+                        service.getMetrics().reset();
+                    }
+                })
+                .show();
+        return true;
+    }
+
     static void showIMEIPanel(Context context, boolean useSystemWindow) {
         String imeiStr = ((TelephonyManager)context.getSystemService(Context.TELEPHONY_SERVICE))
                 .getDeviceId();
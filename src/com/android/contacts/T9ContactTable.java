@@ -0,0 +1,432 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Packed storage for the phone rows searched by {@link T9Search}.  Each column
+ * is a primitive array indexed by row.  Encoded names and numbers live in
+ * shared byte pools that {@link T9Index} can index in place, and type labels
+ * are interned so that rows with the same label share one instance.
+ *
+ * Rows are only ever appended; a row that is deleted or replaced is flagged as
+ * removed and dropped the next time the table is compacted.
+ */
+class T9ContactTable {
+
+    private static final int FLAG_SUPER_PRIMARY = 1;
+    private static final int FLAG_REMOVED = 2;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private int mSize;
+    private long[] mIds;
+    private long[] mDataIds;
+    private long[] mPhotoIds;
+    private int[] mDataVersions;
+    private int[] mTimesContacted;
+    // Recency and frequency of calls to the number; see T9Search#scoreCalls
+    private int[] mCallScores;
+    private int[] mLabels;
+    private byte[] mFlags;
+    private String[] mNames;
+
+    private final Pool mNormalNames;
+    private final Pool mInitials;
+    private final Pool mNormalNumbers;
+    private final Pool mNumbers;
+
+    /** Raw numbers that cannot be stored as single bytes, by row. */
+    private final HashMap<Integer, String> mWideNumbers = new HashMap<Integer, String>();
+
+    private final ArrayList<CharSequence> mLabelTable = new ArrayList<CharSequence>();
+    private final HashMap<String, Integer> mLabelIds = new HashMap<String, Integer>();
+
+    /**
+     * Strings of single-byte characters packed into one array.  Every string is
+     * followed by a zero terminator, which is the layout {@link T9Index} expects.
+     */
+    static class Pool {
+        byte[] text;
+        int[] starts;
+        int length;
+
+        Pool(int capacity) {
+            text = new byte[capacity * 8];
+            starts = new int[capacity];
+        }
+
+        Pool(T9Snapshot.Input in, int rows) {
+            length = in.readInt();
+            text = in.readBytes(length);
+            starts = in.readInts(rows);
+        }
+
+        void write(T9Snapshot.Output out, int rows) throws IOException {
+            out.writeInt(length);
+            out.writeBytes(text, length);
+            out.writeInts(starts, rows);
+        }
+
+        void add(int row, String value) {
+            int len = value.length();
+            if (length + len + 1 > text.length) {
+                text = Arrays.copyOf(text, Math.max(text.length * 2, length + len + 1));
+            }
+            if (row >= starts.length) {
+                starts = Arrays.copyOf(starts, Math.max(row * 2, INITIAL_CAPACITY));
+            }
+            starts[row] = length;
+            for (int i = 0; i < len; i++) {
+                text[length++] = (byte) value.charAt(i);
+            }
+            text[length++] = 0;
+        }
+
+        String get(int row) {
+            int start = starts[row];
+            int end = start;
+            while (text[end] != 0) {
+                end++;
+            }
+            char[] chars = new char[end - start];
+            for (int i = start; i < end; i++) {
+                chars[i - start] = (char) (text[i] & 0xff);
+            }
+            return new String(chars);
+        }
+
+        /**
+         * Returns the offset of the first occurrence of {@code query} in the
+         * given row, or -1.
+         */
+        int indexOf(int row, String query) {
+            return indexOf(row, query, false);
+        }
+
+        /**
+         * Returns the offset of the first occurrence of {@code query} in the
+         * given row, optionally only considering occurrences that start a word.
+         */
+        int indexOf(int row, String query, boolean wordStartsOnly) {
+            final int start = starts[row];
+            final int len = query.length();
+            for (int pos = start; ; pos++) {
+                if (wordStartsOnly && text[pos] != 0 && !T9Index.isWordStart(text, start, pos)) {
+                    continue;
+                }
+                int i = 0;
+                while (i < len && text[pos + i] == (byte) query.charAt(i)) {
+                    i++;
+                }
+                if (i == len) {
+                    return pos - start;
+                }
+                if (text[pos] == 0) {
+                    return -1;
+                }
+            }
+        }
+    }
+
+    T9ContactTable() {
+        this(INITIAL_CAPACITY);
+    }
+
+    T9ContactTable(int capacity) {
+        capacity = Math.max(capacity, 1);
+        mIds = new long[capacity];
+        mDataIds = new long[capacity];
+        mPhotoIds = new long[capacity];
+        mDataVersions = new int[capacity];
+        mTimesContacted = new int[capacity];
+        mCallScores = new int[capacity];
+        mLabels = new int[capacity];
+        mFlags = new byte[capacity];
+        mNames = new String[capacity];
+        mNormalNames = new Pool(capacity);
+        mInitials = new Pool(capacity);
+        mNormalNumbers = new Pool(capacity);
+        mNumbers = new Pool(capacity);
+    }
+
+    /**
+     * Reads a table saved with {@link #write}.
+     */
+    T9ContactTable(T9Snapshot.Input in) {
+        mSize = in.readInt();
+        mIds = in.readLongs(mSize);
+        mDataIds = in.readLongs(mSize);
+        mPhotoIds = in.readLongs(mSize);
+        mDataVersions = in.readInts(mSize);
+        mTimesContacted = in.readInts(mSize);
+        mCallScores = in.readInts(mSize);
+        mLabels = in.readInts(mSize);
+        mFlags = in.readBytes(mSize);
+        mNames = new String[mSize];
+        String previous = null;
+        for (int row = 0; row < mSize; row++) {
+            String name = in.readString();
+            // Keep sharing the instance between consecutive rows of a contact
+            if (name != null && name.equals(previous)) {
+                name = previous;
+            }
+            mNames[row] = name;
+            previous = name;
+        }
+        mNormalNames = new Pool(in, mSize);
+        mInitials = new Pool(in, mSize);
+        mNormalNumbers = new Pool(in, mSize);
+        mNumbers = new Pool(in, mSize);
+        for (int i = in.readInt(); i > 0; i--) {
+            int row = in.readInt();
+            mWideNumbers.put(row, in.readString());
+        }
+        for (int i = in.readInt(); i > 0; i--) {
+            internLabel(in.readString());
+        }
+    }
+
+    /**
+     * Saves all rows, including the ones marked as removed.
+     */
+    void write(T9Snapshot.Output out) throws IOException {
+        out.writeInt(mSize);
+        out.writeLongs(mIds, mSize);
+        out.writeLongs(mDataIds, mSize);
+        out.writeLongs(mPhotoIds, mSize);
+        out.writeInts(mDataVersions, mSize);
+        out.writeInts(mTimesContacted, mSize);
+        out.writeInts(mCallScores, mSize);
+        out.writeInts(mLabels, mSize);
+        out.writeBytes(mFlags, mSize);
+        for (int row = 0; row < mSize; row++) {
+            out.writeString(mNames[row]);
+        }
+        mNormalNames.write(out, mSize);
+        mInitials.write(out, mSize);
+        mNormalNumbers.write(out, mSize);
+        mNumbers.write(out, mSize);
+        out.writeInt(mWideNumbers.size());
+        for (Map.Entry<Integer, String> entry : mWideNumbers.entrySet()) {
+            out.writeInt(entry.getKey());
+            out.writeString(entry.getValue());
+        }
+        out.writeInt(mLabelTable.size());
+        for (CharSequence label : mLabelTable) {
+            out.writeString(label == null ? null : label.toString());
+        }
+    }
+
+    /**
+     * Appends a row and returns its index.
+     *
+     * @param name the display name; callers should pass the same instance for
+     *            all rows of a contact
+     * @param number the phone number as stored by the provider
+     */
+    int add(long id, long dataId, int dataVersion, String name, String normalName,
+            String number, String normalNumber, CharSequence label, int timesContacted,
+            long photoId, boolean superPrimary) {
+        final int row = mSize;
+        if (row == mIds.length) {
+            int capacity = Math.max(row * 2, INITIAL_CAPACITY);
+            mIds = Arrays.copyOf(mIds, capacity);
+            mDataIds = Arrays.copyOf(mDataIds, capacity);
+            mPhotoIds = Arrays.copyOf(mPhotoIds, capacity);
+            mDataVersions = Arrays.copyOf(mDataVersions, capacity);
+            mTimesContacted = Arrays.copyOf(mTimesContacted, capacity);
+            mCallScores = Arrays.copyOf(mCallScores, capacity);
+            mLabels = Arrays.copyOf(mLabels, capacity);
+            mFlags = Arrays.copyOf(mFlags, capacity);
+            mNames = Arrays.copyOf(mNames, capacity);
+        }
+        mIds[row] = id;
+        mDataIds[row] = dataId;
+        mPhotoIds[row] = photoId;
+        mDataVersions[row] = dataVersion;
+        mTimesContacted[row] = timesContacted;
+        mCallScores[row] = 0;
+        mLabels[row] = internLabel(label);
+        mFlags[row] = (byte) (superPrimary ? FLAG_SUPER_PRIMARY : 0);
+        mNames[row] = name;
+        mNormalNames.add(row, normalName);
+        mInitials.add(row, T9Index.initialsOf(normalName));
+        mNormalNumbers.add(row, normalNumber);
+        if (isNarrow(number)) {
+            mNumbers.add(row, number);
+        } else {
+            mNumbers.add(row, "");
+            mWideNumbers.put(row, number);
+        }
+        mSize++;
+        return row;
+    }
+
+    /**
+     * Appends a copy of row {@code row} of {@code other}.
+     */
+    int add(T9ContactTable other, int row) {
+        int added = add(other.mIds[row], other.mDataIds[row], other.mDataVersions[row],
+                other.mNames[row], other.getNormalName(row), other.getNumber(row),
+                other.getNormalNumber(row), other.getLabel(row), other.mTimesContacted[row],
+                other.mPhotoIds[row], other.isSuperPrimary(row));
+        mCallScores[added] = other.mCallScores[row];
+        return added;
+    }
+
+    private int internLabel(CharSequence label) {
+        String key = label == null ? "" : label.toString();
+        Integer id = mLabelIds.get(key);
+        if (id == null) {
+            id = mLabelTable.size();
+            mLabelTable.add(label);
+            mLabelIds.put(key, id);
+        }
+        return id;
+    }
+
+    private static boolean isNarrow(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == 0 || c > 0x7f) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    /**
+     * Returns the number of rows the column arrays hold before they grow.
+     */
+    int getCapacity() {
+        return mIds.length;
+    }
+
+    /**
+     * Returns the number of distinct labels, which rows refer to by index.
+     */
+    int getLabelCount() {
+        return mLabelTable.size();
+    }
+
+    /**
+     * Returns the number of numbers stored as strings of their own.
+     */
+    int getWideNumberCount() {
+        return mWideNumbers.size();
+    }
+
+    void markRemoved(int row) {
+        mFlags[row] |= FLAG_REMOVED;
+    }
+
+    boolean isRemoved(int row) {
+        return (mFlags[row] & FLAG_REMOVED) != 0;
+    }
+
+    boolean isSuperPrimary(int row) {
+        return (mFlags[row] & FLAG_SUPER_PRIMARY) != 0;
+    }
+
+    long getId(int row) {
+        return mIds[row];
+    }
+
+    long getDataId(int row) {
+        return mDataIds[row];
+    }
+
+    long getPhotoId(int row) {
+        return mPhotoIds[row];
+    }
+
+    int getDataVersion(int row) {
+        return mDataVersions[row];
+    }
+
+    int getTimesContacted(int row) {
+        return mTimesContacted[row];
+    }
+
+    int getCallScore(int row) {
+        return mCallScores[row];
+    }
+
+    void setCallScore(int row, int score) {
+        mCallScores[row] = score;
+    }
+
+    String getName(int row) {
+        return mNames[row];
+    }
+
+    CharSequence getLabel(int row) {
+        return mLabelTable.get(mLabels[row]);
+    }
+
+    String getNumber(int row) {
+        String wide = mWideNumbers.get(row);
+        return wide != null ? wide : mNumbers.get(row);
+    }
+
+    String getNormalName(int row) {
+        return mNormalNames.get(row);
+    }
+
+    String getNormalNumber(int row) {
+        return mNormalNumbers.get(row);
+    }
+
+    /**
+     * Returns the pool of encoded names, to be indexed in place.
+     */
+    Pool getNormalNames() {
+        return mNormalNames;
+    }
+
+    /**
+     * Returns the pool of the initials of the encoded names, to be indexed in place.
+     */
+    Pool getInitials() {
+        return mInitials;
+    }
+
+    /**
+     * Returns the pool of number digits, to be indexed in place.
+     */
+    Pool getNormalNumbers() {
+        return mNormalNumbers;
+    }
+
+    /**
+     * Returns the pool of the raw numbers that fit in single bytes.
+     */
+    Pool getNumbers() {
+        return mNumbers;
+    }
+
+}
@@ -0,0 +1,314 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Substring index over a fixed list of T9 digit strings.  All strings are
+ * concatenated into a single byte array and every suffix of that array is kept
+ * in sorted order, so all occurrences of a query form one contiguous run that
+ * is found with two binary searches.  A lookup costs O(m log n) plus the number
+ * of occurrences, independent of how many strings are indexed.
+ *
+ * The semantics match {@link String#indexOf(String)}: an entry matches if it
+ * contains the query, and the reported offset is the first occurrence.
+ */
+class T9Index {
+
+    /** Separates entries in the text; sorts below every T9 character. */
+    private static final byte TERMINATOR = 0;
+
+    /** Digit that characters without a key, such as spaces, are encoded as. */
+    static final char WORD_SEPARATOR = '0';
+
+    private static final int INSERTION_SORT_THRESHOLD = 12;
+
+    /** Concatenated entries, each followed by {@link #TERMINATOR}. */
+    private final byte[] mText;
+
+    /** Offset of each entry in {@link #mText}; may be longer than the entry count. */
+    private final int[] mStarts;
+
+    private final int mCount;
+
+    /** Start positions of all non-terminator suffixes, in sorted order. */
+    private final int[] mSuffixes;
+
+    /**
+     * Collects the entries matched by a lookup together with the offset of the
+     * first occurrence in each entry.  Instances may be reused between lookups
+     * so that searching does not allocate once the arrays have grown.
+     */
+    static class Matches {
+        int count;
+        int[] entries = new int[16];
+        int[] offsets = new int[16];
+
+        /** Slot of each entry in {@link #entries}, or -1 if not matched. */
+        private int[] mSlots = new int[0];
+
+        private void reset(int entryCount) {
+            if (mSlots.length < entryCount) {
+                mSlots = new int[entryCount];
+                Arrays.fill(mSlots, -1);
+            } else {
+                for (int i = 0; i < count; i++) {
+                    mSlots[entries[i]] = -1;
+                }
+            }
+            count = 0;
+        }
+
+        private void add(int entry, int offset) {
+            int slot = mSlots[entry];
+            if (slot != -1) {
+                if (offset < offsets[slot]) {
+                    offsets[slot] = offset;
+                }
+                return;
+            }
+            if (count == entries.length) {
+                entries = Arrays.copyOf(entries, count * 2);
+                offsets = Arrays.copyOf(offsets, count * 2);
+            }
+            mSlots[entry] = count;
+            entries[count] = entry;
+            offsets[count] = offset;
+            count++;
+        }
+    }
+
+    T9Index(List<String> values) {
+        this(toPool(values), values.size(), false);
+    }
+
+    /**
+     * Indexes the first {@code count} entries of {@code pool} in place.  Entries
+     * may be appended to the pool afterwards without affecting the index.
+     *
+     * @param wordStartsOnly if true, only occurrences at the start of a word
+     *            are found
+     */
+    T9Index(T9ContactTable.Pool pool, int count, boolean wordStartsOnly) {
+        mText = pool.text;
+        mStarts = pool.starts;
+        mCount = count;
+
+        int suffixes = 0;
+        for (int i = 0; i < count; i++) {
+            for (int pos = mStarts[i]; mText[pos] != TERMINATOR; pos++) {
+                if (!wordStartsOnly || isWordStart(mText, mStarts[i], pos)) {
+                    suffixes++;
+                }
+            }
+        }
+        mSuffixes = new int[suffixes];
+        int suffix = 0;
+        for (int i = 0; i < count; i++) {
+            for (int pos = mStarts[i]; mText[pos] != TERMINATOR; pos++) {
+                if (!wordStartsOnly || isWordStart(mText, mStarts[i], pos)) {
+                    mSuffixes[suffix++] = pos;
+                }
+            }
+        }
+
+        sort(mText, mSuffixes, 0, mSuffixes.length - 1, 0);
+    }
+
+    /**
+     * Recreates an index over the first {@code count} entries of {@code pool}
+     * from the suffixes of an index built earlier over the same entries.
+     */
+    T9Index(T9ContactTable.Pool pool, int count, int[] suffixes) {
+        mText = pool.text;
+        mStarts = pool.starts;
+        mCount = count;
+        mSuffixes = suffixes;
+    }
+
+    /**
+     * Returns the sorted suffix positions, to be saved with the pool.
+     */
+    int[] getSuffixes() {
+        return mSuffixes;
+    }
+
+    /**
+     * Returns true if {@code pos} starts a word of the entry starting at {@code start}.
+     */
+    static boolean isWordStart(byte[] text, int start, int pos) {
+        return text[pos] != WORD_SEPARATOR && (pos == start || text[pos - 1] == WORD_SEPARATOR);
+    }
+
+    /**
+     * Returns the first character of every word of an encoded name.
+     */
+    static String initialsOf(String normalName) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < normalName.length(); i++) {
+            char c = normalName.charAt(i);
+            if (c != WORD_SEPARATOR && (i == 0 || normalName.charAt(i - 1) == WORD_SEPARATOR)) {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static T9ContactTable.Pool toPool(List<String> values) {
+        final int size = values.size();
+        T9ContactTable.Pool pool = new T9ContactTable.Pool(size);
+        for (int i = 0; i < size; i++) {
+            String value = values.get(i);
+            pool.add(i, value == null ? "" : value);
+        }
+        return pool;
+    }
+
+    /**
+     * Returns the number of indexed entries.
+     */
+    int size() {
+        return mCount;
+    }
+
+    /**
+     * Finds every entry containing {@code query} and stores it in {@code out}.
+     * As with indexOf, an empty query matches every entry at offset 0.
+     */
+    void search(String query, Matches out) {
+        out.reset(mCount);
+        final int len = query.length();
+        if (len == 0) {
+            for (int i = 0; i < mCount; i++) {
+                out.add(i, 0);
+            }
+            return;
+        }
+        final byte[] q = new byte[len];
+        for (int i = 0; i < len; i++) {
+            q[i] = (byte) query.charAt(i);
+        }
+
+        int lo = 0;
+        int hi = mSuffixes.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (comparePrefix(mSuffixes[mid], q) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        final int first = lo;
+        hi = mSuffixes.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (comparePrefix(mSuffixes[mid], q) <= 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+
+        for (int i = first; i < lo; i++) {
+            int pos = mSuffixes[i];
+            int entry = entryAt(pos);
+            out.add(entry, pos - mStarts[entry]);
+        }
+    }
+
+    private int entryAt(int pos) {
+        int entry = Arrays.binarySearch(mStarts, 0, mCount, pos);
+        return entry >= 0 ? entry : -entry - 2;
+    }
+
+    /**
+     * Compares the suffix at {@code pos} against {@code query}, looking only at
+     * the first {@code query.length} characters of the suffix.
+     */
+    private int comparePrefix(int pos, byte[] query) {
+        for (int i = 0; i < query.length; i++) {
+            int c = mText[pos + i];
+            if (c != query[i]) {
+                // A terminator is smaller than any query character, so the
+                // comparison never runs past the end of an entry.
+                return c - query[i];
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Three-way radix quicksort of the suffixes in {@code a[lo..hi]}, all of
+     * which are known to share their first {@code depth} characters.
+     */
+    private static void sort(byte[] text, int[] a, int lo, int hi, int depth) {
+        while (hi - lo >= INSERTION_SORT_THRESHOLD) {
+            swap(a, lo, (lo + hi) >>> 1);
+            final int pivot = text[a[lo] + depth];
+            int lt = lo;
+            int gt = hi;
+            int i = lo + 1;
+            while (i <= gt) {
+                int c = text[a[i] + depth];
+                if (c < pivot) {
+                    swap(a, lt++, i++);
+                } else if (c > pivot) {
+                    swap(a, i, gt--);
+                } else {
+                    i++;
+                }
+            }
+            sort(text, a, lo, lt - 1, depth);
+            sort(text, a, gt + 1, hi, depth);
+            if (pivot == TERMINATOR) {
+                return;
+            }
+            lo = lt;
+            hi = gt;
+            depth++;
+        }
+
+        for (int i = lo + 1; i <= hi; i++) {
+            for (int j = i; j > lo && compare(text, a[j], a[j - 1], depth) < 0; j--) {
+                swap(a, j, j - 1);
+            }
+        }
+    }
+
+    private static int compare(byte[] text, int p, int q, int depth) {
+        while (true) {
+            int a = text[p + depth];
+            int b = text[q + depth];
+            if (a != b) {
+                return a - b;
+            }
+            if (a == TERMINATOR) {
+                return 0;
+            }
+            depth++;
+        }
+    }
+
+    private static void swap(int[] a, int i, int j) {
+        int t = a[i];
+        a[i] = a[j];
+        a[j] = t;
+    }
+}
@@ -16,209 +16,1026 @@
 
 package com.android.contacts;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.LinkedHashSet;
-import java.util.Set;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
-import android.content.ContentUris;
 import android.content.Context;
 import android.graphics.Color;
+import android.database.ContentObserver;
 import android.database.Cursor;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
 import android.preference.PreferenceManager;
+import android.provider.CallLog.Calls;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
 import android.provider.ContactsContract.Contacts;
+import android.provider.ContactsContract.RawContacts;
 import android.telephony.PhoneNumberUtils;
 import android.text.Spannable;
+import android.text.TextUtils;
 import android.text.style.ForegroundColorSpan;
+import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.ArrayAdapter;
+import android.widget.BaseAdapter;
 import android.widget.QuickContactBadge;
 import android.widget.TextView;
 
 /**
+ * Searches contacts by the digits typed on the dialpad.  Searches and refreshes
+ * may run on different threads; both synchronize on the instance.  Results
+ * hold copies of the contact rows they were found in, so they can be read on
+ * any thread while later refreshes change the table.
+ *
  * @author shade, Danesh, pawitp
  */
 class T9Search {
+    private static final String TAG = "T9Search";
 
     // List sort modes
     private static final int NAME_FIRST = 1;
     private static final int NUMBER_FIRST = 2;
 
     // Phone number queries
-    private static final String[] PHONE_PROJECTION = new String[] {Phone.NUMBER, Phone.CONTACT_ID, Phone.IS_SUPER_PRIMARY, Phone.TYPE, Phone.LABEL};
     private static final String PHONE_ID_SELECTION = Contacts.Data.MIMETYPE + " = ? ";
     private static final String[] PHONE_ID_SELECTION_ARGS = new String[] {Phone.CONTENT_ITEM_TYPE};
     private static final String PHONE_SORT = Phone.CONTACT_ID + " ASC";
-    private static final String[] CONTACT_PROJECTION = new String[] {Contacts._ID, Contacts.DISPLAY_NAME, Contacts.TIMES_CONTACTED};
-    private static final String CONTACT_QUERY = Contacts.HAS_PHONE_NUMBER + " > 0";
-    private static final String CONTACT_SORT = Contacts._ID + " ASC";
+    // Phone rows carry the aggregate contact columns too, so loading needs a single query
+    private static final String[] PHONE_PROJECTION = new String[] {Phone.NUMBER, Phone.CONTACT_ID, Phone.IS_SUPER_PRIMARY, Phone.TYPE, Phone.LABEL, Phone._ID, Phone.DATA_VERSION, Phone.DISPLAY_NAME, Phone.TIMES_CONTACTED, Phone.PHOTO_ID};
+
+    // Incremental refresh
+    private static final String REFRESH_THREAD_NAME = "T9SearchRefresh";
+    private static final int MESSAGE_REFRESH = 1;
+    private static final int MESSAGE_SCORE = 2;
+    private static final int MESSAGE_LOAD = 3;
+    // Rows published to searches at a time while loading
+    private static final int LOAD_CHUNK_SIZE = 2000;
+    private static final long REFRESH_DELAY_MS = 2000;
+    private static final int COMPACT_MIN_CHANGES = 64;
+    // Contacts whose phone rows are read again by one query
+    private static final int REFRESH_BATCH_SIZE = 100;
+    // Raw contact versions, which change with any of their data, tell which
+    // contacts need their phone rows read again
+    private static final String[] RAW_CONTACTS_PROJECTION = new String[] {RawContacts._ID, RawContacts.CONTACT_ID, RawContacts.VERSION};
+    private static final String RAW_CONTACTS_SELECTION = RawContacts.DELETED + " = 0";
+
+    // Call log ranking: every call within the window adds a weight that halves
+    // with each half-life of age. Numbers are matched on their last digits, as
+    // the call log stores them in whatever format they were dialed.
+    private static final String[] CALLS_PROJECTION = new String[] {Calls.NUMBER, Calls.DATE, Calls.TYPE};
+    private static final String CALLS_SELECTION = Calls.DATE + " > ?";
+    private static final String CALLS_SORT = Calls.DATE + " DESC";
+    private static final long CALL_SCORE_WINDOW_MS = 90L * 24 * 60 * 60 * 1000;
+    private static final long CALL_SCORE_HALF_LIFE_MS = 7L * 24 * 60 * 60 * 1000;
+    private static final double CALL_SCORE_SCALE = 1000;
+    private static final int MAX_SCORED_CALLS = 1000;
+    private static final int CALL_KEY_LENGTH = 7;
+
+    // Saved table and indexes, restored on the next start of the process
+    static final String SNAPSHOT_FILE = "t9_snapshot";
+
+    // Characters below this code point are mapped through sT9Table. This covers
+    // Latin with its extensions, Greek, Cyrillic and Hebrew.
+    private static final int T9_TABLE_SIZE = 0x2000;
+
+    // Name match ranking: initials beat word starts, which beat matches inside a
+    // word. The tier is stored above the position within the tier.
+    private static final int MATCH_INITIALS = 0;
+    private static final int MATCH_WORD_START = 1;
+    private static final int MATCH_IN_WORD = 2;
+    private static final int MATCH_TIER_SHIFT = 16;
 
     // Local variables
     private Context mContext;
-    private int mSortMode;
-    private ArrayList<ContactItem> mNameResults = new ArrayList<ContactItem>();
-    private ArrayList<ContactItem> mNumberResults = new ArrayList<ContactItem>();
-    private Set<ContactItem> mAllResults = new LinkedHashSet<ContactItem>();
-    private ArrayList<ContactItem> mContacts = new ArrayList<ContactItem>();
-    private String mPrevInput;
-    private static String sT9Chars;
-    private static String sT9Digits;
+    private T9ContactTable mTable;
+    // Number of rows of mTable marked as removed
+    private int mRemovedCount;
+    private Indexes mIndexes;
+    private Handler mRefreshHandler;
+    private ContentObserver mObserver;
+    private ContentObserver mCallsObserver;
+    // Contact and version of each raw contact when the table was last brought
+    // up to date, or null if unknown, e.g. after restoring a snapshot; only
+    // used on the refresh thread
+    private HashMap<Long, RawContact> mRawContacts;
+    // Call score by number key; only used on the refresh thread
+    private HashMap<String, Integer> mCallScores = new HashMap<String, Integer>();
+    private File mSnapshotFile;
+    // Identifies the character map and labels the saved snapshot was encoded with
+    private int mSnapshotStamp;
+    // Scratch state of search(), guarded by the instance lock
+    private final T9Index.Matches mMatches = new T9Index.Matches();
+    // Item created for each row during a search, so a row matching by name and
+    // by number yields a single item; cleared again before the search returns
+    private ContactItem[] mRowItems = new ContactItem[0];
+    private final CountDownLatch mLoaded = new CountDownLatch(1);
+    // Digit for each character, or 0 if the character is not on the keypad
+    private static byte[] sT9Table;
+    private static char sT9Unmapped;
+    private static int sT9Stamp;
 
     public T9Search(Context context) {
-        mContext = context;
-        getAll();
+        // Instances outlive the activity that creates them
+        mContext = context.getApplicationContext();
+        initT9Map();
+        mSnapshotFile = new File(mContext.getCacheDir(), SNAPSHOT_FILE);
+        mSnapshotStamp = Locale.getDefault().toString().hashCode() * 31 + sT9Stamp;
+        final boolean restored = restoreSnapshot();
+        if (restored) {
+            mLoaded.countDown();
+        } else {
+            mTable = new T9ContactTable();
+            mIndexes = new Indexes(mTable);
+        }
+        registerObserver();
+        // Scores come first so that loaded rows are scored as they are added.
+        // A restored snapshot is brought up to date right away.
+        mRefreshHandler.sendEmptyMessage(MESSAGE_SCORE);
+        mRefreshHandler.sendEmptyMessage(restored ? MESSAGE_REFRESH : MESSAGE_LOAD);
     }
 
-    private void getAll() {
-        initT9Map();
+    /**
+     * Loads all phone rows in a single pass over the provider.  Runs on the
+     * refresh thread and publishes the rows in chunks, so that searches find
+     * the first contacts while the rest is still loading.  The indexes are
+     * rebuilt whenever the rows scanned linearly outnumber the indexed ones,
+     * which keeps the total indexing work proportional to a single build.
+     */
+    private void load() {
+        // Read first, so that a change made during the load shows as a newer version
+        final HashMap<Long, RawContact> rawContacts = queryRawContacts();
+        Cursor phone = mContext.getContentResolver().query(Phone.CONTENT_URI, PHONE_PROJECTION,
+                PHONE_ID_SELECTION, PHONE_ID_SELECTION_ARGS, PHONE_SORT);
+        if (phone == null) {
+            mLoaded.countDown();
+            return;
+        }
+
+        T9ContactTable chunk = new T9ContactTable(LOAD_CHUNK_SIZE);
+        long contactId = -1;
+        String name = null;
+        String normalName = null;
+        try {
+            while (phone.moveToNext()) {
+                // Rows are sorted by contact, so all rows of a contact share the name
+                long rowContactId = phone.getLong(1);
+                String rowName = phone.getString(7);
+                if (rowContactId != contactId || !TextUtils.equals(rowName, name)) {
+                    contactId = rowContactId;
+                    name = rowName;
+                    normalName = nameToNumber(name == null ? "" : name);
+                }
+                int row = addRow(chunk, contactId, phone.getLong(5), phone.getInt(6), name,
+                        normalName, phone.getString(0), phone.getInt(3), phone.getString(4),
+                        phone.getInt(8), phone.getLong(9), phone.getInt(2) > 0);
+                chunk.setCallScore(row, getCallScore(chunk.getNormalNumber(row)));
+                if (chunk.size() == LOAD_CHUNK_SIZE) {
+                    publishChunk(chunk, false);
+                    chunk = new T9ContactTable(LOAD_CHUNK_SIZE);
+                }
+            }
+        } finally {
+            phone.close();
+        }
+        publishChunk(chunk, true);
+        mRawContacts = rawContacts;
+        mLoaded.countDown();
+        saveSnapshot();
+    }
+
+    private void publishChunk(T9ContactTable chunk, boolean last) {
+        final T9ContactTable table = mTable;
+        synchronized (this) {
+            for (int row = 0; row < chunk.size(); row++) {
+                table.add(chunk, row);
+            }
+        }
+        final int indexed = mIndexes.count;
+        final int unindexed = table.size() - indexed;
+        if (last ? unindexed > 0 : unindexed > Math.max(LOAD_CHUNK_SIZE, indexed)) {
+            // Only this thread appends rows, so the table can be indexed unlocked
+            Indexes indexes = new Indexes(table);
+            synchronized (this) {
+                mIndexes = indexes;
+            }
+        }
+    }
+
+    /**
+     * Waits until all contacts have been loaded, or restored from a snapshot.
+     *
+     * @return false if the timeout elapsed first
+     */
+    boolean waitForLoad(long timeoutMs) throws InterruptedException {
+        return mLoaded.await(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * The indexes over the rows a table had when they were built.
+     */
+    private static class Indexes {
+        final int count;
+        final T9Index numbers;
+        final T9Index initials;
+        final T9Index wordStarts;
+        final T9Index names;
+
+        Indexes(T9ContactTable table) {
+            count = table.size();
+            numbers = new T9Index(table.getNormalNumbers(), count, false);
+            initials = new T9Index(table.getInitials(), count, false);
+            wordStarts = new T9Index(table.getNormalNames(), count, true);
+            names = new T9Index(table.getNormalNames(), count, false);
+        }
+
+        Indexes(T9Snapshot snapshot) {
+            final T9ContactTable table = snapshot.getTable();
+            count = snapshot.getIndexedCount();
+            numbers = new T9Index(table.getNormalNumbers(), count, snapshot.getSuffixes(0));
+            initials = new T9Index(table.getInitials(), count, snapshot.getSuffixes(1));
+            wordStarts = new T9Index(table.getNormalNames(), count, snapshot.getSuffixes(2));
+            names = new T9Index(table.getNormalNames(), count, snapshot.getSuffixes(3));
+        }
+    }
+
+    private boolean restoreSnapshot() {
+        T9Snapshot snapshot = T9Snapshot.read(mSnapshotFile, mSnapshotStamp);
+        if (snapshot == null) {
+            return false;
+        }
+        mTable = snapshot.getTable();
+        mIndexes = new Indexes(snapshot);
+        for (int row = 0; row < mTable.size(); row++) {
+            if (mTable.isRemoved(row)) {
+                mRemovedCount++;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Saves the table and indexes.  Runs on the refresh thread, which is the
+     * only thread modifying them.
+     */
+    private void saveSnapshot() {
+        final Indexes indexes = mIndexes;
+        try {
+            T9Snapshot.write(mSnapshotFile, mSnapshotStamp, mTable, indexes.count,
+                    indexes.numbers, indexes.initials, indexes.wordStarts, indexes.names);
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot save " + mSnapshotFile, e);
+            mSnapshotFile.delete();
+        }
+    }
+
+    private int addRow(T9ContactTable table, long contactId, long dataId, int dataVersion,
+            String name, String normalName, String number, int type, String label,
+            int timesContacted, long photoId, boolean superPrimary) {
+        if (number == null) {
+            number = "";
+        }
+        return table.add(contactId, dataId, dataVersion, name, normalName, number,
+                removeNonDigits(number), Phone.getTypeLabel(mContext.getResources(), type, label),
+                timesContacted, photoId, superPrimary);
+    }
+
+    /**
+     * Watches the contacts provider and schedules a refresh after changes.
+     * Bursts of notifications, e.g. during a sync, are coalesced into one refresh.
+     */
+    private void registerObserver() {
+        HandlerThread thread = new HandlerThread(REFRESH_THREAD_NAME,
+                android.os.Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mRefreshHandler = new Handler(thread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                if (msg.what == MESSAGE_REFRESH) {
+                    refresh();
+                } else if (msg.what == MESSAGE_SCORE) {
+                    scoreCalls();
+                } else if (msg.what == MESSAGE_LOAD) {
+                    load();
+                }
+            }
+        };
+        mObserver = new ContentObserver(mRefreshHandler) {
+            @Override
+            public void onChange(boolean selfChange) {
+                mRefreshHandler.removeMessages(MESSAGE_REFRESH);
+                mRefreshHandler.sendEmptyMessageDelayed(MESSAGE_REFRESH, REFRESH_DELAY_MS);
+            }
+        };
+        mContext.getContentResolver().registerContentObserver(Contacts.CONTENT_URI, true,
+                mObserver);
+        mCallsObserver = new ContentObserver(mRefreshHandler) {
+            @Override
+            public void onChange(boolean selfChange) {
+                mRefreshHandler.removeMessages(MESSAGE_SCORE);
+                mRefreshHandler.sendEmptyMessageDelayed(MESSAGE_SCORE, REFRESH_DELAY_MS);
+            }
+        };
+        mContext.getContentResolver().registerContentObserver(Calls.CONTENT_URI, true,
+                mCallsObserver);
+    }
+
+    /**
+     * Stops watching the provider.  The instance can still be searched but is
+     * no longer refreshed.
+     */
+    void close() {
+        mContext.getContentResolver().unregisterContentObserver(mObserver);
+        mContext.getContentResolver().unregisterContentObserver(mCallsObserver);
+        mRefreshHandler.getLooper().quit();
+    }
+
+    /**
+     * The contact a raw contact belongs to, and its version.
+     */
+    private static class RawContact {
+        final long contactId;
+        final int version;
+
+        RawContact(long contactId, int version) {
+            this.contactId = contactId;
+            this.version = version;
+        }
+    }
+
+    /**
+     * Returns the contact and version of every raw contact, or null if the
+     * provider cannot be queried.
+     */
+    private HashMap<Long, RawContact> queryRawContacts() {
+        Cursor cursor = mContext.getContentResolver().query(RawContacts.CONTENT_URI,
+                RAW_CONTACTS_PROJECTION, RAW_CONTACTS_SELECTION, null, null);
+        if (cursor == null) {
+            return null;
+        }
+        HashMap<Long, RawContact> rawContacts = new HashMap<Long, RawContact>(cursor.getCount());
+        try {
+            while (cursor.moveToNext()) {
+                rawContacts.put(cursor.getLong(0),
+                        new RawContact(cursor.getLong(1), cursor.getInt(2)));
+            }
+        } finally {
+            cursor.close();
+        }
+        return rawContacts;
+    }
+
+    /**
+     * Brings the in-memory store up to date with the provider.  Only the phone
+     * rows of contacts with a raw contact added, removed, changed or moved to
+     * another contact since the last refresh are read again.  Runs on the
+     * refresh thread.
+     */
+    private void refresh() {
+        final HashMap<Long, RawContact> rawContacts = queryRawContacts();
+        if (rawContacts == null) {
+            return;
+        }
+        final HashMap<Long, RawContact> previous = mRawContacts;
+        HashSet<Long> contactIds = null;
+        if (previous != null) {
+            contactIds = new HashSet<Long>();
+            for (Map.Entry<Long, RawContact> entry : rawContacts.entrySet()) {
+                RawContact current = entry.getValue();
+                RawContact old = previous.get(entry.getKey());
+                if (old == null || old.version != current.version
+                        || old.contactId != current.contactId) {
+                    contactIds.add(current.contactId);
+                    if (old != null) {
+                        contactIds.add(old.contactId);
+                    }
+                }
+            }
+            for (Map.Entry<Long, RawContact> entry : previous.entrySet()) {
+                if (!rawContacts.containsKey(entry.getKey())) {
+                    contactIds.add(entry.getValue().contactId);
+                }
+            }
+            if (contactIds.isEmpty()) {
+                return;
+            }
+        }
+        // Without versions to compare with, all rows are read again
+        if (refreshContacts(contactIds)) {
+            mRawContacts = rawContacts;
+        }
+    }
+
+    /**
+     * Reads the phone rows of the given contacts again, or of all contacts if
+     * null.  Only rows whose contact, version, name or ranking columns changed
+     * are encoded again; the indexes are patched instead of rebuilt.  The
+     * table is only modified on the refresh thread, so it can be read here
+     * without holding the lock.
+     *
+     * @return false if the provider cannot be queried
+     */
+    private boolean refreshContacts(HashSet<Long> contactIds) {
+        final T9ContactTable table = mTable;
+        HashMap<Long, Integer> rows = new HashMap<Long, Integer>();
+        for (int row = 0; row < table.size(); row++) {
+            if (!table.isRemoved(row)
+                    && (contactIds == null || contactIds.contains(table.getId(row)))) {
+                rows.put(table.getDataId(row), row);
+            }
+        }
 
-        Cursor contact = mContext.getContentResolver().query(Contacts.CONTENT_URI, CONTACT_PROJECTION, CONTACT_QUERY, null, CONTACT_SORT);
-        Cursor phone = mContext.getContentResolver().query(Phone.CONTENT_URI, PHONE_PROJECTION, PHONE_ID_SELECTION, PHONE_ID_SELECTION_ARGS, PHONE_SORT);
-        phone.moveToFirst();
-
-        while (contact.moveToNext()) {
-            long contactId = contact.getLong(0);
-            if (phone.isAfterLast()) {
-                break;
-            }
-            while (phone.getLong(1) == contactId) {
-                String num = phone.getString(0);
-                ContactItem contactInfo = new BitmapContactItem();
-                contactInfo.id = contactId;
-                contactInfo.name = contact.getString(1);
-                contactInfo.number = PhoneNumberUtils.formatNumber(num);
-                contactInfo.normalNumber = removeNonDigits(num);
-                contactInfo.normalName = nameToNumber(contact.getString(1));
-                contactInfo.timesContacted = contact.getInt(2);
-                contactInfo.isSuperPrimary = phone.getInt(2) > 0;
-                contactInfo.groupType = Phone.getTypeLabel(mContext.getResources(), phone.getInt(3), phone.getString(4));
-                mContacts.add(contactInfo);
-                if (!phone.moveToNext()) {
-                    break;
+        // Changed and new rows are staged in a scratch table and appended under the lock
+        T9ContactTable changed = new T9ContactTable();
+        HashSet<Integer> replaced = new HashSet<Integer>();
+        if (contactIds == null) {
+            if (!readChangedRows(PHONE_ID_SELECTION, table, rows, changed, replaced)) {
+                return false;
+            }
+        } else {
+            ArrayList<Long> ids = new ArrayList<Long>(contactIds);
+            for (int i = 0; i < ids.size(); i += REFRESH_BATCH_SIZE) {
+                String selection = PHONE_ID_SELECTION + " AND " + Phone.CONTACT_ID + " IN ("
+                        + TextUtils.join(",", ids.subList(i,
+                                Math.min(i + REFRESH_BATCH_SIZE, ids.size()))) + ")";
+                if (!readChangedRows(selection, table, rows, changed, replaced)) {
+                    return false;
                 }
             }
         }
-        contact.close();
-        phone.close();
+
+        // Whatever is left in the map is no longer in the provider
+        replaced.addAll(rows.values());
+        if (replaced.isEmpty() && changed.size() == 0) {
+            return true;
+        }
+        for (int row = 0; row < changed.size(); row++) {
+            changed.setCallScore(row, getCallScore(changed.getNormalNumber(row)));
+        }
+        synchronized (this) {
+            for (int row : replaced) {
+                table.markRemoved(row);
+            }
+            mRemovedCount += replaced.size();
+            for (int row = 0; row < changed.size(); row++) {
+                table.add(changed, row);
+            }
+        }
+
+        int indexed = mIndexes.count;
+        int pending = table.size() - indexed + mRemovedCount;
+        if (pending > Math.max(COMPACT_MIN_CHANGES, indexed / 8)) {
+            compact();
+        }
+        saveSnapshot();
+        return true;
+    }
+
+    /**
+     * Reads the phone rows matching the selection.  Rows found in {@code rows}
+     * are taken out of it, and added to {@code changed} and their old row to
+     * {@code replaced} if they differ; rows not in the table are added to
+     * {@code changed}.
+     *
+     * @return false if the provider cannot be queried
+     */
+    private boolean readChangedRows(String selection, T9ContactTable table,
+            HashMap<Long, Integer> rows, T9ContactTable changed, HashSet<Integer> replaced) {
+        Cursor phone = mContext.getContentResolver().query(Phone.CONTENT_URI, PHONE_PROJECTION,
+                selection, PHONE_ID_SELECTION_ARGS, null);
+        if (phone == null) {
+            return false;
+        }
+        try {
+            while (phone.moveToNext()) {
+                long dataId = phone.getLong(5);
+                Integer row = rows.remove(dataId);
+                String name = phone.getString(7);
+                if (row != null) {
+                    if (table.getId(row) == phone.getLong(1)
+                            && table.getDataVersion(row) == phone.getInt(6)
+                            && table.getTimesContacted(row) == phone.getInt(8)
+                            && table.getPhotoId(row) == phone.getLong(9)
+                            && table.isSuperPrimary(row) == (phone.getInt(2) > 0)
+                            && TextUtils.equals(table.getName(row), name)) {
+                        continue;
+                    }
+                    replaced.add(row);
+                }
+                addRow(changed, phone.getLong(1), dataId, phone.getInt(6), name,
+                        nameToNumber(name == null ? "" : name), phone.getString(0),
+                        phone.getInt(3), phone.getString(4), phone.getInt(8), phone.getLong(9),
+                        phone.getInt(2) > 0);
+            }
+        } finally {
+            phone.close();
+        }
+        return true;
+    }
+
+    /**
+     * Recomputes the call score of every number from the recent call log and
+     * stores it in the table.  As all scores decay at the same rate, scores
+     * computed at different times still rank numbers correctly, so they only
+     * need to be recomputed when calls are logged.  Results already created
+     * keep the scores their items copied.  Runs on the refresh thread.
+     */
+    private void scoreCalls() {
+        final long now = System.currentTimeMillis();
+        Cursor calls = mContext.getContentResolver().query(Calls.CONTENT_URI, CALLS_PROJECTION,
+                CALLS_SELECTION, new String[] {String.valueOf(now - CALL_SCORE_WINDOW_MS)},
+                CALLS_SORT);
+        if (calls == null) {
+            return;
+        }
+
+        HashMap<String, Double> sums = new HashMap<String, Double>();
+        try {
+            for (int i = 0; i < MAX_SCORED_CALLS && calls.moveToNext(); i++) {
+                String number = calls.getString(0);
+                if (number == null) {
+                    continue;
+                }
+                String key = callKey(removeNonDigits(number));
+                if (key.length() == 0) {
+                    continue;
+                }
+                long age = Math.max(0, now - calls.getLong(1));
+                // A missed call says less about whom the user talks to
+                double weight = calls.getInt(2) == Calls.MISSED_TYPE ? 0.25 : 1;
+                Double sum = sums.get(key);
+                sums.put(key, (sum == null ? 0 : sum)
+                        + weight * Math.pow(0.5, (double) age / CALL_SCORE_HALF_LIFE_MS));
+            }
+        } finally {
+            calls.close();
+        }
+
+        HashMap<String, Integer> scores = new HashMap<String, Integer>(sums.size());
+        for (Map.Entry<String, Double> entry : sums.entrySet()) {
+            scores.put(entry.getKey(), (int) Math.round(entry.getValue() * CALL_SCORE_SCALE));
+        }
+        mCallScores = scores;
+
+        final T9ContactTable table = mTable;
+        final int size = table.size();
+        int[] rowScores = new int[size];
+        for (int row = 0; row < size; row++) {
+            rowScores[row] = getCallScore(table.getNormalNumber(row));
+        }
+        synchronized (this) {
+            for (int row = 0; row < size; row++) {
+                table.setCallScore(row, rowScores[row]);
+            }
+        }
+    }
+
+    private int getCallScore(String normalNumber) {
+        Integer score = mCallScores.get(callKey(normalNumber));
+        return score == null ? 0 : score;
+    }
+
+    /**
+     * Returns the last digits of a number, which identify it regardless of
+     * the prefixes it was dialed or stored with.
+     */
+    private static String callKey(String normalNumber) {
+        int start = normalNumber.length();
+        int digits = 0;
+        while (start > 0 && digits < CALL_KEY_LENGTH) {
+            char c = normalNumber.charAt(--start);
+            if (c < '0' || c > '9') {
+                // '*' and '#' codes only match themselves
+                return normalNumber;
+            }
+            digits++;
+        }
+        return normalNumber.substring(start);
+    }
+
+    /**
+     * Drops removed rows and re-indexes the table once enough changes have
+     * accumulated that scanning them linearly gets expensive.  The new table is
+     * built without holding the lock, which is safe because only the refresh
+     * thread modifies the table.
+     */
+    private void compact() {
+        final T9ContactTable table = mTable;
+        T9ContactTable compacted = new T9ContactTable(table.size() - mRemovedCount);
+        for (int row = 0; row < table.size(); row++) {
+            if (!table.isRemoved(row)) {
+                compacted.add(table, row);
+            }
+        }
+        Indexes indexes = new Indexes(compacted);
+        synchronized (this) {
+            mTable = compacted;
+            mIndexes = indexes;
+            mRemovedCount = 0;
+        }
     }
 
+    /**
+     * Results of a search.  Only the first page is ranked when the result is
+     * created, using a bounded selection; the complete ordering is built the
+     * first time {@link #getResults()} is called, which normally only happens
+     * once the user scrolls the T9 list.  The contact items are created for
+     * this search alone and copy their rows, call score included, so a result
+     * stays valid after later searches and refreshes; the dialer expands it
+     * on the T9 thread while newer results may already be shown.
+     */
     public static class T9SearchResult {
 
-        private final ArrayList<ContactItem> mResults;
+        /** Number of results ranked up front, besides the top contact. */
+        static final int PAGE_SIZE = 20;
+
+        private final String mQuery;
+        private final boolean mNameFirst;
+        private final ArrayList<ContactItem> mPrimary;
+        private final ArrayList<ContactItem> mSecondary;
+        private final Comparator<ContactItem> mPrimaryComparator;
+        private final Comparator<ContactItem> mSecondaryComparator;
         private final ContactItem mTopContact;
+        private final ArrayList<ContactItem> mFirstResults;
+        private final int mNumResults;
+        private ArrayList<ContactItem> mResults;
+
+        T9SearchResult(final String query, final ArrayList<ContactItem> nameResults,
+                final ArrayList<ContactItem> numberResults, final boolean nameFirst) {
+            mQuery = query;
+            mNameFirst = nameFirst;
+            if (nameFirst) {
+                mPrimary = nameResults;
+                mPrimaryComparator = new NameComparator();
+                mSecondary = numberResults;
+                mSecondaryComparator = new NumberComparator();
+            } else {
+                mPrimary = numberResults;
+                mPrimaryComparator = new NumberComparator();
+                mSecondary = nameResults;
+                mSecondaryComparator = new NameComparator();
+            }
+
+            ArrayList<ContactItem> page = selectTop(mPrimary, mPrimaryComparator, PAGE_SIZE + 1);
+            if (page.size() < PAGE_SIZE + 1) {
+                // All primary matches fit on the page.  At most page.size() of
+                // the secondary matches are duplicates, so the top PAGE_SIZE + 1
+                // of them are enough to fill it.
+                for (ContactItem item : selectTop(mSecondary, mSecondaryComparator, PAGE_SIZE + 1)) {
+                    if (page.size() == PAGE_SIZE + 1) {
+                        break;
+                    }
+                    if (!isDuplicate(item)) {
+                        page.add(item);
+                    }
+                }
+            }
+            mTopContact = page.remove(0);
+            mFirstResults = page;
+
+            // Counted here, on the search thread, so that the dialer reads it
+            // without waiting for getResults() to sort
+            int count = mPrimary.size();
+            for (ContactItem item : mSecondary) {
+                if (!isDuplicate(item)) {
+                    count++;
+                }
+            }
+            mNumResults = count;
+        }
 
-        public T9SearchResult (final ArrayList<ContactItem> results, final Context mContext) {
-            mTopContact = results.get(0);
-            mResults = results;
-            mResults.remove(0);
+        /**
+         * Returns true if an item of the secondary list is also in the primary one.
+         */
+        private boolean isDuplicate(ContactItem item) {
+            return mNameFirst ? item.nameMatchId != -1 : item.numberMatchId != -1;
         }
 
+        /**
+         * Returns the digits that were searched for.
+         */
+        public String getQuery() {
+            return mQuery;
+        }
+
+        /**
+         * Returns the number of results, including the top contact.
+         */
         public int getNumResults() {
-            return mResults.size() + 1;
+            return mNumResults;
         }
 
         public ContactItem getTopContact() {
             return mTopContact;
         }
 
-        public ArrayList<ContactItem> getResults() {
+        /**
+         * Returns the best ranked results after the top contact, up to
+         * {@link #PAGE_SIZE} of them.
+         */
+        public ArrayList<ContactItem> getFirstResults() {
+            return mFirstResults;
+        }
+
+        /**
+         * Returns all results after the top contact, in rank order.  The first
+         * entries are the same as those returned by {@link #getFirstResults()}.
+         */
+        public synchronized ArrayList<ContactItem> getResults() {
+            if (mResults == null) {
+                Collections.sort(mPrimary, mPrimaryComparator);
+                Collections.sort(mSecondary, mSecondaryComparator);
+                ArrayList<ContactItem> results = new ArrayList<ContactItem>(mNumResults);
+                results.addAll(mPrimary);
+                for (ContactItem item : mSecondary) {
+                    if (!isDuplicate(item)) {
+                        results.add(item);
+                    }
+                }
+                results.remove(0);
+                mResults = results;
+            }
             return mResults;
         }
+
+        /**
+         * Returns the {@code k} best ranked items in order, without sorting the
+         * whole list.
+         */
+        private static ArrayList<ContactItem> selectTop(ArrayList<ContactItem> items,
+                Comparator<ContactItem> comparator, int k) {
+            if (items.size() <= k) {
+                ArrayList<ContactItem> top = new ArrayList<ContactItem>(items);
+                Collections.sort(top, comparator);
+                return top;
+            }
+            // Max-heap holding the best k items seen so far
+            PriorityQueue<ContactItem> heap = new PriorityQueue<ContactItem>(k,
+                    Collections.reverseOrder(comparator));
+            for (ContactItem item : items) {
+                if (heap.size() < k) {
+                    heap.add(item);
+                } else if (comparator.compare(item, heap.peek()) < 0) {
+                    heap.poll();
+                    heap.add(item);
+                }
+            }
+            ArrayList<ContactItem> top = new ArrayList<ContactItem>(heap);
+            Collections.sort(top, comparator);
+            return top;
+        }
     }
 
+    /**
+     * A search result, or the placeholder offering to add the dialed number.
+     * Results are created per search from a row of the packed contact table
+     * and carry the match state of that search.  The columns of the row are
+     * copied while the search holds the lock, since the table keeps changing
+     * under refreshes while the dialer shows and sorts the results.
+     */
     public static class ContactItem {
-        String name;
-        String number;
-        String normalNumber;
-        String normalName;
-        int timesContacted;
-        int nameMatchId;
-        int numberMatchId;
-        CharSequence groupType;
-        long id;
-        boolean isSuperPrimary;
-        public Bitmap getPhoto() {
-            return null;
+        private final int mRow;
+        private final long mId;
+        private final long mDataId;
+        private final long mPhotoId;
+        private final int mTimesContacted;
+        // scoreCalls() updates the table in place, which must not change the
+        // order while a result is sorted
+        private final int mCallScore;
+        private final boolean mSuperPrimary;
+        private final String mName;
+        private final String mRawNumber;
+        private final CharSequence mLabel;
+        private final String mNormalName;
+        private final String mNormalNumber;
+        private String mNumber;
+        // Rank of the name match, lower is better; -1 if the name does not match
+        int nameMatchId = -1;
+        // Offset of the name match, or index of the first matched initial
+        int nameMatchPos;
+        int numberMatchId = -1;
+
+        /**
+         * Creates an item that is not backed by a contact.
+         */
+        public ContactItem() {
+            mRow = -1;
+            mId = 0;
+            mDataId = 0;
+            mPhotoId = 0;
+            mTimesContacted = 0;
+            mCallScore = 0;
+            mSuperPrimary = false;
+            mName = null;
+            mRawNumber = null;
+            mLabel = null;
+            mNormalName = null;
+            mNormalNumber = null;
         }
-    }
 
-    public class BitmapContactItem extends ContactItem {
-        @Override
-        public Bitmap getPhoto() {
-            Bitmap result = null;
-            Uri contactUri = ContentUris.withAppendedId(Contacts.CONTENT_URI, this.id);
-            InputStream photoStream = Contacts.openContactPhotoInputStream(mContext.getContentResolver(), contactUri);
-            if (photoStream != null) {
-                result = BitmapFactory.decodeStream(photoStream);
-                try {
-                    photoStream.close();
-                } catch (IOException e) {
-                }
+        ContactItem(T9ContactTable table, int row) {
+            mRow = row;
+            mId = table.getId(row);
+            mDataId = table.getDataId(row);
+            mPhotoId = table.getPhotoId(row);
+            mTimesContacted = table.getTimesContacted(row);
+            mCallScore = table.getCallScore(row);
+            mSuperPrimary = table.isSuperPrimary(row);
+            mName = table.getName(row);
+            mRawNumber = table.getNumber(row);
+            mLabel = table.getLabel(row);
+            mNormalName = table.getNormalName(row);
+            mNormalNumber = table.getNormalNumber(row);
+        }
+
+        /**
+         * Returns the display name, or null if the item is not backed by a contact.
+         */
+        public String getName() {
+            return mName;
+        }
+
+        /**
+         * Returns the formatted phone number.
+         */
+        public String getNumber() {
+            if (mNumber == null && mRawNumber != null) {
+                mNumber = PhoneNumberUtils.formatNumber(mRawNumber);
             }
-            return result;
+            return mNumber;
+        }
+
+        public void setNumber(String number) {
+            mNumber = number;
+        }
+
+        public long getId() {
+            return mId;
+        }
+
+        long getDataId() {
+            return mDataId;
+        }
+
+        long getPhotoId() {
+            return mPhotoId;
+        }
+
+        int getTimesContacted() {
+            return mTimesContacted;
+        }
+
+        int getCallScore() {
+            return mCallScore;
+        }
+
+        boolean isSuperPrimary() {
+            return mSuperPrimary;
+        }
+
+        CharSequence getGroupType() {
+            return mLabel;
+        }
+
+        String getNormalName() {
+            return mNormalName;
+        }
+
+        String getNormalNumber() {
+            return mNormalNumber;
         }
     }
 
-    public T9SearchResult search(String number) {
-        mNameResults.clear();
-        mNumberResults.clear();
+    public synchronized T9SearchResult search(String number) {
+        // The result takes ownership of the lists
+        final ArrayList<ContactItem> nameResults = new ArrayList<ContactItem>();
+        final ArrayList<ContactItem> numberResults = new ArrayList<ContactItem>();
         number = removeNonDigits(number);
-        int pos = 0;
-        mSortMode = Integer.parseInt(PreferenceManager.getDefaultSharedPreferences(mContext).getString("t9_sort", "1"));
-        boolean newQuery = mPrevInput == null || number.length() <= mPrevInput.length();
-        // Go through each contact
-        for (ContactItem item : (newQuery ? mContacts : mAllResults)) {
-            item.numberMatchId = -1;
-            item.nameMatchId = -1;
-            pos = item.normalNumber.indexOf(number);
+        int sortMode = Integer.parseInt(PreferenceManager.getDefaultSharedPreferences(mContext).getString("t9_sort", "1"));
+        final T9ContactTable table = mTable;
+        if (mRowItems.length < table.size()) {
+            mRowItems = new ContactItem[table.size() + COMPACT_MIN_CHANGES];
+        }
+
+        final Indexes indexes = mIndexes;
+        indexes.numbers.search(number, mMatches);
+        for (int i = 0; i < mMatches.count; i++) {
+            addNumberMatch(numberResults, table, mMatches.entries[i], mMatches.offsets[i]);
+        }
+        // Best tier first; a name only keeps the first match it gets
+        indexes.initials.search(number, mMatches);
+        for (int i = 0; i < mMatches.count; i++) {
+            addNameMatch(nameResults, table, mMatches.entries[i], MATCH_INITIALS, mMatches.offsets[i]);
+        }
+        indexes.wordStarts.search(number, mMatches);
+        for (int i = 0; i < mMatches.count; i++) {
+            addNameMatch(nameResults, table, mMatches.entries[i], MATCH_WORD_START, mMatches.offsets[i]);
+        }
+        indexes.names.search(number, mMatches);
+        for (int i = 0; i < mMatches.count; i++) {
+            addNameMatch(nameResults, table, mMatches.entries[i], MATCH_IN_WORD, mMatches.offsets[i]);
+        }
+        // Rows added since the indexes were last built are few, scan them
+        for (int row = indexes.count; row < table.size(); row++) {
+            int pos = table.getNormalNumbers().indexOf(row, number);
             if (pos != -1) {
-                item.numberMatchId = pos;
-                mNumberResults.add(item);
+                addNumberMatch(numberResults, table, row, pos);
             }
-            pos = item.normalName.indexOf(number);
+            pos = table.getInitials().indexOf(row, number);
             if (pos != -1) {
-                int last_space = item.normalName.lastIndexOf("0", pos);
-                if (last_space == -1) {
-                    last_space = 0;
-                }
-                item.nameMatchId = pos - last_space;
-                mNameResults.add(item);
-            }
-        }
-        mAllResults.clear();
-        mPrevInput = number;
-        Collections.sort(mNumberResults, new NumberComparator());
-        Collections.sort(mNameResults, new NameComparator());
-        if (mNameResults.size() > 0 || mNumberResults.size() > 0) {
-            switch (mSortMode) {
-            case NAME_FIRST:
-                mAllResults.addAll(mNameResults);
-                mAllResults.addAll(mNumberResults);
-                break;
-            case NUMBER_FIRST:
-                mAllResults.addAll(mNumberResults);
-                mAllResults.addAll(mNameResults);
-            }
-            return new T9SearchResult(new ArrayList<ContactItem>(mAllResults), mContext);
+                addNameMatch(nameResults, table, row, MATCH_INITIALS, pos);
+            }
+            pos = table.getNormalNames().indexOf(row, number, true);
+            if (pos != -1) {
+                addNameMatch(nameResults, table, row, MATCH_WORD_START, pos);
+            }
+            pos = table.getNormalNames().indexOf(row, number);
+            if (pos != -1) {
+                addNameMatch(nameResults, table, row, MATCH_IN_WORD, pos);
+            }
+        }
+
+        for (ContactItem item : numberResults) {
+            mRowItems[item.mRow] = null;
+        }
+        for (ContactItem item : nameResults) {
+            mRowItems[item.mRow] = null;
+        }
+        if (nameResults.size() > 0 || numberResults.size() > 0) {
+            return new T9SearchResult(number, nameResults, numberResults, sortMode != NUMBER_FIRST);
         }
         return null;
     }
 
+    private ContactItem getRowItem(T9ContactTable table, int row) {
+        ContactItem item = mRowItems[row];
+        if (item == null) {
+            item = new ContactItem(table, row);
+            mRowItems[row] = item;
+        }
+        return item;
+    }
+
+    private void addNumberMatch(ArrayList<ContactItem> numberResults, T9ContactTable table,
+            int row, int pos) {
+        if (table.isRemoved(row)) {
+            return;
+        }
+        ContactItem item = getRowItem(table, row);
+        item.numberMatchId = pos;
+        numberResults.add(item);
+    }
+
+    /**
+     * Records a name match of the given tier.  For initials {@code pos} is the
+     * index of the first matched word, otherwise the offset in the name.
+     */
+    private void addNameMatch(ArrayList<ContactItem> nameResults, T9ContactTable table,
+            int row, int tier, int pos) {
+        if (table.isRemoved(row)) {
+            return;
+        }
+        ContactItem item = getRowItem(table, row);
+        if (item.nameMatchId != -1) {
+            return;
+        }
+        int rank;
+        if (tier == MATCH_IN_WORD) {
+            // Distance from the start of the word
+            String normalName = item.getNormalName();
+            int wordStart = normalName.lastIndexOf(T9Index.WORD_SEPARATOR, pos) + 1;
+            rank = pos - wordStart;
+        } else {
+            // Earlier words first
+            rank = pos;
+        }
+        item.nameMatchId = (tier << MATCH_TIER_SHIFT) + Math.min(rank, (1 << MATCH_TIER_SHIFT) - 1);
+        item.nameMatchPos = pos;
+        nameResults.add(item);
+    }
+
     public static class NameComparator implements Comparator<ContactItem> {
         @Override
         public int compare(ContactItem lhs, ContactItem rhs) {
             int ret = compareInt(lhs.nameMatchId, rhs.nameMatchId);
-            if (ret == 0) ret = compareInt(rhs.timesContacted, lhs.timesContacted);
-            if (ret == 0) ret = compareBool(rhs.isSuperPrimary, lhs.isSuperPrimary);
+            if (ret == 0) ret = compareInt(rhs.getCallScore(), lhs.getCallScore());
+            if (ret == 0) ret = compareInt(rhs.getTimesContacted(), lhs.getTimesContacted());
+            if (ret == 0) ret = compareBool(rhs.isSuperPrimary(), lhs.isSuperPrimary());
+            if (ret == 0) ret = compareLong(lhs.getId(), rhs.getId());
+            if (ret == 0) ret = compareLong(lhs.getDataId(), rhs.getDataId());
             return ret;
         }
     }
@@ -227,8 +1044,11 @@ class T9Search {
         @Override
         public int compare(ContactItem lhs, ContactItem rhs) {
             int ret = compareInt(lhs.numberMatchId, rhs.numberMatchId);
-            if (ret == 0) ret = compareInt(rhs.timesContacted, lhs.timesContacted);
-            if (ret == 0) ret = compareBool(rhs.isSuperPrimary, lhs.isSuperPrimary);
+            if (ret == 0) ret = compareInt(rhs.getCallScore(), lhs.getCallScore());
+            if (ret == 0) ret = compareInt(rhs.getTimesContacted(), lhs.getTimesContacted());
+            if (ret == 0) ret = compareBool(rhs.isSuperPrimary(), lhs.isSuperPrimary());
+            if (ret == 0) ret = compareLong(lhs.getId(), rhs.getId());
+            if (ret == 0) ret = compareLong(lhs.getDataId(), rhs.getDataId());
             return ret;
         }
     }
@@ -237,40 +1057,64 @@ class T9Search {
         return lhs < rhs ? -1 : (lhs == rhs ? 0 : 1);
     }
 
+    public static int compareLong (long lhs, long rhs) {
+        return lhs < rhs ? -1 : (lhs == rhs ? 0 : 1);
+    }
+
     public static int compareBool (boolean lhs, boolean rhs) {
         return lhs == rhs ? 0 : lhs ? 1 : -1;
     }
 
     private void initT9Map() {
-        synchronized (this.getClass()) {
-            if (sT9Chars != null)
+        synchronized (T9Search.class) {
+            if (sT9Table != null)
                 return;
 
-            StringBuilder bT9Chars = new StringBuilder();
-            StringBuilder bT9Digits = new StringBuilder();
-            for (String item: mContext.getResources().getStringArray(R.array.t9_map)) {
-                bT9Chars.append(item);
-                for (int i = 0; i < item.length(); i++) {
-                    bT9Digits.append(item.charAt(0));
-                }
+            byte[] table = new byte[T9_TABLE_SIZE];
+            String[] rows = mContext.getResources().getStringArray(R.array.t9_map);
+            String[] extraRows = mContext.getResources().getStringArray(R.array.t9_map_extra);
+            // The locale's own map comes first so that it wins over the extra alphabets
+            addT9Rows(table, rows);
+            addT9Rows(table, extraRows);
+
+            sT9Unmapped = rows[0].charAt(0);
+            sT9Stamp = Arrays.hashCode(rows) * 31 + Arrays.hashCode(extraRows);
+            sT9Table = table;
+        }
+    }
+
+    private static void addT9Rows(byte[] table, String[] rows) {
+        for (String row : rows) {
+            char digit = row.charAt(0);
+            for (int i = 0; i < row.length(); i++) {
+                char c = row.charAt(i);
+                // Both cases are stored so that lookups need no case conversion
+                addT9Char(table, c, digit);
+                addT9Char(table, Character.toUpperCase(c), digit);
             }
+        }
+    }
 
-            sT9Chars = bT9Chars.toString();
-            sT9Digits = bT9Digits.toString();
+    private static void addT9Char(byte[] table, char c, char digit) {
+        if (c < table.length && table[c] == 0) {
+            table[c] = (byte) digit;
         }
     }
 
-    private static String nameToNumber(final String name) {
+    static String nameToNumber(final String name) {
+        final byte[] table = sT9Table;
         int len = name.length();
-        StringBuilder sb = new StringBuilder(len);
+        char[] digits = new char[len];
         for (int i = 0; i < len; i++) {
-            int pos = sT9Chars.indexOf(Character.toLowerCase(name.charAt(i)));
-            if (pos == -1) {
-                pos = 0;
+            char c = name.charAt(i);
+            int digit = c < T9_TABLE_SIZE ? table[c] : 0;
+            if (digit == 0) {
+                char lower = Character.toLowerCase(c);
+                digit = lower < T9_TABLE_SIZE ? table[lower] : 0;
             }
-            sb.append(sT9Digits.charAt(pos));
+            digits[i] = digit != 0 ? (char) digit : sT9Unmapped;
         }
-        return sb.toString();
+        return new String(digits);
     }
 
     public static String removeNonDigits(final String number) {
@@ -285,17 +1129,47 @@ class T9Search {
         return sb.toString();
     }
 
-    protected class T9Adapter extends ArrayAdapter<ContactItem> {
+    protected class T9Adapter extends BaseAdapter {
 
-        private ArrayList<ContactItem> mItems;
+        private ArrayList<ContactItem> mItems = new ArrayList<ContactItem>();
+        private String mQuery = "";
         private LayoutInflater mMenuInflate;
-        //private ContactPhotoManager mPhotoLoader;
+        private ContactPhotoLoader mPhotoLoader;
 
-        public T9Adapter(Context context, int textViewResourceId, ArrayList<ContactItem> items, LayoutInflater menuInflate) {
-            super(context, textViewResourceId, items);
-            mItems = items;
+        public T9Adapter(LayoutInflater menuInflate, ContactPhotoLoader photoLoader) {
             mMenuInflate = menuInflate;
-            //mPhotoLoader = photoLoader;
+            mPhotoLoader = photoLoader;
+        }
+
+        /**
+         * Replaces the items in one step.
+         *
+         * @param query the digits the items matched, used for highlighting
+         */
+        public void setItems(ArrayList<ContactItem> items, String query) {
+            mItems = items;
+            mQuery = query;
+            notifyDataSetChanged();
+        }
+
+        /**
+         * Appends items matching the current query.
+         */
+        public void addItems(List<ContactItem> items) {
+            mItems.addAll(items);
+            notifyDataSetChanged();
+        }
+
+        public int getCount() {
+            return mItems.size();
+        }
+
+        public ContactItem getItem(int position) {
+            return mItems.get(position);
+        }
+
+        public long getItemId(int position) {
+            return position;
         }
 
         @Override
@@ -314,40 +1188,62 @@ class T9Search {
             }
 
             ContactItem o = mItems.get(position);
-            if (o.name == null) {
+            if (o.getName() == null) {
                 holder.name.setText(mContext.getResources().getString(R.string.t9_add_to_contacts));
                 holder.number.setVisibility(View.GONE);
+                // The view may still be waiting for the photo of its previous row
+                mPhotoLoader.cancelRequest(holder.icon);
                 holder.icon.setImageResource(R.drawable.sym_action_add);
-                holder.icon.assignContactFromPhone(o.number, true);
+                holder.icon.assignContactFromPhone(o.getNumber(), true);
             } else {
-                holder.name.setText(o.name, TextView.BufferType.SPANNABLE);
-                holder.number.setText(o.normalNumber + " (" + o.groupType + ")", TextView.BufferType.SPANNABLE);
+                holder.name.setText(o.getName(), TextView.BufferType.SPANNABLE);
+                holder.number.setText(o.getNormalNumber() + " (" + o.getGroupType() + ")", TextView.BufferType.SPANNABLE);
                 holder.number.setVisibility(View.VISIBLE);
                 if (o.nameMatchId != -1) {
                     Spannable s = (Spannable) holder.name.getText();
-                    int nameStart = o.normalName.indexOf(mPrevInput);
-                    s.setSpan(new ForegroundColorSpan(Color.WHITE),
-                            nameStart, nameStart + mPrevInput.length(), Spannable.SPAN_INCLUSIVE_INCLUSIVE);
+                    if ((o.nameMatchId >> MATCH_TIER_SHIFT) == MATCH_INITIALS) {
+                        highlightInitials(s, o.getNormalName(), o.nameMatchPos, mQuery.length());
+                    } else {
+                        int nameStart = o.nameMatchPos;
+                        s.setSpan(new ForegroundColorSpan(Color.WHITE),
+                                nameStart, nameStart + mQuery.length(), Spannable.SPAN_INCLUSIVE_INCLUSIVE);
+                    }
                     holder.name.setText(s);
                 }
                 if (o.numberMatchId != -1) {
                     Spannable s = (Spannable) holder.number.getText();
                     int numberStart = o.numberMatchId;
                     s.setSpan(new ForegroundColorSpan(Color.WHITE),
-                            numberStart, numberStart + mPrevInput.length(), Spannable.SPAN_INCLUSIVE_INCLUSIVE);
+                            numberStart, numberStart + mQuery.length(), Spannable.SPAN_INCLUSIVE_INCLUSIVE);
                     holder.number.setText(s);
                 }
-                Bitmap photo = o.getPhoto();
-                if (photo != null)
-                    holder.icon.setImageBitmap(photo);
-                else
-                    holder.icon.setImageResource(R.drawable.ic_contact_list_picture);
+                // Shows the placeholder until the photo has been loaded
+                mPhotoLoader.loadPhoto(holder.icon, o.getPhotoId());
 
-                holder.icon.assignContactFromPhone(o.number, true);
+                holder.icon.assignContactFromPhone(o.getNumber(), true);
             }
             return convertView;
         }
 
+        /**
+         * Highlights the first letter of {@code count} words, starting at word
+         * {@code firstWord}.
+         */
+        private void highlightInitials(Spannable s, String normalName, int firstWord, int count) {
+            int word = 0;
+            for (int i = 0; i < normalName.length() && count > 0; i++) {
+                if (normalName.charAt(i) != T9Index.WORD_SEPARATOR
+                        && (i == 0 || normalName.charAt(i - 1) == T9Index.WORD_SEPARATOR)) {
+                    if (word >= firstWord) {
+                        s.setSpan(new ForegroundColorSpan(Color.WHITE), i, i + 1,
+                                Spannable.SPAN_INCLUSIVE_INCLUSIVE);
+                        count--;
+                    }
+                    word++;
+                }
+            }
+        }
+
         class ViewHolder {
             TextView name;
             TextView number;
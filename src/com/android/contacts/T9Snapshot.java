@@ -0,0 +1,343 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * A {@link T9ContactTable} and the suffix arrays of its indexes saved to a
+ * file.  All columns are stored as flat arrays, so loading maps the file and
+ * bulk-copies them back instead of querying the provider and encoding every
+ * name again.  A snapshot is only accepted if it was written with the same
+ * format and stamp; callers derive the stamp from everything the encoded
+ * data depends on.  A CRC32 of the whole file ends it, so that a damaged file
+ * is discarded instead of restoring rows and indexes that do not match.
+ */
+class T9Snapshot {
+    private static final String TAG = "T9Snapshot";
+
+    private static final int MAGIC = 0x54395331;
+    private static final int FORMAT_VERSION = 3;
+
+    /** Size of the checksum ending the file. */
+    private static final int CHECKSUM_SIZE = 8;
+
+    private final T9ContactTable mTable;
+    private final int mIndexedCount;
+    private final int[][] mSuffixes;
+
+    private T9Snapshot(T9ContactTable table, int indexedCount, int[][] suffixes) {
+        mTable = table;
+        mIndexedCount = indexedCount;
+        mSuffixes = suffixes;
+    }
+
+    T9ContactTable getTable() {
+        return mTable;
+    }
+
+    /**
+     * Returns the number of rows covered by the saved indexes.
+     */
+    int getIndexedCount() {
+        return mIndexedCount;
+    }
+
+    /**
+     * Returns the sorted suffixes of the {@code i}th saved index.
+     */
+    int[] getSuffixes(int i) {
+        return mSuffixes[i];
+    }
+
+    /**
+     * Saves {@code table} and {@code indexes}, which must cover the first
+     * {@code indexedCount} rows.  The file is replaced atomically.
+     */
+    static void write(File file, int stamp, T9ContactTable table, int indexedCount,
+            T9Index... indexes) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        Output out = new Output(new FileOutputStream(tmp));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(stamp);
+            table.write(out);
+            out.writeInt(indexedCount);
+            out.writeInt(indexes.length);
+            for (T9Index index : indexes) {
+                int[] suffixes = index.getSuffixes();
+                out.writeInt(suffixes.length);
+                out.writeInts(suffixes, suffixes.length);
+            }
+            out.writeInt(MAGIC);
+            out.writeChecksum();
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Cannot rename " + tmp);
+        }
+    }
+
+    /**
+     * Loads a snapshot, or returns null if there is none or it is stale or
+     * damaged.
+     */
+    static T9Snapshot read(File file, int stamp) {
+        if (!file.exists()) {
+            return null;
+        }
+        FileInputStream stream = null;
+        try {
+            stream = new FileInputStream(file);
+            FileChannel channel = stream.getChannel();
+            Input in = new Input(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            if (!in.verifyChecksum()) {
+                Log.w(TAG, "Ignoring damaged " + file);
+                return null;
+            }
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION
+                    || in.readInt() != stamp) {
+                return null;
+            }
+            T9ContactTable table = new T9ContactTable(in);
+            int indexedCount = in.readInt();
+            int[][] suffixes = new int[in.readInt()][];
+            for (int i = 0; i < suffixes.length; i++) {
+                suffixes[i] = in.readInts(in.readInt());
+            }
+            if (in.readInt() != MAGIC || indexedCount < 0 || indexedCount > table.size()
+                    || in.remaining() != CHECKSUM_SIZE) {
+                return null;
+            }
+            return new T9Snapshot(table, indexedCount, suffixes);
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot read " + file, e);
+            return null;
+        } catch (RuntimeException e) {
+            // Truncated or corrupt file
+            Log.w(TAG, "Ignoring damaged " + file, e);
+            return null;
+        } finally {
+            if (stream != null) {
+                try {
+                    stream.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * Buffered writer of primitive arrays.
+     */
+    static class Output {
+        private final FileOutputStream mStream;
+        private final FileChannel mChannel;
+        private final ByteBuffer mBuffer = ByteBuffer.allocate(64 * 1024);
+        private final CRC32 mChecksum = new CRC32();
+
+        Output(FileOutputStream stream) {
+            mStream = stream;
+            mChannel = stream.getChannel();
+        }
+
+        void writeInt(int value) throws IOException {
+            ensure(4);
+            mBuffer.putInt(value);
+        }
+
+        void writeInts(int[] values, int count) throws IOException {
+            for (int i = 0; i < count; ) {
+                ensure(4);
+                int chunk = Math.min(count - i, mBuffer.remaining() / 4);
+                mBuffer.asIntBuffer().put(values, i, chunk);
+                mBuffer.position(mBuffer.position() + chunk * 4);
+                i += chunk;
+            }
+        }
+
+        void writeLongs(long[] values, int count) throws IOException {
+            for (int i = 0; i < count; ) {
+                ensure(8);
+                int chunk = Math.min(count - i, mBuffer.remaining() / 8);
+                mBuffer.asLongBuffer().put(values, i, chunk);
+                mBuffer.position(mBuffer.position() + chunk * 8);
+                i += chunk;
+            }
+        }
+
+        void writeBytes(byte[] values, int count) throws IOException {
+            for (int i = 0; i < count; ) {
+                ensure(1);
+                int chunk = Math.min(count - i, mBuffer.remaining());
+                mBuffer.put(values, i, chunk);
+                i += chunk;
+            }
+        }
+
+        /**
+         * Writes a string, which may be null.
+         */
+        void writeString(String value) throws IOException {
+            if (value == null) {
+                writeInt(-1);
+                return;
+            }
+            final int len = value.length();
+            writeInt(len);
+            for (int i = 0; i < len; ) {
+                ensure(2);
+                int chunk = Math.min(len - i, mBuffer.remaining() / 2);
+                for (int j = 0; j < chunk; j++) {
+                    mBuffer.putChar(value.charAt(i + j));
+                }
+                i += chunk;
+            }
+        }
+
+        private void ensure(int bytes) throws IOException {
+            if (mBuffer.remaining() < bytes) {
+                flush();
+            }
+        }
+
+        /**
+         * Writes the checksum of everything written so far.  Nothing may be
+         * written after it.
+         */
+        void writeChecksum() throws IOException {
+            flush();
+            mBuffer.putLong(mChecksum.getValue());
+        }
+
+        private void flush() throws IOException {
+            mChecksum.update(mBuffer.array(), 0, mBuffer.position());
+            mBuffer.flip();
+            while (mBuffer.hasRemaining()) {
+                mChannel.write(mBuffer);
+            }
+            mBuffer.clear();
+        }
+
+        void close() throws IOException {
+            try {
+                flush();
+                mStream.getFD().sync();
+            } finally {
+                mStream.close();
+            }
+        }
+    }
+
+    /**
+     * Reader of the arrays written by {@link Output}.
+     */
+    static class Input {
+        private final MappedByteBuffer mBuffer;
+
+        Input(MappedByteBuffer buffer) {
+            mBuffer = buffer;
+        }
+
+        int readInt() {
+            return mBuffer.getInt();
+        }
+
+        int remaining() {
+            return mBuffer.remaining();
+        }
+
+        /**
+         * Returns whether the file ends with the checksum of its contents.
+         * Leaves the buffer at the start of the file.
+         */
+        boolean verifyChecksum() {
+            final int length = mBuffer.limit() - CHECKSUM_SIZE;
+            if (length < 0) {
+                return false;
+            }
+            CRC32 checksum = new CRC32();
+            byte[] chunk = new byte[(int) Math.min(length, 64 * 1024)];
+            mBuffer.position(0);
+            while (mBuffer.position() < length) {
+                int count = Math.min(chunk.length, length - mBuffer.position());
+                mBuffer.get(chunk, 0, count);
+                checksum.update(chunk, 0, count);
+            }
+            boolean valid = mBuffer.getLong() == checksum.getValue();
+            mBuffer.position(0);
+            return valid;
+        }
+
+        int[] readInts(int count) {
+            checkRemaining(count, 4);
+            int[] values = new int[count];
+            mBuffer.asIntBuffer().get(values);
+            mBuffer.position(mBuffer.position() + count * 4);
+            return values;
+        }
+
+        long[] readLongs(int count) {
+            checkRemaining(count, 8);
+            long[] values = new long[count];
+            mBuffer.asLongBuffer().get(values);
+            mBuffer.position(mBuffer.position() + count * 8);
+            return values;
+        }
+
+        byte[] readBytes(int count) {
+            checkRemaining(count, 1);
+            byte[] values = new byte[count];
+            mBuffer.get(values);
+            return values;
+        }
+
+        String readString() {
+            final int len = mBuffer.getInt();
+            if (len == -1) {
+                return null;
+            }
+            checkRemaining(len, 2);
+            char[] chars = new char[len];
+            mBuffer.asCharBuffer().get(chars);
+            mBuffer.position(mBuffer.position() + len * 2);
+            return new String(chars);
+        }
+
+        /**
+         * Fails before allocating an array for a count read from a damaged file.
+         */
+        private void checkRemaining(int count, int size) {
+            if (count < 0 || (long) count * size > mBuffer.remaining()) {
+                throw new IllegalStateException("Bad array length " + count);
+            }
+        }
+    }
+}
@@ -39,6 +39,9 @@ import android.media.AudioManager;
 import android.media.ToneGenerator;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
 import android.os.RemoteException;
 import android.os.ServiceManager;
 import android.os.SystemClock;
@@ -71,6 +74,7 @@ import android.view.animation.Animation;
 import android.view.animation.DecelerateInterpolator;
 import android.view.animation.TranslateAnimation;
 import android.view.inputmethod.InputMethodManager;
+import android.widget.AbsListView;
 import android.widget.AdapterView;
 import android.widget.BaseAdapter;
 import android.widget.EditText;
@@ -163,15 +167,28 @@ public class TwelveKeyDialer extends Activity implements View.OnClickListener,
 
     /** Identifier for the "Add Call" intent extra. */
     static final String ADD_CALL_MODE_KEY = "add_call_mode";
-    private static T9Search sT9Search; // Static to avoid reloading when class is destroyed and recreated
+    private static volatile T9Search sT9Search; // Static to avoid reloading when class is destroyed and recreated
+    private ContactPhotoLoader mPhotoLoader;
+    private ContactPhotoPrefetcher mT9PhotoPrefetcher;
     private ToggleButton mT9Toggle;
     private ListView mT9List;
     private ListView mT9ListTop;
     private T9Adapter mT9Adapter;
     private T9Adapter mT9AdapterTop;
+    private T9SearchResult mT9Result;
     private ViewSwitcher mT9Flipper;
     private LinearLayout mT9Top;
 
+    private static final int MSG_T9_LOAD = 1;
+    private static final int MSG_T9_SEARCH = 2;
+    private static final int MSG_T9_EXPAND = 3;
+
+    /** Loads and searches T9 contacts off the UI thread. */
+    private HandlerThread mT9Thread;
+    private Handler mT9Handler;
+    // Incremented for every search posted; results of older searches are dropped
+    private volatile int mT9Generation;
+
     /**
      * Identifier for intent extra for sending an empty Flash message for
      * CDMA networks. This message is used by the network to simulate a
@@ -266,6 +283,7 @@ public class TwelveKeyDialer extends Activity implements View.OnClickListener,
         if (mT9List != null) {
             mT9List.setOnItemClickListener(this);
             mT9List.setOnItemLongClickListener(this);
+            mT9List.setOnScrollListener(mT9ScrollListener);
         }
         mT9ListTop = (ListView) findViewById(R.id.t9listtop);
         if (mT9ListTop != null) {
@@ -279,6 +297,21 @@ public class TwelveKeyDialer extends Activity implements View.OnClickListener,
         }
         mT9Flipper = (ViewSwitcher) findViewById(R.id.t9flipper);
         mT9Top = (LinearLayout) findViewById(R.id.t9topbar);
+        mPhotoLoader = new ContactPhotoLoader(this, R.drawable.ic_contact_list_picture);
+        mT9PhotoPrefetcher = new ContactPhotoPrefetcher(mPhotoLoader,
+                new ContactPhotoPrefetcher.PhotoIdProvider() {
+                    public long getPhotoId(int position) {
+                        if (mT9Adapter == null || position < 0
+                                || position >= mT9Adapter.getCount()) {
+                            return 0;
+                        }
+                        ContactItem item = mT9Adapter.getItem(position);
+                        return item.getName() != null ? item.getPhotoId() : 0;
+                    }
+                });
+        mT9Thread = new HandlerThread("T9Search");
+        mT9Thread.start();
+        mT9Handler = new Handler(mT9Thread.getLooper(), mT9Callback);
         maybeAddNumberFormatting();
 
         setupKeypad(true);
@@ -505,14 +538,13 @@ public class TwelveKeyDialer extends Activity implements View.OnClickListener,
     @Override
     protected void onResume() {
         super.onResume();
-        if (sT9Search == null && isT9On()) {
-            Thread loadContacts = new Thread(new Runnable() {
-                public void run () {
-                    sT9Search = new T9Search(getBaseContext());
-                }
-            });
-            loadContacts.start();
+        if (!isT9On()) {
+            // Stop refreshing contacts nobody searches
+            unloadT9Search();
+        } else if (sT9Search == null) {
+            mT9Handler.sendEmptyMessage(MSG_T9_LOAD);
         }
+        mPhotoLoader.resume();
         hideT9();
         // Query the last dialed number. Do it first because hitting
         // the DB is 'slow'. This call is asynchronous.
@@ -609,64 +641,163 @@ public class TwelveKeyDialer extends Activity implements View.OnClickListener,
     }
 
     /**
-     * Initiates a search for the dialed digits
-     * Toggles view visibility based on results
+     * Initiates a search for the dialed digits on the T9 thread.  A search
+     * posted while an earlier one is still pending supersedes it.
      */
     private void searchContacts() {
         if (!isT9On())
             return;
+        final int generation = ++mT9Generation;
+        mT9Handler.removeMessages(MSG_T9_SEARCH);
         final int length = mDigits.length();
         if (length > 0) {
-            if (sT9Search != null) {
-                T9SearchResult result = sT9Search.search(mDigits.getText().toString());
-                if (mT9AdapterTop == null) {
-                    mT9AdapterTop = sT9Search.new T9Adapter(this, 0, new ArrayList<ContactItem>(),getLayoutInflater());
-                    mT9AdapterTop.setNotifyOnChange(true);
-                } else {
-                    mT9AdapterTop.clear();
-                }
-                if (result != null) {
-                    if (mT9Adapter == null) {
-                        mT9Adapter = sT9Search.new T9Adapter(this, 0, result.getResults(),getLayoutInflater());
-                        mT9Adapter.setNotifyOnChange(true);
-                    } else {
-                        mT9Adapter.clear();
-                        for (ContactItem item : result.getResults()) {
-                            mT9Adapter.add(item);
-                        }
-                    }
-                    if (mT9List.getAdapter() == null) {
-                        mT9List.setAdapter(mT9Adapter);
-                    }
+            mT9Handler.obtainMessage(MSG_T9_SEARCH, generation, 0,
+                    mDigits.getText().toString()).sendToTarget();
+        } else {
+            mT9ListTop.setVisibility(View.INVISIBLE);
+            mT9Toggle.setVisibility(View.INVISIBLE);
+            toggleT9();
+        }
+    }
 
-                    mT9AdapterTop.add(result.getTopContact());
-                    if (result.getNumResults()>  1) {
-                        mT9Toggle.setVisibility(View.VISIBLE);
-                    } else {
-                        mT9Toggle.setVisibility(View.GONE);
-                        toggleT9();
+    /**
+     * Runs on the T9 thread.  Messages carry the search generation in arg1 so
+     * that work for digits that have since changed is skipped.
+     */
+    private final Handler.Callback mT9Callback = new Handler.Callback() {
+        public boolean handleMessage(Message msg) {
+            switch (msg.what) {
+                case MSG_T9_LOAD:
+                    loadT9Search(getApplicationContext());
+                    return true;
+                case MSG_T9_SEARCH: {
+                    final T9Search search = sT9Search;
+                    if (msg.arg1 != mT9Generation || search == null) {
+                        return true;
                     }
-                    mT9Toggle.setTag(null);
-                } else {
-                    ContactItem contact = (ContactItem) mT9ListTop.getTag();
-                    contact.number = mDigits.getText().toString();
-                    mT9AdapterTop.add(contact);
-                    mT9Toggle.setTag(new Boolean(true));
-                    mT9Toggle.setVisibility(View.GONE);
-                    toggleT9();
+                    final T9SearchResult result = search.search((String) msg.obj);
+                    final int generation = msg.arg1;
+                    mT9ResultHandler.post(new Runnable() {
+                        public void run() {
+                            if (generation == mT9Generation) {
+                                showT9Result(search, result);
+                            }
+                        }
+                    });
+                    return true;
                 }
-                mT9ListTop.setVisibility(View.VISIBLE);
-                if (mT9ListTop.getAdapter() == null) {
-                    mT9ListTop.setAdapter(mT9AdapterTop);
+                case MSG_T9_EXPAND: {
+                    final T9SearchResult result = (T9SearchResult) msg.obj;
+                    if (msg.arg1 != mT9Generation) {
+                        return true;
+                    }
+                    final ArrayList<ContactItem> results = result.getResults();
+                    mT9ResultHandler.post(new Runnable() {
+                        public void run() {
+                            if (result == mT9Result) {
+                                final int count = mT9Adapter.getCount();
+                                if (count < results.size()) {
+                                    mT9Adapter.addItems(results.subList(count, results.size()));
+                                }
+                            }
+                        }
+                    });
+                    return true;
                 }
             }
+            return false;
+        }
+    };
+
+    private final Handler mT9ResultHandler = new Handler();
+
+    private static synchronized void loadT9Search(Context context) {
+        if (sT9Search == null) {
+            sT9Search = new T9Search(context);
+        }
+    }
+
+    /**
+     * Drops the T9 contacts after T9 has been turned off.  Adapters created
+     * from them keep working, and turning T9 back on loads them anew.
+     */
+    private static synchronized void unloadT9Search() {
+        if (sT9Search != null) {
+            sT9Search.close();
+            sT9Search = null;
+        }
+    }
+
+    /**
+     * Publishes the result of the latest search; toggles view visibility based
+     * on results.  Adapters are created from the search the result came from,
+     * since T9 may have been unloaded in the meantime.
+     */
+    private void showT9Result(T9Search search, T9SearchResult result) {
+        mT9Result = result;
+        if (mT9AdapterTop == null) {
+            mT9AdapterTop = search.new T9Adapter(getLayoutInflater(), mPhotoLoader);
+        }
+        final ArrayList<ContactItem> top = new ArrayList<ContactItem>(1);
+        if (result != null) {
+            if (mT9Adapter == null) {
+                mT9Adapter = search.new T9Adapter(getLayoutInflater(), mPhotoLoader);
+            }
+            // The rows coming into view are different ones now
+            mT9PhotoPrefetcher.reset();
+            mT9Adapter.setItems(new ArrayList<ContactItem>(result.getFirstResults()),
+                    result.getQuery());
+            if (mT9List.getAdapter() == null) {
+                mT9List.setAdapter(mT9Adapter);
+            }
+
+            top.add(result.getTopContact());
+            mT9AdapterTop.setItems(top, result.getQuery());
+            if (result.getNumResults()>  1) {
+                mT9Toggle.setVisibility(View.VISIBLE);
+            } else {
+                mT9Toggle.setVisibility(View.GONE);
+                toggleT9();
+            }
+            mT9Toggle.setTag(null);
         } else {
-            mT9ListTop.setVisibility(View.INVISIBLE);
-            mT9Toggle.setVisibility(View.INVISIBLE);
+            ContactItem contact = (ContactItem) mT9ListTop.getTag();
+            contact.setNumber(mDigits.getText().toString());
+            top.add(contact);
+            mT9AdapterTop.setItems(top, "");
+            mT9Toggle.setTag(new Boolean(true));
+            mT9Toggle.setVisibility(View.GONE);
             toggleT9();
         }
+        mT9ListTop.setVisibility(View.VISIBLE);
+        if (mT9ListTop.getAdapter() == null) {
+            mT9ListTop.setAdapter(mT9AdapterTop);
+        }
     }
 
+    /**
+     * Appends the rest of the T9 results once the user scrolls to the end of
+     * the first page, so the complete ranking is only built when it is needed,
+     * and prefetches the photos of the rows coming into view.
+     */
+    private final AbsListView.OnScrollListener mT9ScrollListener = new AbsListView.OnScrollListener() {
+        public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+                int totalItemCount) {
+            if (mT9Result != null && mT9Adapter != null && totalItemCount > 0
+                    && firstVisibleItem + visibleItemCount >= totalItemCount
+                    && mT9Adapter.getCount() < mT9Result.getNumResults() - 1
+                    && !mT9Handler.hasMessages(MSG_T9_EXPAND, mT9Result)) {
+                mT9Handler.obtainMessage(MSG_T9_EXPAND, mT9Generation, 0, mT9Result)
+                        .sendToTarget();
+            }
+            mT9PhotoPrefetcher.onScroll(view, firstVisibleItem, visibleItemCount, totalItemCount);
+        }
+
+        public void onScrollStateChanged(AbsListView view, int scrollState) {
+            mT9PhotoPrefetcher.onScrollStateChanged(view, scrollState);
+        }
+    };
+
     /**
      * Returns preference value for T9Dialer
      */
@@ -749,6 +880,14 @@ public class TwelveKeyDialer extends Activity implements View.OnClickListener,
         mLastNumberDialed = EMPTY_NUMBER;  // Since we are going to query again, free stale number.
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mPhotoLoader.stop();
+        mT9Thread.quit();
+        mT9ResultHandler.removeCallbacksAndMessages(null);
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         m2SecPauseMenuItem = menu.add(0, MENU_2S_PAUSE, 0, R.string.add_2sec_pause)
@@ -1364,10 +1503,10 @@ public class TwelveKeyDialer extends Activity implements View.OnClickListener,
     public void onItemClick(AdapterView parent, View v, int position, long id) {
         if (parent == mT9List || parent == mT9ListTop) {
             if (parent == mT9List) {
-                mDigits.setText(mT9Adapter.getItem(position).number);
+                mDigits.setText(mT9Adapter.getItem(position).getNumber());
             } else {
                 if (mT9Toggle.getTag() == null) {
-                    mDigits.setText(mT9AdapterTop.getItem(position).number);
+                    mDigits.setText(mT9AdapterTop.getItem(position).getNumber());
                 } else {
                     addToContacts();
                     return;
@@ -1417,9 +1556,9 @@ public class TwelveKeyDialer extends Activity implements View.OnClickListener,
     public boolean onItemLongClick(AdapterView parent, View v, int position, long id) {
         long contactId;
         if (parent == mT9List) {
-            contactId = mT9Adapter.getItem(position).id;
+            contactId = mT9Adapter.getItem(position).getId();
         } else if (mT9Toggle.getTag() == null) {
-            contactId = mT9AdapterTop.getItem(position).id;
+            contactId = mT9AdapterTop.getItem(position).getId();
         } else {
             return false;
         }
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * Tests for {@link ContactFilterCache}.
+ */
+@SmallTest
+public class ContactFilterCacheTests extends AndroidTestCase {
+
+    private static final String[] COLUMNS = new String[] { "_id", "display_name" };
+
+    private ContactFilterCache mCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCache = new ContactFilterCache(null, 1);
+    }
+
+    public void testMatchesName() {
+        assertTrue(ContactFilterCache.matchesName("John Smith", "jo"));
+        assertTrue(ContactFilterCache.matchesName("John Smith", "smi"));
+        assertTrue(ContactFilterCache.matchesName("John Smith", "johnsm"));
+        assertTrue(ContactFilterCache.matchesName("Zo\u00eb O'Neil", "zoeon"));
+        assertFalse(ContactFilterCache.matchesName("John Smith", "ohn"));
+        assertFalse(ContactFilterCache.matchesName("John Smith", "smithj"));
+    }
+
+    public void testNormalize() {
+        assertEquals("jsm", ContactFilterCache.normalize("J. Sm"));
+        assertEquals("ele", ContactFilterCache.normalize("\u00c9l\u00e9"));
+    }
+
+    public void testGetReturnsCopy() {
+        assertNull(mCache.get("jo"));
+        Cursor cursor = mCache.put("jo", newCursor("John", "Joe"));
+        assertEquals(2, cursor.getCount());
+
+        cursor = mCache.get("jo");
+        assertEquals(2, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(1, cursor.getLong(0));
+        assertEquals("John", cursor.getString(1));
+    }
+
+    public void testNarrow() {
+        mCache.put("j", newCursor("John", "Joe", "Jane"));
+        mCache.put("jo", newCursor("John", "Joe"));
+
+        // The longest cached prefix is narrowed
+        Cursor cursor = mCache.narrow("joh");
+        assertEquals(1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals("John", cursor.getString(1));
+
+        assertNull(mCache.narrow("m"));
+
+        // Digits are matched against phone numbers by the provider
+        mCache.put("5", newCursor("John"));
+        assertNull(mCache.narrow("55"));
+    }
+
+    public void testClear() {
+        mCache.put("jo", newCursor("John"));
+        mCache.clear();
+        assertNull(mCache.get("jo"));
+        assertNull(mCache.narrow("joh"));
+    }
+
+    private Cursor newCursor(String... names) {
+        MatrixCursor cursor = new MatrixCursor(COLUMNS);
+        for (int i = 0; i < names.length; i++) {
+            cursor.addRow(new Object[] { i + 1, names[i] });
+        }
+        return cursor;
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts;
+
+import android.graphics.Bitmap;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * Tests for {@link ContactPhotoBitmapPool}.
+ */
+@SmallTest
+public class ContactPhotoBitmapPoolTests extends AndroidTestCase {
+
+    /** 10x10 ARGB_8888 */
+    private static final int PHOTO_BYTES = 400;
+
+    public void testAcquireBySize() {
+        ContactPhotoBitmapPool pool = new ContactPhotoBitmapPool(10 * PHOTO_BYTES);
+        Bitmap square = newBitmap(10, 10, Bitmap.Config.ARGB_8888);
+        Bitmap wide = newBitmap(20, 5, Bitmap.Config.ARGB_8888);
+        pool.release(square);
+        pool.release(wide);
+        assertEquals(2 * PHOTO_BYTES, pool.size());
+
+        assertNull(pool.acquire(10, 10, Bitmap.Config.RGB_565));
+        assertNull(pool.acquire(5, 20, Bitmap.Config.ARGB_8888));
+        assertSame(square, pool.acquire(10, 10, Bitmap.Config.ARGB_8888));
+        assertNull(pool.acquire(10, 10, Bitmap.Config.ARGB_8888));
+        assertSame(wide, pool.acquire(20, 5, Bitmap.Config.ARGB_8888));
+        assertEquals(0, pool.size());
+        assertEquals(2, pool.getReuseCount());
+    }
+
+    public void testBudgetRecyclesOldest() {
+        ContactPhotoBitmapPool pool = new ContactPhotoBitmapPool(2 * PHOTO_BYTES);
+        Bitmap first = newBitmap(10, 10, Bitmap.Config.ARGB_8888);
+        Bitmap second = newBitmap(10, 10, Bitmap.Config.ARGB_8888);
+        Bitmap third = newBitmap(10, 10, Bitmap.Config.ARGB_8888);
+        pool.release(first);
+        pool.release(second);
+        pool.release(third);
+
+        assertEquals(2 * PHOTO_BYTES, pool.size());
+        assertTrue(first.isRecycled());
+        assertFalse(second.isRecycled());
+        assertNotNull(pool.acquire(10, 10, Bitmap.Config.ARGB_8888));
+        assertNotNull(pool.acquire(10, 10, Bitmap.Config.ARGB_8888));
+        assertNull(pool.acquire(10, 10, Bitmap.Config.ARGB_8888));
+
+        // Too large to ever be kept
+        Bitmap large = newBitmap(30, 30, Bitmap.Config.ARGB_8888);
+        pool.release(large);
+        assertTrue(large.isRecycled());
+        assertEquals(0, pool.size());
+    }
+
+    public void testClear() {
+        ContactPhotoBitmapPool pool = new ContactPhotoBitmapPool(2 * PHOTO_BYTES);
+        Bitmap bitmap = newBitmap(10, 10, Bitmap.Config.ARGB_8888);
+        pool.release(bitmap);
+        pool.clear();
+        assertTrue(bitmap.isRecycled());
+        assertEquals(0, pool.size());
+        assertNull(pool.acquire(10, 10, Bitmap.Config.ARGB_8888));
+    }
+
+    private static Bitmap newBitmap(int width, int height, Bitmap.Config config) {
+        return Bitmap.createBitmap(width, height, config);
+    }
+}
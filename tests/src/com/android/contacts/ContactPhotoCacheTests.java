@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts;
+
+import android.graphics.Bitmap;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.ArrayList;
+
+/**
+ * Tests for {@link ContactPhotoCache}.
+ */
+@SmallTest
+public class ContactPhotoCacheTests extends AndroidTestCase {
+
+    /** 10x10 ARGB_8888 */
+    private static final int PHOTO_BYTES = 400;
+
+    public void testLruEviction() {
+        ContactPhotoCache cache = new ContactPhotoCache(3 * PHOTO_BYTES, 0);
+        Bitmap one = newPhoto();
+        cache.put(1, one);
+        cache.put(2, newPhoto());
+        cache.put(3, newPhoto());
+        assertEquals(3 * PHOTO_BYTES, cache.size());
+
+        // Using 1 makes 2 the eldest
+        assertSame(one, cache.get(1));
+        cache.put(4, newPhoto());
+        assertEquals(3 * PHOTO_BYTES, cache.size());
+        assertEquals(1, cache.getEvictionCount());
+        assertNull(cache.get(2));
+        assertNotNull(cache.get(1));
+        assertNotNull(cache.get(3));
+        assertNotNull(cache.get(4));
+    }
+
+    public void testPeek() {
+        ContactPhotoCache cache = new ContactPhotoCache(PHOTO_BYTES, 1);
+        Bitmap one = newPhoto();
+        cache.put(1, one);
+        cache.put(2, newPhoto());
+
+        assertNull(cache.peek(3));
+        // 1 is in the soft tier, and stays there
+        assertSame(one, cache.peek(1));
+        assertEquals(PHOTO_BYTES, cache.size());
+    }
+
+    public void testSoftTier() {
+        ContactPhotoCache cache = new ContactPhotoCache(PHOTO_BYTES, 1);
+        Bitmap one = newPhoto();
+        cache.put(1, one);
+        cache.put(2, newPhoto());
+        assertEquals(PHOTO_BYTES, cache.size());
+
+        // Still strongly reachable here, so the soft tier hands it back
+        assertSame(one, cache.get(1));
+        assertEquals(PHOTO_BYTES, cache.size());
+        assertEquals(2, cache.getEvictionCount());
+
+        cache.put(3, newPhoto());
+        // The soft tier only keeps the most recently evicted photo
+        assertNull(cache.get(2));
+        assertSame(one, cache.get(1));
+    }
+
+    public void testReplaceAndRemove() {
+        ContactPhotoCache cache = new ContactPhotoCache(10 * PHOTO_BYTES, 4);
+        cache.put(1, newPhoto());
+        cache.put(1, newPhoto());
+        assertEquals(PHOTO_BYTES, cache.size());
+        cache.remove(1);
+        assertEquals(0, cache.size());
+        assertNull(cache.get(1));
+
+        cache.put(2, newPhoto());
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertNull(cache.get(2));
+    }
+
+    public void testEvictionListener() {
+        ContactPhotoCache cache = new ContactPhotoCache(PHOTO_BYTES, 1);
+        final ArrayList<Bitmap> evicted = new ArrayList<Bitmap>();
+        cache.setEvictionListener(new ContactPhotoCache.EvictionListener() {
+            public void onPhotoEvicted(long photoId, Bitmap bitmap) {
+                evicted.add(bitmap);
+            }
+        });
+        Bitmap one = newPhoto();
+        Bitmap two = newPhoto();
+        cache.put(1, one);
+        // 1 only moves to the soft tier
+        cache.put(2, two);
+        assertTrue(evicted.isEmpty());
+
+        // 1 is pushed out of the soft tier by 2
+        cache.put(3, newPhoto());
+        assertEquals(1, evicted.size());
+        assertSame(one, evicted.get(0));
+
+        // Replacing and removing photos also evicts them
+        Bitmap three = cache.get(3);
+        cache.put(3, newPhoto());
+        cache.remove(2);
+        assertEquals(3, evicted.size());
+        assertSame(three, evicted.get(1));
+        assertSame(two, evicted.get(2));
+    }
+
+    private static Bitmap newPhoto() {
+        return Bitmap.createBitmap(10, 10, Bitmap.Config.ARGB_8888);
+    }
+}
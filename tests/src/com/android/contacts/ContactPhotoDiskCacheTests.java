@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts;
+
+import android.graphics.Bitmap;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+
+/**
+ * Tests for {@link ContactPhotoDiskCache}.
+ */
+@SmallTest
+public class ContactPhotoDiskCacheTests extends AndroidTestCase {
+
+    private File mDirectory;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDirectory = File.createTempFile("photos", null);
+        mDirectory.delete();
+        mDirectory.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        new ContactPhotoDiskCache(mDirectory, 0).clear();
+        mDirectory.delete();
+        super.tearDown();
+    }
+
+    public void testPutAndGet() {
+        ContactPhotoDiskCache cache = new ContactPhotoDiskCache(mDirectory, 1024 * 1024);
+        cache.put(7, 2, 8, Bitmap.createBitmap(8, 8, Bitmap.Config.ARGB_8888));
+
+        assertNotNull(cache.get(7, 2, 8));
+        // Another version of the row is a different photo
+        assertNull(cache.get(7, 3, 8));
+        assertNull(cache.get(8, 2, 8));
+        // Thumbnails decoded for another size are stored apart
+        assertNull(cache.get(7, 2, 16));
+        assertTrue(cache.contains(7, 2, 8));
+        assertFalse(cache.contains(7, 2, 16));
+    }
+
+    public void testRetainDropsChangedPhotos() throws IOException {
+        writeFile("1-3-96.png", 10);
+        writeFile("2-1-96.png", 10);
+        writeFile("3-1-96.png", 10);
+        writeFile("4-1-96.png.tmp", 10);
+        writeFile("1-3.png", 10);
+        writeFile("junk", 10);
+
+        HashMap<Long, Integer> versions = new HashMap<Long, Integer>();
+        versions.put(1L, 3);
+        versions.put(2L, 2);
+        new ContactPhotoDiskCache(mDirectory, 1024).retain(versions);
+
+        String[] names = mDirectory.list();
+        assertEquals(1, names.length);
+        assertEquals("1-3-96.png", names[0]);
+    }
+
+    public void testRetainTrimsOldestFiles() throws IOException {
+        HashMap<Long, Integer> versions = new HashMap<Long, Integer>();
+        for (int i = 1; i <= 4; i++) {
+            File file = writeFile(i + "-1-96.png", 100);
+            file.setLastModified(1000000000000L + i * 1000);
+            versions.put((long) i, 1);
+        }
+
+        new ContactPhotoDiskCache(mDirectory, 250).retain(versions);
+
+        assertFalse(new File(mDirectory, "1-1-96.png").exists());
+        assertFalse(new File(mDirectory, "2-1-96.png").exists());
+        assertTrue(new File(mDirectory, "3-1-96.png").exists());
+        assertTrue(new File(mDirectory, "4-1-96.png").exists());
+    }
+
+    private File writeFile(String name, int length) throws IOException {
+        File file = new File(mDirectory, name);
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(new byte[length]);
+        out.close();
+        return file;
+    }
+}
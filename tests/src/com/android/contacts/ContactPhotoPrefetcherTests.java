@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * Tests for {@link ContactPhotoPrefetcher}.
+ */
+@SmallTest
+public class ContactPhotoPrefetcherTests extends AndroidTestCase {
+
+    public void testRangeAtRest() {
+        // One screen below the visible rows
+        assertRange(20, 30, ContactPhotoPrefetcher.getPrefetchRange(10, 20, 100, 0));
+    }
+
+    public void testRangeGrowsWithVelocity() {
+        assertRange(20, 45, ContactPhotoPrefetcher.getPrefetchRange(10, 20, 100, 20));
+        assertRange(20, 20 + ContactPhotoPrefetcher.MAX_PREFETCH_ROWS,
+                ContactPhotoPrefetcher.getPrefetchRange(10, 20, 1000, 1000));
+    }
+
+    public void testRangeFollowsDirection() {
+        assertRange(35, 50, ContactPhotoPrefetcher.getPrefetchRange(50, 60, 100, -7));
+        assertRange(0, 5, ContactPhotoPrefetcher.getPrefetchRange(5, 15, 100, -20));
+    }
+
+    public void testRangeEndsWithList() {
+        assertRange(95, 100, ContactPhotoPrefetcher.getPrefetchRange(85, 95, 100, 40));
+        assertRange(100, 100, ContactPhotoPrefetcher.getPrefetchRange(90, 100, 100, 40));
+    }
+
+    private static void assertRange(int start, int end, int[] range) {
+        assertEquals(start, range[0]);
+        assertEquals(end, range[1]);
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.File;
+
+/**
+ * Tests for {@link ContactPhotoService}.
+ */
+@SmallTest
+public class ContactPhotoServiceTests extends AndroidTestCase {
+
+    private ContactPhotoService mService;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mService = new ContactPhotoService(null, new ContactPhotoCache(1024 * 1024, 0),
+                new ContactPhotoDiskCache(new File("unused"), 0), 96,
+                new ContactPhotoBitmapPool(0));
+    }
+
+    public void testPhotoInFlightIsNotLoadedAgain() {
+        assertTrue(mService.requestPhoto(1, 96));
+        assertTrue(mService.startLoading(1));
+
+        // Checked again by its view while another chunk is delivered
+        assertTrue(mService.requestPhoto(1, 128));
+        assertFalse(mService.startLoading(1));
+    }
+
+    public void testPhotoIsLoadedOnce() {
+        assertFalse(mService.startLoading(2));
+        assertTrue(mService.requestPhoto(2, 96));
+        assertTrue(mService.requestPhoto(2, 96));
+        assertTrue(mService.startLoading(2));
+        assertFalse(mService.startLoading(2));
+    }
+}
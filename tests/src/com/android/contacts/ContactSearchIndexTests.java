@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts;
+
+import com.android.contacts.ContactSearchIndex.Hit;
+import com.android.contacts.ContactSearchIndex.Value;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Tests for {@link ContactSearchIndex}.
+ */
+@SmallTest
+public class ContactSearchIndexTests extends AndroidTestCase {
+
+    private ContactSearchIndex mIndex;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mIndex = new ContactSearchIndex();
+        mIndex.put(1, 10, 1,
+                new Value(ContactSearchIndex.FIELD_NAME, "John Smith", null),
+                new Value(ContactSearchIndex.FIELD_EMAIL, "jsmith@example.com", null));
+        mIndex.put(2, 20, 1,
+                new Value(ContactSearchIndex.FIELD_NAME, "Anna Example", null),
+                new Value(ContactSearchIndex.FIELD_ORGANIZATION, "Acme", "Engineer"));
+        mIndex.put(3, 30, 1,
+                new Value(ContactSearchIndex.FIELD_NAME, "Zo\u00eb Brown", null),
+                new Value(ContactSearchIndex.FIELD_NOTE, "Met at the Acme party", null));
+    }
+
+    public void testTokenize() {
+        assertEquals(Arrays.asList("jsmith", "example", "com"),
+                ContactSearchIndex.tokenize("JSmith@Example.com"));
+        assertEquals(Arrays.asList("zoe", "o", "neil"),
+                ContactSearchIndex.tokenize(" Zo\u00eb O'Neil "));
+    }
+
+    public void testSearchFields() {
+        assertContacts(mIndex.search("exam", 10), 20, 10);
+        assertContacts(mIndex.search("acme", 10), 20, 30);
+        assertContacts(mIndex.search("engineer", 10), 20);
+        assertContacts(mIndex.search("zoe", 10), 30);
+        assertContacts(mIndex.search("party", 10), 30);
+        assertContacts(mIndex.search("smith", 10), 10);
+        assertContacts(mIndex.search("xyz", 10));
+        assertContacts(mIndex.search("  ", 10));
+    }
+
+    public void testSearchAllWords() {
+        assertContacts(mIndex.search("john example.com", 10), 10);
+        assertContacts(mIndex.search("anna acme", 10), 20);
+        assertContacts(mIndex.search("john acme", 10));
+    }
+
+    public void testBestValueReported() {
+        Hit hit = mIndex.search("acme", 10).get(0);
+        assertEquals(20, hit.contactId);
+        assertEquals(ContactSearchIndex.FIELD_ORGANIZATION, hit.value.field);
+        assertEquals("Acme", hit.value.text);
+        assertEquals("Anna Example", hit.name);
+
+        hit = mIndex.search("anna acme", 10).get(0);
+        assertEquals(ContactSearchIndex.FIELD_NAME, hit.value.field);
+    }
+
+    public void testRawContactsOfOneContact() {
+        mIndex.put(4, 10, 1, new Value(ContactSearchIndex.FIELD_NICKNAME, "Jack", null));
+        // Words may match different raw contacts of the contact
+        assertContacts(mIndex.search("jack smith", 10), 10);
+        assertContacts(mIndex.search("j", 1), 10);
+    }
+
+    public void testPutReplacesAndRemove() {
+        assertTrue(mIndex.isCurrent(1, 10, 1));
+        mIndex.put(1, 10, 2, new Value(ContactSearchIndex.FIELD_NAME, "John Doe", null));
+        assertFalse(mIndex.isCurrent(1, 10, 1));
+        assertTrue(mIndex.isCurrent(1, 10, 2));
+        assertContacts(mIndex.search("smith", 10));
+        assertContacts(mIndex.search("doe", 10), 10);
+
+        mIndex.remove(1);
+        assertFalse(mIndex.isCurrent(1, 10, 2));
+        assertContacts(mIndex.search("doe", 10));
+        assertEquals(2, mIndex.size());
+    }
+
+    private static void assertContacts(ArrayList<Hit> hits, long... contactIds) {
+        long[] actual = new long[hits.size()];
+        for (int i = 0; i < actual.length; i++) {
+            actual[i] = hits.get(i).contactId;
+        }
+        assertEquals(Arrays.toString(contactIds), Arrays.toString(actual));
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * Tests for {@link ContactsSectionIndexer}.
+ */
+@SmallTest
+public class ContactsSectionIndexerTests extends AndroidTestCase {
+
+    public void testSectionForPosition() {
+        ContactsSectionIndexer indexer = new ContactsSectionIndexer(
+                new String[] { "A", "B", "C" }, new int[] { 3, 2, 4 });
+
+        assertEquals(0, indexer.getSectionForPosition(0));
+        assertEquals(0, indexer.getSectionForPosition(2));
+        assertEquals(1, indexer.getSectionForPosition(3));
+        assertEquals(1, indexer.getSectionForPosition(4));
+        assertEquals(2, indexer.getSectionForPosition(8));
+        assertEquals(-1, indexer.getSectionForPosition(9));
+        assertEquals(5, indexer.getPositionForSection(2));
+    }
+
+    public void testUpdatePatchesCounts() {
+        ContactsSectionIndexer indexer = new ContactsSectionIndexer(
+                new String[] { "A", "B", "C", "D" }, new int[] { 3, 2, 4, 1 });
+
+        assertTrue(indexer.update(new String[] { "A", "B ", "C", "D" }, new int[] { 3, 5, 4, 1 }));
+
+        assertEquals(0, indexer.getPositionForSection(0));
+        assertEquals(3, indexer.getPositionForSection(1));
+        assertEquals(8, indexer.getPositionForSection(2));
+        assertEquals(12, indexer.getPositionForSection(3));
+        assertEquals(3, indexer.getSectionForPosition(12));
+        assertEquals(-1, indexer.getSectionForPosition(13));
+    }
+
+    public void testUpdateRejectsOtherSections() {
+        ContactsSectionIndexer indexer = new ContactsSectionIndexer(
+                new String[] { "A", "B" }, new int[] { 3, 2 });
+
+        assertFalse(indexer.update(new String[] { "A", "C" }, new int[] { 3, 2 }));
+        assertFalse(indexer.update(new String[] { "A" }, new int[] { 5 }));
+
+        assertEquals(3, indexer.getPositionForSection(1));
+        assertEquals(1, indexer.getSectionForPosition(4));
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * Tests for {@link LatencyHistogram}.
+ */
+@SmallTest
+public class LatencyHistogramTests extends AndroidTestCase {
+
+    public void testBuckets() {
+        assertEquals(0, LatencyHistogram.bucketOf(0));
+        assertEquals(1, LatencyHistogram.bucketOf(1));
+        assertEquals(2, LatencyHistogram.bucketOf(3));
+        assertEquals(3, LatencyHistogram.bucketOf(4));
+        assertEquals(LatencyHistogram.BUCKETS - 1,
+                LatencyHistogram.bucketOf(60000));
+    }
+
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram("test");
+        assertEquals(0, histogram.getPercentile(50));
+
+        for (int i = 0; i < 9; i++) {
+            histogram.add(5);
+        }
+        histogram.add(100000);
+
+        assertEquals(10, histogram.getCount());
+        assertEquals(8, histogram.getPercentile(50));
+        assertEquals(8, histogram.getPercentile(90));
+        // The slowest samples report the maximum rather than a bucket bound
+        assertEquals(100000, histogram.getPercentile(99));
+
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * Tests for {@link T9ContactTable}.
+ */
+@SmallTest
+public class T9ContactTableTests extends AndroidTestCase {
+    private static final int ROWS = 20000;
+    private static final String[] LABELS = { "Mobile", "Home", "Work", "Other" };
+
+    // Bytes per row of the packed columns: three longs, four ints, the flags
+    // and the reference to the shared name
+    private static final int PACKED_ROW_BYTES = 3 * 8 + 4 * 4 + 1 + 4;
+    // Bytes of the object each row used to be: its header, three longs, three
+    // ints, a boolean and five references, plus its slot in the list
+    private static final int LEGACY_ROW_BYTES = 8 + 3 * 8 + 3 * 4 + 4 + 5 * 4 + 4;
+    // Bytes of a string besides its characters: the string and its char array
+    private static final int LEGACY_STRING_BYTES = 24 + 16;
+
+    public void testRoundTrip() {
+        T9ContactTable table = new T9ContactTable(1);
+        table.add(7, 70, 3, "Paul", "7285", "+1 (650) 555-0123", "+16505550123",
+                "Mobile", 12, 9, true);
+        table.add(8, 80, 1, "Zo\u00eb", "906", "\u0660\u0667 123", "123", "Home", 0, 0, false);
+
+        assertEquals(2, table.size());
+        assertEquals(7, table.getId(0));
+        assertEquals(70, table.getDataId(0));
+        assertEquals(3, table.getDataVersion(0));
+        assertEquals("Paul", table.getName(0));
+        assertEquals("7285", table.getNormalName(0));
+        assertEquals("+1 (650) 555-0123", table.getNumber(0));
+        assertEquals("+16505550123", table.getNormalNumber(0));
+        assertEquals("Mobile", table.getLabel(0));
+        assertEquals(12, table.getTimesContacted(0));
+        assertEquals(9, table.getPhotoId(0));
+        assertTrue(table.isSuperPrimary(0));
+
+        // Non-ASCII numbers are kept intact
+        assertEquals("\u0660\u0667 123", table.getNumber(1));
+        assertEquals("123", table.getNormalNumber(1));
+        assertFalse(table.isSuperPrimary(1));
+
+        assertFalse(table.isRemoved(1));
+        table.markRemoved(1);
+        assertTrue(table.isRemoved(1));
+        assertFalse(table.isSuperPrimary(1));
+
+        // Call scores are set separately and kept when rows are copied
+        assertEquals(0, table.getCallScore(0));
+        table.setCallScore(0, 250);
+        T9ContactTable copy = new T9ContactTable();
+        copy.add(table, 0);
+        assertEquals(250, copy.getCallScore(0));
+        assertEquals("Paul", copy.getName(0));
+    }
+
+    public void testIndexInPlace() {
+        T9ContactTable table = new T9ContactTable();
+        table.add(1, 1, 0, "a", "7285", "555", "555", "Home", 0, 0, false);
+        table.add(2, 2, 0, "b", "2255", "123", "123", "Home", 0, 0, false);
+        T9Index index = new T9Index(table.getNormalNames(), table.size(), false);
+
+        // Rows appended after the index was built are not visible to it
+        table.add(3, 3, 0, "c", "5555", "456", "456", "Home", 0, 0, false);
+
+        T9Index.Matches matches = new T9Index.Matches();
+        index.search("55", matches);
+        assertEquals(1, matches.count);
+        assertEquals(1, matches.entries[0]);
+        assertEquals(2, matches.offsets[0]);
+        assertEquals(0, table.getNormalNames().indexOf(2, "55"));
+        assertEquals(-1, table.getNormalNames().indexOf(0, "55"));
+    }
+
+    /**
+     * Checks the layout that keeps the table small: columns are flat arrays
+     * that do not grow past the requested capacity, strings are packed into
+     * pools at one byte per character and labels are stored once.  Together
+     * they take less than half of the per-row objects the table replaced.
+     */
+    public void testPackedSize() {
+        T9ContactTable table = new T9ContactTable(ROWS);
+        int normalNameBytes = 0;
+        int normalNumberBytes = 0;
+        long legacyBytes = 0;
+        String name = null;
+        for (int i = 0; i < ROWS; i++) {
+            // Rows of the same contact share the display name
+            if (i % 2 == 0) {
+                name = name(i / 2);
+            }
+            String number = "+1 (650) " + (5550000 + i);
+            String normalNumber = "+1650" + (5550000 + i);
+            table.add(i / 2, i, 0, name, normalName(i / 2), number, normalNumber,
+                    new StringBuilder(LABELS[i % LABELS.length]), i % 7, 0, i % 2 == 0);
+            // Each string is followed by its terminator
+            normalNameBytes += normalName(i / 2).length() + 1;
+            normalNumberBytes += normalNumber.length() + 1;
+            // Display names and labels are left out, they are shared either way
+            legacyBytes += LEGACY_ROW_BYTES + legacyStringBytes(normalName(i / 2))
+                    + legacyStringBytes(number) + legacyStringBytes(normalNumber);
+        }
+
+        assertEquals(ROWS, table.size());
+        assertEquals(ROWS, table.getCapacity());
+        assertEquals(normalNameBytes, table.getNormalNames().length);
+        assertEquals(normalNumberBytes, table.getNormalNumbers().length);
+        assertEquals(ROWS, table.getNormalNames().starts.length);
+        assertEquals(0, table.getWideNumberCount());
+        // A label instance per row, stored once per distinct label
+        assertEquals(LABELS.length, table.getLabelCount());
+
+        long packedBytes = (long) table.getCapacity() * PACKED_ROW_BYTES
+                + poolBytes(table.getNormalNames()) + poolBytes(table.getInitials())
+                + poolBytes(table.getNormalNumbers()) + poolBytes(table.getNumbers());
+        assertTrue("packed " + packedBytes + " bytes, legacy " + legacyBytes + " bytes",
+                packedBytes * 2 < legacyBytes);
+    }
+
+    /**
+     * Returns the bytes allocated by a pool, including its unused space.
+     */
+    private static long poolBytes(T9ContactTable.Pool pool) {
+        return pool.text.length + pool.starts.length * 4L;
+    }
+
+    /**
+     * Returns the bytes of a string of its own, with the char array rounded
+     * up to 8 bytes.
+     */
+    private static long legacyStringBytes(String value) {
+        return LEGACY_STRING_BYTES + ((value.length() * 2 + 7) & ~7);
+    }
+
+    private static String name(int contact) {
+        return "Contact " + contact;
+    }
+
+    private static String normalName(int contact) {
+        return "2668228" + contact;
+    }
+}
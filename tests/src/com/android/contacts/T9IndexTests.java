@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * Tests for {@link T9Index}, checking it against the plain substring search
+ * previously done by {@link T9Search}.
+ */
+@SmallTest
+public class T9IndexTests extends AndroidTestCase {
+
+    private static final String ALPHABET = "0123456789*#+";
+
+    public void testSimpleMatches() {
+        ArrayList<String> values = new ArrayList<String>();
+        values.add("7285053");
+        values.add("5550123");
+        values.add("");
+        values.add("2255");
+
+        T9Index index = new T9Index(values);
+        T9Index.Matches matches = new T9Index.Matches();
+
+        index.search("55", matches);
+        HashMap<Integer, Integer> found = toMap(matches);
+        assertEquals(2, found.size());
+        assertEquals(Integer.valueOf(0), found.get(1));
+        assertEquals(Integer.valueOf(2), found.get(3));
+
+        index.search("0", matches);
+        found = toMap(matches);
+        assertEquals(2, found.size());
+        assertEquals(Integer.valueOf(4), found.get(0));
+        assertEquals(Integer.valueOf(3), found.get(1));
+
+        index.search("9", matches);
+        assertEquals(0, matches.count);
+    }
+
+    public void testEmptyQueryMatchesEverything() {
+        ArrayList<String> values = new ArrayList<String>();
+        values.add("123");
+        values.add("");
+        T9Index index = new T9Index(values);
+        T9Index.Matches matches = new T9Index.Matches();
+
+        index.search("", matches);
+        HashMap<Integer, Integer> found = toMap(matches);
+        assertEquals(2, found.size());
+        assertEquals(Integer.valueOf(0), found.get(0));
+        assertEquals(Integer.valueOf(0), found.get(1));
+    }
+
+    public void testWordStarts() {
+        // "Mark Artur", "Paul Mueller"
+        ArrayList<String> values = new ArrayList<String>();
+        values.add("6275027887");
+        values.add("728506835537");
+        T9ContactTable.Pool pool = new T9ContactTable.Pool(values.size());
+        for (int i = 0; i < values.size(); i++) {
+            pool.add(i, values.get(i));
+        }
+        T9Index index = new T9Index(pool, values.size(), true);
+        T9Index.Matches matches = new T9Index.Matches();
+
+        // Only the occurrence at the start of "Artur" counts
+        index.search("27", matches);
+        HashMap<Integer, Integer> found = toMap(matches);
+        assertEquals(1, found.size());
+        assertEquals(Integer.valueOf(5), found.get(0));
+        assertEquals(5, pool.indexOf(0, "27", true));
+        assertEquals(1, pool.indexOf(0, "27", false));
+
+        index.search("85", matches);
+        assertEquals(0, matches.count);
+        assertEquals(-1, pool.indexOf(1, "85", true));
+    }
+
+    public void testInitials() {
+        assertEquals("76", T9Index.initialsOf("728506835537"));
+        assertEquals("76", T9Index.initialsOf("072850068355370"));
+        assertEquals("", T9Index.initialsOf(""));
+    }
+
+    public void testMatchesSubstringSearch() {
+        Random random = new Random(42);
+        ArrayList<String> values = new ArrayList<String>();
+        for (int i = 0; i < 2000; i++) {
+            // A small alphabet for part of the entries gives plenty of
+            // repeated and overlapping occurrences.
+            values.add(randomDigits(random, random.nextInt(16), i % 2 == 0 ? 3 : ALPHABET.length()));
+        }
+
+        T9Index index = new T9Index(values);
+        T9Index.Matches matches = new T9Index.Matches();
+        for (int i = 0; i < 500; i++) {
+            String query = randomDigits(random, 1 + random.nextInt(4), i % 2 == 0 ? 3 : 10);
+            index.search(query, matches);
+            assertEquals("query " + query, bruteForce(values, query), toMap(matches));
+        }
+    }
+
+    private static String randomDigits(Random random, int length, int alphabetSize) {
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            sb.append(ALPHABET.charAt(random.nextInt(alphabetSize)));
+        }
+        return sb.toString();
+    }
+
+    private static HashMap<Integer, Integer> bruteForce(ArrayList<String> values, String query) {
+        HashMap<Integer, Integer> result = new HashMap<Integer, Integer>();
+        for (int i = 0; i < values.size(); i++) {
+            int pos = values.get(i).indexOf(query);
+            if (pos != -1) {
+                result.put(i, pos);
+            }
+        }
+        return result;
+    }
+
+    private static HashMap<Integer, Integer> toMap(T9Index.Matches matches) {
+        HashMap<Integer, Integer> result = new HashMap<Integer, Integer>();
+        for (int i = 0; i < matches.count; i++) {
+            assertNull("duplicate entry", result.put(matches.entries[i], matches.offsets[i]));
+        }
+        return result;
+    }
+}
@@ -0,0 +1,275 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.Debug;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.test.AndroidTestCase;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Microbenchmarks for {@link T9Search}.  Each size builds the search from a
+ * synthetic address book served by a stand-in contacts provider, then types a
+ * few digit sequences one key at a time and reports the latency and the
+ * allocations of every keystroke.  Results are logged under {@link #TAG}:
+ *
+ *   adb shell am instrument -w -e class com.android.contacts.T9SearchPerformanceTests \
+ *     com.android.contacts.tests/android.test.InstrumentationTestRunner
+ *   adb logcat -s T9SearchPerformanceTests
+ */
+@LargeTest
+public class T9SearchPerformanceTests extends AndroidTestCase {
+    private static final String TAG = "T9SearchPerformanceTests";
+
+    /** Runs of every keystroke; the first is a warm-up and is not measured. */
+    private static final int RUNS = 6;
+
+    private static final long LOAD_TIMEOUT_MS = 120000;
+
+    /** Typical input: names ("john", "mary", "pa"), a word start and numbers. */
+    private static final String[] SEQUENCES = { "5646", "6279", "72", "2", "555", "0123" };
+
+    private static final String[] FIRST_NAMES = { "John", "Mary", "Paul", "Anna", "Peter",
+            "Sarah", "Michael", "Laura", "David", "Julia", "Mark", "Emma", "Thomas", "Olga",
+            "Andreas", "Zo\u00eb" };
+    private static final String[] LAST_NAMES = { "Smith", "Miller", "Mueller", "Jones",
+            "Brown", "Garcia", "Martin", "Schmidt", "Rossi", "Novak", "Ivanov", "Kowalski",
+            "Andersson", "Nguyen", "van der Berg", "O'Brien" };
+
+    public void testSearch1k() throws InterruptedException {
+        runBenchmark(1000);
+    }
+
+    public void testSearch10k() throws InterruptedException {
+        runBenchmark(10000);
+    }
+
+    public void testSearch50k() throws InterruptedException {
+        runBenchmark(50000);
+    }
+
+    public void testNameToNumber() throws InterruptedException {
+        // Builds the character map
+        T9Search search = new T9Search(new AddressBookContext(getContext(), 1));
+        assertTrue(search.waitForLoad(LOAD_TIMEOUT_MS));
+        search.close();
+
+        String[] names = new String[1000];
+        Random random = new Random(1);
+        for (int i = 0; i < names.length; i++) {
+            names[i] = FIRST_NAMES[random.nextInt(FIRST_NAMES.length)] + " "
+                    + LAST_NAMES[random.nextInt(LAST_NAMES.length)];
+        }
+        long nanos = Long.MAX_VALUE;
+        for (int run = 0; run < RUNS; run++) {
+            long start = System.nanoTime();
+            for (String name : names) {
+                T9Search.nameToNumber(name);
+            }
+            nanos = Math.min(nanos, System.nanoTime() - start);
+        }
+        Log.i(TAG, "nameToNumber: " + nanos / names.length + " ns per name");
+        assertEquals("5646", T9Search.nameToNumber("John"));
+    }
+
+    public void testRemoveNonDigits() {
+        String[] numbers = new String[1000];
+        for (int i = 0; i < numbers.length; i++) {
+            numbers[i] = "+1 (650) 555-" + (1000 + i);
+        }
+        long nanos = Long.MAX_VALUE;
+        for (int run = 0; run < RUNS; run++) {
+            long start = System.nanoTime();
+            for (String number : numbers) {
+                T9Search.removeNonDigits(number);
+            }
+            nanos = Math.min(nanos, System.nanoTime() - start);
+        }
+        Log.i(TAG, "removeNonDigits: " + nanos / numbers.length + " ns per number");
+        assertEquals("+16505551000", T9Search.removeNonDigits(numbers[0]));
+    }
+
+    private void runBenchmark(int contacts) throws InterruptedException {
+        long start = System.nanoTime();
+        T9Search search = new T9Search(new AddressBookContext(getContext(), contacts));
+        try {
+            assertTrue(search.waitForLoad(LOAD_TIMEOUT_MS));
+            long buildMillis = (System.nanoTime() - start) / 1000000;
+            Log.i(TAG, contacts + " contacts: built in " + buildMillis + " ms");
+
+            long[] nanos = new long[RUNS - 1];
+            for (String sequence : SEQUENCES) {
+                for (int length = 1; length <= sequence.length(); length++) {
+                    String input = sequence.substring(0, length);
+                    int results = 0;
+                    int allocs = 0;
+                    int allocBytes = 0;
+                    for (int run = 0; run < RUNS; run++) {
+                        Debug.resetThreadAllocCount();
+                        Debug.resetThreadAllocSize();
+                        Debug.startAllocCounting();
+                        long keyStart = System.nanoTime();
+                        T9Search.T9SearchResult result = search.search(input);
+                        // What the dialer shows right away
+                        if (result != null) {
+                            result.getFirstResults();
+                            results = result.getNumResults();
+                        }
+                        long keyNanos = System.nanoTime() - keyStart;
+                        Debug.stopAllocCounting();
+                        if (run > 0) {
+                            nanos[run - 1] = keyNanos;
+                            allocs = Debug.getThreadAllocCount();
+                            allocBytes = Debug.getThreadAllocSize();
+                        }
+                    }
+                    Arrays.sort(nanos);
+                    Log.i(TAG, contacts + " contacts, \"" + input + "\": " + results
+                            + " results, median " + nanos[nanos.length / 2] / 1000 + " us, max "
+                            + nanos[nanos.length - 1] / 1000 + " us, " + allocs + " allocations ("
+                            + allocBytes + " bytes)");
+                }
+            }
+            assertNotNull(search.search(SEQUENCES[0]));
+        } finally {
+            search.close();
+        }
+    }
+
+    /**
+     * Context whose content resolver serves a synthetic address book.  It has
+     * a cache directory of its own without a saved snapshot, so that every
+     * build starts cold.
+     */
+    private static class AddressBookContext extends ContextWrapper {
+        private final MockContentResolver mResolver = new MockContentResolver();
+        private final File mCacheDir;
+
+        AddressBookContext(Context base, int contacts) {
+            super(base);
+            mResolver.addProvider(ContactsContract.AUTHORITY, new AddressBookProvider(contacts));
+            mCacheDir = new File(base.getCacheDir(), TAG);
+            mCacheDir.mkdirs();
+            new File(mCacheDir, T9Search.SNAPSHOT_FILE).delete();
+        }
+
+        @Override
+        public File getCacheDir() {
+            return mCacheDir;
+        }
+
+        @Override
+        public Context getApplicationContext() {
+            return this;
+        }
+
+        @Override
+        public ContentResolver getContentResolver() {
+            return mResolver;
+        }
+    }
+
+    /**
+     * Stand-in contacts provider answering the phone query made by T9Search.
+     * Every contact has one to three numbers; names and numbers are generated
+     * from a fixed seed so that runs are comparable.  The raw contacts query
+     * gets the same rows, which only needs the ID and contact columns.
+     */
+    private static class AddressBookProvider extends MockContentProvider {
+        private final int mContacts;
+        private final String[] mNames;
+        private final int[] mTimesContacted;
+        private final int[] mFirstPhone;
+        private final int mPhones;
+
+        AddressBookProvider(int contacts) {
+            mContacts = contacts;
+            mNames = new String[contacts];
+            mTimesContacted = new int[contacts];
+            mFirstPhone = new int[contacts + 1];
+            Random random = new Random(contacts);
+            int phones = 0;
+            for (int i = 0; i < contacts; i++) {
+                mNames[i] = FIRST_NAMES[random.nextInt(FIRST_NAMES.length)] + " "
+                        + LAST_NAMES[random.nextInt(LAST_NAMES.length)];
+                mTimesContacted[i] = random.nextInt(4) == 0 ? random.nextInt(50) : 0;
+                mFirstPhone[i] = phones;
+                phones += 1 + random.nextInt(3) / 2 + random.nextInt(3) / 2;
+            }
+            mFirstPhone[contacts] = phones;
+            mPhones = phones;
+        }
+
+        @Override
+        public Cursor query(Uri uri, String[] projection, String selection,
+                String[] selectionArgs, String sortOrder) {
+            // Ordered by contact id as T9Search requests
+            MatrixCursor cursor = new MatrixCursor(projection, mPhones);
+            Object[] row = new Object[projection.length];
+            for (int contact = 0; contact < mContacts; contact++) {
+                for (int phone = mFirstPhone[contact]; phone < mFirstPhone[contact + 1]; phone++) {
+                    fillRow(row, projection, contact, phone);
+                    cursor.addRow(row);
+                }
+            }
+            return cursor;
+        }
+
+        private void fillRow(Object[] row, String[] projection, int contact, int phone) {
+            for (int i = 0; i < projection.length; i++) {
+                String column = projection[i];
+                Object value;
+                if (column.equals(Phone.CONTACT_ID)) {
+                    value = contact + 1;
+                } else if (column.equals(Phone._ID)) {
+                    value = phone + 1;
+                } else if (column.equals(Phone.DISPLAY_NAME)) {
+                    value = mNames[contact];
+                } else if (column.equals(Phone.TIMES_CONTACTED)) {
+                    value = mTimesContacted[contact];
+                } else if (column.equals(Phone.PHOTO_ID)) {
+                    value = 0;
+                } else if (column.equals(Phone.NUMBER)) {
+                    value = String.format("+1 (%03d) 555-%04d", 200 + phone % 800, phone % 10000);
+                } else if (column.equals(Phone.TYPE)) {
+                    value = phone == mFirstPhone[contact] ? Phone.TYPE_MOBILE : Phone.TYPE_HOME;
+                } else if (column.equals(Phone.IS_SUPER_PRIMARY)) {
+                    value = phone == mFirstPhone[contact] ? 1 : 0;
+                } else if (column.equals(Phone.DATA_VERSION)) {
+                    value = 1;
+                } else {
+                    value = null;
+                }
+                row[i] = value;
+            }
+        }
+    }
+}
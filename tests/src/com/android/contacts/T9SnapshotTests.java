@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Tests for {@link T9Snapshot}.
+ */
+@SmallTest
+public class T9SnapshotTests extends AndroidTestCase {
+
+    private static final int STAMP = 42;
+
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = File.createTempFile("t9snapshot", null);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    public void testRoundTrip() throws IOException {
+        T9ContactTable table = new T9ContactTable();
+        String paul = "Paul";
+        table.add(7, 70, 3, paul, "7285", "+1 (650) 555-0123", "+16505550123", "Mobile", 12, 9,
+                true);
+        table.add(7, 71, 1, paul, "7285", "555-0100", "5550100", "Home", 12, 9, false);
+        table.add(8, 80, 1, "Zo\u00eb", "906", "\u0660\u0667 123", "123", null, 0, 0, false);
+        table.markRemoved(1);
+        table.setCallScore(0, 1500);
+        T9Index names = new T9Index(table.getNormalNames(), 2, false);
+        T9Index numbers = new T9Index(table.getNormalNumbers(), 2, false);
+
+        T9Snapshot.write(mFile, STAMP, table, 2, names, numbers);
+        T9Snapshot snapshot = T9Snapshot.read(mFile, STAMP);
+        assertNotNull(snapshot);
+        T9ContactTable copy = snapshot.getTable();
+
+        assertEquals(3, copy.size());
+        assertEquals(2, snapshot.getIndexedCount());
+        for (int row = 0; row < table.size(); row++) {
+            assertEquals(table.getId(row), copy.getId(row));
+            assertEquals(table.getDataId(row), copy.getDataId(row));
+            assertEquals(table.getDataVersion(row), copy.getDataVersion(row));
+            assertEquals(table.getPhotoId(row), copy.getPhotoId(row));
+            assertEquals(table.getTimesContacted(row), copy.getTimesContacted(row));
+            assertEquals(table.getCallScore(row), copy.getCallScore(row));
+            assertEquals(table.isSuperPrimary(row), copy.isSuperPrimary(row));
+            assertEquals(table.isRemoved(row), copy.isRemoved(row));
+            assertEquals(table.getName(row), copy.getName(row));
+            assertEquals(table.getNormalName(row), copy.getNormalName(row));
+            assertEquals(table.getNumber(row), copy.getNumber(row));
+            assertEquals(table.getNormalNumber(row), copy.getNormalNumber(row));
+            assertEquals(String.valueOf(table.getLabel(row)), String.valueOf(copy.getLabel(row)));
+        }
+        // Rows of a contact keep sharing the name
+        assertSame(copy.getName(0), copy.getName(1));
+
+        T9Index.Matches matches = new T9Index.Matches();
+        new T9Index(copy.getNormalNumbers(), 2, snapshot.getSuffixes(1)).search("0100", matches);
+        assertEquals(1, matches.count);
+        assertEquals(1, matches.entries[0]);
+        assertEquals(3, matches.offsets[0]);
+
+        // The restored table can still grow
+        copy.add(9, 90, 1, "Anna", "2662", "222", "222", "Work", 0, 0, false);
+        assertEquals("Anna", copy.getName(3));
+        assertEquals("Work", copy.getLabel(3));
+    }
+
+    public void testEmptyTable() throws IOException {
+        T9ContactTable table = new T9ContactTable();
+        T9Snapshot.write(mFile, STAMP, table, 0);
+        T9ContactTable copy = T9Snapshot.read(mFile, STAMP).getTable();
+        assertEquals(0, copy.size());
+        copy.add(1, 1, 0, "a", "2", "555", "555", "Home", 0, 0, false);
+        assertEquals("555", copy.getNumber(0));
+    }
+
+    public void testStaleStamp() throws IOException {
+        T9Snapshot.write(mFile, STAMP, new T9ContactTable(), 0);
+        assertNull(T9Snapshot.read(mFile, STAMP + 1));
+    }
+
+    public void testDamagedFile() throws IOException {
+        T9ContactTable table = new T9ContactTable();
+        table.add(7, 70, 3, "Paul", "7285", "555", "555", "Mobile", 12, 9, true);
+        T9Snapshot.write(mFile, STAMP, table, 0);
+
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        // A flipped bit inside the table, which parses fine
+        file.seek(20);
+        int b = file.read();
+        file.seek(20);
+        file.write(b ^ 1);
+        assertNull(T9Snapshot.read(mFile, STAMP));
+
+        file.setLength(file.length() - 6);
+        file.close();
+        assertNull(T9Snapshot.read(mFile, STAMP));
+
+        FileOutputStream out = new FileOutputStream(mFile);
+        out.write(new byte[] { 1, 2, 3 });
+        out.close();
+        assertNull(T9Snapshot.read(mFile, STAMP));
+
+        mFile.delete();
+        assertNull(T9Snapshot.read(mFile, STAMP));
+    }
+}